@@ -0,0 +1,67 @@
+package reverseproxy.benchmark;
+
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.ConfigException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Builds parsed configs for the benchmarks from generated yaml.
+ */
+final class BenchmarkConfigs {
+
+    static final int LISTEN = 8000;
+
+    private BenchmarkConfigs() {
+    }
+
+    static String host(int i) {
+        return "host" + i + ".example.com";
+    }
+
+    static String serverName(int i) {
+        return host(i) + ":" + LISTEN;
+    }
+
+    /**
+     * Every host gets {@code locations} prefix locations "/service{n}/**" plus a catch all "/**", all proxied
+     * to one upstream "pool" with {@code servers} backends on 127.0.0.1.
+     */
+    static String yaml(int hosts, int locations, int servers, int keepalive) {
+        StringBuilder yaml = new StringBuilder();
+        yaml.append("listen: ").append(LISTEN).append('\n');
+        yaml.append("keepalive_timeout: 65\n");
+        yaml.append("worker_threads: 1\n");
+        yaml.append("worker_connections: 1024\n");
+        yaml.append("servers:\n");
+        for (int h = 0; h < hosts; h++) {
+            yaml.append("  ").append(host(h)).append(":\n");
+            for (int l = 0; l < locations; l++) {
+                yaml.append("    - path: /service").append(l).append("/**\n");
+                yaml.append("      proxy_pass: http://pool\n");
+            }
+            yaml.append("    - path: /**\n");
+            yaml.append("      proxy_pass: http://pool\n");
+        }
+        yaml.append("upstreams:\n");
+        yaml.append("  pool:\n");
+        yaml.append("    keepalive: ").append(keepalive).append('\n');
+        yaml.append("    servers:\n");
+        for (int s = 0; s < servers; s++) {
+            yaml.append("      - 127.0.0.1:").append(10000 + s).append('\n');
+        }
+        return yaml.toString();
+    }
+
+    static ReverseProxyConfig parse(String yaml) throws IOException, ConfigException {
+        File file = File.createTempFile("reverseproxy-bench", ".yml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), yaml.getBytes(StandardCharsets.UTF_8));
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(file.getPath());
+        return config;
+    }
+}
@@ -0,0 +1,149 @@
+package reverseproxy.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reverseproxy.compression.Compression;
+import reverseproxy.compression.ResponseCompressor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU against bandwidth of gzip levels 1, 6 and 9 on a JSON like body: {@code gzip} is the one time cost of a
+ * cached variant, {@code onTheFly} the cost paid per response by the {@link ResponseCompressor}, and
+ * {@code identity} the same response passed through uncompressed. The {@code bytesIn} and {@code bytesOut}
+ * counters give the ratio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"1024", "16384", "262144"})
+    public int size;
+
+    private Compression compression;
+
+    private ByteBuf body;
+
+    private EmbeddedChannel channel;
+
+    private FullHttpRequest request;
+
+    private FullHttpRequest identityRequest;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+
+        public long bytesIn;
+
+        public long bytesOut;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesIn = 0;
+            bytesOut = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        compression = new Compression(level, 0, Collections.singletonList("application/json"));
+        // repetitive keys with varying values, roughly what an API returns
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder(size + 128).append('[');
+        for (int i = 0; json.length() < size; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item-").append(random.nextInt(100000))
+                    .append("\",\"price\":").append(random.nextInt(10000) / 100.0)
+                    .append(",\"tags\":[\"a").append(random.nextInt(50)).append("\",\"b")
+                    .append(random.nextInt(50)).append("\"],\"active\":").append(random.nextBoolean()).append("},");
+        }
+        json.setLength(size);
+        body = Unpooled.unreleasableBuffer(Unpooled.directBuffer(size).writeBytes(
+                json.toString().getBytes(StandardCharsets.US_ASCII)));
+        channel = new EmbeddedChannel(new ResponseCompressor(compression));
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/items");
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate, br");
+        identityRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/items");
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        request.release();
+        identityRequest.release();
+    }
+
+    @Benchmark
+    public byte[] gzip(Bytes bytes) {
+        byte[] gzipped = compression.gzip(body);
+        bytes.bytesIn += size;
+        bytes.bytesOut += gzipped.length;
+        return gzipped;
+    }
+
+    @Benchmark
+    public int onTheFly(Bytes bytes) {
+        return respond(bytes, request);
+    }
+
+    @Benchmark
+    public int identity(Bytes bytes) {
+        return respond(bytes, identityRequest);
+    }
+
+    private int respond(Bytes bytes, FullHttpRequest request) {
+        channel.writeInbound(request.retain());
+        ReferenceCountUtil.release(channel.readInbound());
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                body.duplicate());
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json");
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, size);
+        channel.writeOutbound(response);
+        int out = 0;
+        Object msg;
+        while (null != (msg = channel.readOutbound())) {
+            if (msg instanceof HttpContent) {
+                out += ((HttpContent) msg).content().readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        bytes.bytesIn += size;
+        bytes.bytesOut += out;
+        return out;
+    }
+}
@@ -0,0 +1,80 @@
+package reverseproxy.benchmark;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.downstream.DownStreamHandler;
+import reverseproxy.upstream.pool.Connection;
+import reverseproxy.upstream.pool.ConnectionPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking an idle connection with {@link DownStreamHandler#getConn(Server)} and returning it to the pool, with
+ * many backends and many idle connections per backend. Runs on the benchmark thread, which owns its own pool
+ * like an event loop does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionPoolBenchmark {
+
+    @Param({"1", "32", "256"})
+    public int servers;
+
+    @Param({"1", "16", "64"})
+    public int idlePerServer;
+
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    private DownStreamHandler downStreamHandler;
+
+    private Server[] pool;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        downStreamHandler = new DownStreamHandler();
+        pool = new Server[servers];
+        for (int i = 0; i < servers; i++) {
+            pool[i] = new Server("127.0.0.1:" + (10000 + i), idlePerServer);
+            for (int c = 0; c < idlePerServer; c++) {
+                EmbeddedChannel channel = new EmbeddedChannel();
+                channels.add(channel);
+                ConnectionPool.current().release(new Connection(pool[i], channel));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    @Benchmark
+    public Connection acquireAndRelease() {
+        Server server = pool[(next++ & Integer.MAX_VALUE) % servers];
+        Connection connection = downStreamHandler.getConn(server);
+        ConnectionPool.current().release(connection);
+        return connection;
+    }
+}
@@ -0,0 +1,63 @@
+package reverseproxy.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.upstream.lb.RoundRobin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RoundRobin#next()} with power of two (2, 4, 32) and generic (3, 5, 33) pool sizes, single threaded and
+ * contended, for every balance strategy, with equal weights and with weights 1, 2, 3, ...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundRobinBenchmark {
+
+    @Param({"2", "3", "4", "5", "32", "33"})
+    public int servers;
+
+    @Param({ReverseProxyConfig.ROUND_ROBIN, ReverseProxyConfig.LEAST_REQUEST})
+    public String balance;
+
+    @Param({"false", "true"})
+    public boolean weighted;
+
+    private RoundRobin roundRobin;
+
+    @Setup
+    public void setup() {
+        Server[] pool = new Server[servers];
+        for (int i = 0; i < servers; i++) {
+            pool[i] = new Server("127.0.0.1:" + (10000 + i) + (weighted ? " weight=" + (i % 3 + 1) : ""), 16);
+        }
+        roundRobin = new RoundRobin(pool, balance);
+    }
+
+    @Benchmark
+    public Server next() {
+        return roundRobin.next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Server nextContended() {
+        return roundRobin.next();
+    }
+}
@@ -0,0 +1,118 @@
+package reverseproxy.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.downstream.DownStreamHandler;
+import reverseproxy.downstream.ReverseProxyDownStreamChannelInitializer;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.upstream.ReverseProxyUpStreamChannelInitializer;
+import reverseproxy.upstream.pool.Connection;
+import reverseproxy.upstream.pool.ConnectionPool;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A keepalive request decoded by the downstream pipeline, routed, encoded on a pooled upstream connection, and
+ * its response decoded by the upstream pipeline and encoded back to the client. Both sides are
+ * {@link EmbeddedChannel}s, so only the proxy's own work is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    public int responseSize;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private EmbeddedChannel downstream;
+
+    private EmbeddedChannel upstream;
+
+    private ByteBuf request;
+
+    private ByteBuf response;
+
+    @Setup
+    public void setup() throws Exception {
+        // a single backend, so every request lands on the one pooled upstream channel
+        String yaml = BenchmarkConfigs.yaml(1, 10, 1, 16);
+        if (streaming) {
+            yaml = yaml.replace("    keepalive: 16\n", "    keepalive: 16\n    streaming: true\n");
+        }
+        ReverseProxyConfig config = BenchmarkConfigs.parse(yaml);
+        Snapshot.publish(Snapshot.compile(config));
+
+        downstream = new EmbeddedChannel(new ReverseProxyDownStreamChannelInitializer(new DownStreamHandler()));
+        upstream = new EmbeddedChannel(new ReverseProxyUpStreamChannelInitializer(false));
+        Server server = config.upstreams().get("http://pool").get(0);
+        Connection connection = new Connection(server, upstream);
+        upstream.attr(AttributeKeys.CONNECTION_KEY).set(connection);
+        ConnectionPool.current().release(connection);
+
+        request = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(
+                "GET /service5/api/v1/items?id=42 HTTP/1.1\r\n"
+                        + "Host: " + BenchmarkConfigs.serverName(0) + "\r\n"
+                        + "User-Agent: jmh\r\n"
+                        + "Accept: */*\r\n"
+                        + "\r\n", StandardCharsets.US_ASCII));
+        StringBuilder body = new StringBuilder(responseSize);
+        for (int i = 0; i < responseSize; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        response = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(
+                "HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: text/plain\r\n"
+                        + "Content-Length: " + responseSize + "\r\n"
+                        + "\r\n" + body, StandardCharsets.US_ASCII));
+    }
+
+    @TearDown
+    public void tearDown() {
+        downstream.finishAndReleaseAll();
+        upstream.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        downstream.writeInbound(request.duplicate());
+        int bytes = drain(upstream);
+        upstream.writeInbound(response.duplicate());
+        return bytes + drain(downstream);
+    }
+
+    private static int drain(EmbeddedChannel channel) {
+        int bytes = 0;
+        Object msg;
+        while (null != (msg = channel.readOutbound())) {
+            if (msg instanceof ByteBuf) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+}
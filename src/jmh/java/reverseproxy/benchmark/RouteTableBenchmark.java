@@ -0,0 +1,81 @@
+package reverseproxy.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.route.Route;
+import reverseproxy.route.RouteTable;
+import reverseproxy.upstream.lb.RoundRobinFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing a request across many virtual hosts and locations, hitting the first location, the last location and
+ * the catch all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteTableBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int hosts;
+
+    @Param({"10", "1000"})
+    public int locations;
+
+    private RouteTable routeTable;
+
+    private String serverName;
+
+    private String firstUri;
+
+    private String lastUri;
+
+    private String fallbackUri;
+
+    @Setup
+    public void setup() throws Exception {
+        ReverseProxyConfig config = BenchmarkConfigs.parse(BenchmarkConfigs.yaml(hosts, locations, 4, 16));
+        RoundRobinFactory robinFactory = new RoundRobinFactory();
+        robinFactory.init(config);
+        routeTable = RouteTable.compile(config, robinFactory);
+
+        serverName = BenchmarkConfigs.serverName(hosts / 2);
+        firstUri = "/service0/api/v1/items?id=42";
+        lastUri = "/service" + (locations - 1) + "/api/v1/items?id=42";
+        fallbackUri = "/static/js/app.js";
+    }
+
+    @Benchmark
+    public Route firstLocation() {
+        return routeTable.route(serverName, firstUri);
+    }
+
+    @Benchmark
+    public Route lastLocation() {
+        return routeTable.route(serverName, lastUri);
+    }
+
+    @Benchmark
+    public Route catchAll() {
+        return routeTable.route(serverName, fallbackUri);
+    }
+
+    @Benchmark
+    public Route unknownHost() {
+        return routeTable.route("unknown.example.com:8000", firstUri);
+    }
+}
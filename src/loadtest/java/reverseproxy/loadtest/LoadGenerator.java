@@ -0,0 +1,307 @@
+package reverseproxy.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.ScheduledFuture;
+import reverseproxy.core.Independent;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 keepalive load generator.
+ * <p>
+ * Closed loop: every connection sends its next request as soon as the previous response arrives, so the offered
+ * load adapts to the proxy. Open loop: requests are due at a fixed rate whether or not the proxy keeps up, and
+ * latency is measured from the time a request was due rather than sent, so queueing is not hidden
+ * (coordinated omission).
+ * <p>
+ * Every event loop runs one {@link LoopDriver} owning its connections and histogram, so recording needs no
+ * synchronization.
+ */
+final class LoadGenerator {
+
+    private final EventLoopGroup group;
+
+    private final InetSocketAddress target;
+
+    private final String host;
+
+    private final String path;
+
+    private final int connections;
+
+    private final long rate;
+
+    private final List<LoopDriver> drivers = new ArrayList<>();
+
+    private volatile long measureStart;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param rate requests per second for open loop, 0 for closed loop
+     */
+    LoadGenerator(EventLoopGroup group, InetSocketAddress target, String host, String path, int connections,
+                  long rate) {
+        this.group = group;
+        this.target = target;
+        this.host = host;
+        this.path = path;
+        this.connections = connections;
+        this.rate = rate;
+    }
+
+    Result run(long warmupMillis, long durationMillis) throws Exception {
+        List<EventLoop> loops = new ArrayList<>();
+        group.forEach(executor -> loops.add((EventLoop) executor));
+        int loopCount = Math.min(loops.size(), connections);
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        for (int i = 0; i < loopCount; i++) {
+            int conns = connections / loopCount + (i < connections % loopCount ? 1 : 0);
+            LoopDriver driver = new LoopDriver(loops.get(i), conns, rate / loopCount, start);
+            drivers.add(driver);
+            driver.loop.execute(driver::start);
+        }
+
+        Thread.sleep(warmupMillis + durationMillis);
+        long measureEnd = System.nanoTime();
+        stopped = true;
+        // let in-flight requests finish
+        Thread.sleep(1000);
+
+        Result result = new Result();
+        result.seconds = (measureEnd - measureStart) / 1e9;
+        for (LoopDriver driver : drivers) {
+            driver.loop.submit(driver::stop).syncUninterruptibly();
+            result.histogram.merge(driver.histogram);
+            result.errors += driver.errors;
+            result.connectFailures += driver.connectFailures;
+            result.backlog += driver.pending.size();
+        }
+        return result;
+    }
+
+    static final class Result {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        double seconds;
+
+        long errors;
+
+        long connectFailures;
+
+        long backlog;
+
+        double rps() {
+            return histogram.count() / seconds;
+        }
+    }
+
+    private final class LoopDriver {
+
+        private final EventLoop loop;
+
+        private final int maxConnections;
+
+        private final long intervalNanos;
+
+        private final long start;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private final ArrayDeque<Client> idle = new ArrayDeque<>();
+
+        // due times of open loop requests waiting for a connection
+        private final ArrayDeque<Long> pending = new ArrayDeque<>();
+
+        private final List<Channel> channels = new ArrayList<>();
+
+        private Bootstrap bootstrap;
+
+        private ScheduledFuture<?> ticker;
+
+        private long issued;
+
+        private int opened;
+
+        private long errors;
+
+        private long connectFailures;
+
+        LoopDriver(EventLoop loop, int maxConnections, long rate, long start) {
+            this.loop = loop;
+            this.maxConnections = maxConnections;
+            this.intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            this.start = start;
+        }
+
+        void start() {
+            bootstrap = new Bootstrap();
+            bootstrap.group(loop);
+            bootstrap.channel(Independent.channelClass());
+            bootstrap.option(ChannelOption.TCP_NODELAY, true);
+            bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+            if (0 == intervalNanos) {
+                for (int i = 0; i < maxConnections; i++) {
+                    open();
+                }
+            } else {
+                ticker = loop.scheduleAtFixedRate(this::tick, 0, 1, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void stop() {
+            if (null != ticker) {
+                ticker.cancel(false);
+            }
+            for (Channel channel : channels) {
+                channel.close();
+            }
+        }
+
+        private void tick() {
+            if (stopped) {
+                return;
+            }
+            long now = System.nanoTime();
+            while (start + issued * intervalNanos <= now) {
+                long due = start + issued * intervalNanos;
+                issued++;
+                Client client = idle.poll();
+                if (null != client) {
+                    client.send(due);
+                } else {
+                    pending.add(due);
+                    if (opened < maxConnections) {
+                        open();
+                    }
+                }
+            }
+        }
+
+        private void open() {
+            opened++;
+            Client client = new Client(this);
+            ChannelFuture connectFuture = bootstrap.clone().handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast(new HttpClientCodec());
+                    ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024 * 1024));
+                    ch.pipeline().addLast(client);
+                }
+            }).connect(target);
+            channels.add(connectFuture.channel());
+            connectFuture.addListener(future -> {
+                if (!future.isSuccess()) {
+                    opened--;
+                    connectFailures++;
+                }
+            });
+        }
+
+        void ready(Client client) {
+            if (stopped) {
+                return;
+            }
+            if (0 == intervalNanos) {
+                client.send(System.nanoTime());
+            } else if (!pending.isEmpty()) {
+                client.send(pending.poll());
+            } else {
+                idle.push(client);
+            }
+        }
+
+        void completed(long due, boolean success) {
+            if (due >= measureStart && !stopped) {
+                histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+                if (!success) {
+                    errors++;
+                }
+            }
+        }
+
+        void lost(Client client) {
+            idle.remove(client);
+            opened--;
+            if (client.inFlight) {
+                errors++;
+            }
+            if (!stopped && 0 == intervalNanos) {
+                open();
+            }
+        }
+    }
+
+    private final class Client extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        private final LoopDriver driver;
+
+        private Channel channel;
+
+        private long due;
+
+        private boolean inFlight;
+
+        Client(LoopDriver driver) {
+            this.driver = driver;
+        }
+
+        void send(long due) {
+            this.due = due;
+            inFlight = true;
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+            request.headers().set(HttpHeaderNames.HOST, host);
+            request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            channel.writeAndFlush(request, channel.voidPromise());
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            channel = ctx.channel();
+            driver.ready(this);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            inFlight = false;
+            driver.completed(due, response.status().code() < 400);
+            driver.ready(this);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            driver.lost(this);
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
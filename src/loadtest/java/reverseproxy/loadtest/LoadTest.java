@@ -0,0 +1,179 @@
+package reverseproxy.loadtest;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import reverseproxy.ReverseProxy;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.core.Independent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts stub backends and the proxy in this process on loopback, drives load through the proxy and reports
+ * throughput and latency percentiles.
+ * <pre>
+ * mvn -Ploadtest compile exec:java -Dexec.args="--backends 4 --latency-us 500 --connections 128 --duration 30"
+ * </pre>
+ * Options (defaults in brackets):
+ * <ul>
+ * <li>--backends [4] number of stub backends</li>
+ * <li>--latency-us [0] backend latency in microseconds</li>
+ * <li>--response-size [1024] backend body size in bytes</li>
+ * <li>--failure-rate [0] share of backend responses that are 500s</li>
+ * <li>--worker-threads [2] proxy worker_threads</li>
+ * <li>--keepalive [32] upstream keepalive</li>
+ * <li>--streaming [false] proxy in streaming mode</li>
+ * <li>--access-log [none] access log path</li>
+ * <li>--connections [64] client connections</li>
+ * <li>--rate [0] open loop requests per second, 0 runs closed loop</li>
+ * <li>--client-threads [2] load generator threads</li>
+ * <li>--warmup [5] warmup seconds, not measured</li>
+ * <li>--duration [30] measured seconds</li>
+ * </ul>
+ * The last line of the report is a single json object for comparing runs.
+ */
+public final class LoadTest {
+
+    private static final String HOST = "loadtest";
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int backends = intOption(options, "backends", 4);
+        long latencyMicros = intOption(options, "latency-us", 0);
+        int responseSize = intOption(options, "response-size", 1024);
+        double failureRate = Double.parseDouble(options.getOrDefault("failure-rate", "0"));
+        int workerThreads = intOption(options, "worker-threads", 2);
+        int keepalive = intOption(options, "keepalive", 32);
+        boolean streaming = Boolean.parseBoolean(options.getOrDefault("streaming", "false"));
+        String accessLog = options.get("access-log");
+        int connections = intOption(options, "connections", 64);
+        long rate = intOption(options, "rate", 0);
+        int clientThreads = intOption(options, "client-threads", 2);
+        int warmup = intOption(options, "warmup", 5);
+        int duration = intOption(options, "duration", 30);
+
+        EventLoopGroup backendGroup = Independent.newEventLoopGroup(2, new DefaultThreadFactory("LoadTest-Backend"));
+        EventLoopGroup clientGroup = Independent.newEventLoopGroup(clientThreads,
+                new DefaultThreadFactory("LoadTest-Client"));
+        List<StubBackend> stubs = new ArrayList<>();
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < backends; i++) {
+            StubBackend stub = new StubBackend(latencyMicros, responseSize, failureRate);
+            ports.add(stub.start(backendGroup));
+            stubs.add(stub);
+        }
+
+        int listen = freePort();
+        File configFile = File.createTempFile("reverseproxy-loadtest", ".yml");
+        configFile.deleteOnExit();
+        Files.write(configFile.toPath(), yaml(listen, workerThreads, keepalive, streaming, accessLog, ports)
+                .getBytes(StandardCharsets.UTF_8));
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(configFile.getPath());
+
+        ReverseProxy proxy = new ReverseProxy();
+        Thread proxyThread = new Thread(() -> proxy.runFromConfig(config), "LoadTest-Proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+        awaitListening(listen);
+
+        System.out.println(String.format("load: %s, connections=%d, rate=%s, backends=%d, latency=%dus, "
+                        + "size=%dB, failures=%.3f, worker_threads=%d, keepalive=%d, streaming=%s",
+                rate > 0 ? "open loop" : "closed loop", connections, rate > 0 ? String.valueOf(rate) : "-", backends,
+                latencyMicros, responseSize, failureRate, workerThreads, keepalive, streaming));
+
+        LoadGenerator generator = new LoadGenerator(clientGroup, new InetSocketAddress("127.0.0.1", listen),
+                HOST + ":" + listen, "/loadtest", connections, rate);
+        LoadGenerator.Result result = generator.run(warmup * 1000L, duration * 1000L);
+
+        LatencyHistogram h = result.histogram;
+        System.out.println(String.format("requests=%d errors=%d connect_failures=%d backlog=%d rps=%.1f",
+                h.count(), result.errors, result.connectFailures, result.backlog, result.rps()));
+        System.out.println(String.format("latency(us) p50=%d p90=%d p99=%d p999=%d max=%d",
+                h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.percentile(0.999), h.max()));
+        System.out.println(String.format("{\"mode\":\"%s\",\"connections\":%d,\"rate\":%d,\"requests\":%d,"
+                        + "\"errors\":%d,\"rps\":%.1f,\"p50_us\":%d,\"p99_us\":%d,\"p999_us\":%d,\"max_us\":%d}",
+                rate > 0 ? "open" : "closed", connections, rate, h.count(), result.errors, result.rps(),
+                h.percentile(0.5), h.percentile(0.99), h.percentile(0.999), h.max()));
+
+        proxy.shutdown();
+        for (StubBackend stub : stubs) {
+            stub.stop();
+        }
+        clientGroup.shutdownGracefully();
+        backendGroup.shutdownGracefully();
+        proxyThread.join(5000);
+    }
+
+    static String yaml(int listen, int workerThreads, int keepalive, boolean streaming, String accessLog,
+                       List<Integer> ports) {
+        StringBuilder yaml = new StringBuilder();
+        yaml.append("listen: ").append(listen).append('\n');
+        yaml.append("keepalive_timeout: 65\n");
+        yaml.append("worker_threads: ").append(workerThreads).append('\n');
+        yaml.append("worker_connections: 102400\n");
+        if (null != accessLog) {
+            yaml.append("access_log:\n");
+            yaml.append("  path: ").append(accessLog).append('\n');
+        }
+        yaml.append("servers:\n");
+        yaml.append("  ").append(HOST).append(":\n");
+        yaml.append("    - path: /**\n");
+        yaml.append("      proxy_pass: http://stubs\n");
+        yaml.append("upstreams:\n");
+        yaml.append("  stubs:\n");
+        yaml.append("    keepalive: ").append(keepalive).append('\n');
+        yaml.append("    streaming: ").append(streaming).append('\n');
+        yaml.append("    servers:\n");
+        for (int port : ports) {
+            yaml.append("      - 127.0.0.1:").append(port).append('\n');
+        }
+        return yaml.toString();
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return null == value ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket ignored = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("proxy is not listening on " + port);
+    }
+}
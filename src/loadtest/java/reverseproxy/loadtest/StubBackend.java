@@ -0,0 +1,121 @@
+package reverseproxy.loadtest;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import reverseproxy.core.Independent;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process HTTP backend on loopback answering every request with a fixed size body after a fixed latency,
+ * failing a configurable share of them with a 500.
+ */
+final class StubBackend {
+
+    private final long latencyMicros;
+
+    private final double failureRate;
+
+    private final ByteBuf body;
+
+    private final LongAdder requests = new LongAdder();
+
+    private Channel channel;
+
+    StubBackend(long latencyMicros, int responseSize, double failureRate) {
+        this.latencyMicros = latencyMicros;
+        this.failureRate = failureRate;
+        byte[] bytes = new byte[responseSize];
+        for (int i = 0; i < responseSize; i++) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        this.body = Unpooled.unreleasableBuffer(Unpooled.directBuffer(responseSize).writeBytes(bytes));
+    }
+
+    /**
+     * Binds an ephemeral port on 127.0.0.1.
+     */
+    int start(EventLoopGroup group) {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group);
+        b.channel(Independent.serverChannelClass());
+        b.option(ChannelOption.SO_BACKLOG, 1024);
+        b.childOption(ChannelOption.TCP_NODELAY, true);
+        b.childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new HttpServerCodec());
+                ch.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                ch.pipeline().addLast(new Handler());
+            }
+        });
+        channel = b.bind(new InetSocketAddress("127.0.0.1", 0)).syncUninterruptibly().channel();
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    void stop() {
+        if (null != channel) {
+            channel.close().syncUninterruptibly();
+        }
+    }
+
+    long requests() {
+        return requests.sum();
+    }
+
+    @ChannelHandler.Sharable
+    private final class Handler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        Handler() {
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            requests.increment();
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            FullHttpResponse response;
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            } else {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body.duplicate());
+            }
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            if (latencyMicros > 0) {
+                ctx.executor().schedule(() -> respond(ctx, response, keepAlive), latencyMicros, TimeUnit.MICROSECONDS);
+            } else {
+                respond(ctx, response, keepAlive);
+            }
+        }
+
+        private void respond(ChannelHandlerContext ctx, FullHttpResponse response, boolean keepAlive) {
+            if (keepAlive) {
+                ctx.writeAndFlush(response, ctx.voidPromise());
+            } else {
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
@@ -5,27 +5,49 @@ import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reverseproxy.accesslog.AccessLog;
+import reverseproxy.cache.ResponseCache;
+import reverseproxy.compression.Compression;
+import reverseproxy.admin.AdminChannelInitializer;
 import reverseproxy.conf.ReverseProxyConfig;
 import reverseproxy.conf.ReverseProxyConfig.ConfigException;
+import reverseproxy.conf.ReverseProxyConfig.StreamServer;
 import reverseproxy.core.Independent;
 import reverseproxy.downstream.DownStreamHandler;
 import reverseproxy.downstream.ReverseProxyDownStreamChannelInitializer;
-import reverseproxy.upstream.lb.RoundRobinFactory;
+import reverseproxy.reload.ConfigReloader;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.stream.StreamChannelInitializer;
+import reverseproxy.upstream.health.HealthChecker;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 public class ReverseProxy {
     private static final Logger logger = LoggerFactory.getLogger(ReverseProxy.class);
 
-    private final RoundRobinFactory robinFactory = new RoundRobinFactory();
+    // the file the config was read from, reloads read it again
+    private String configPath;
 
     private DownStreamHandler downStreamHandler;
 
+    private volatile Channel serverChannel;
+
+    private volatile Channel adminChannel;
+
+    private final List<Channel> streamChannels = new CopyOnWriteArrayList<>();
+
     public static void main(String[] args) {
         ReverseProxy reverseProxy = new ReverseProxy();
         try {
@@ -40,22 +62,46 @@ public class ReverseProxy {
     protected void initializeAndRun(String[] args) throws ConfigException {
         ReverseProxyConfig config = new ReverseProxyConfig();
         if (args.length == 1) {
-            config.parse(args[0]);
+            configPath = args[0];
+            config.parse(configPath);
         } else {
             throw new IllegalArgumentException("Invalid args:" + Arrays.toString(args));
         }
-        robinFactory.init(config);
-        downStreamHandler = new DownStreamHandler(config, robinFactory);
         runFromConfig(config);
     }
 
+    /**
+     * Serves the config until {@link #shutdown()} is called, blocking the calling thread.
+     */
     public void runFromConfig(ReverseProxyConfig config) {
+        Snapshot.publish(Snapshot.compile(config));
+        downStreamHandler = new DownStreamHandler();
+
+        try {
+            AccessLog.start(config.accessLog());
+        } catch (IOException e) {
+            throw new IllegalStateException("access log can not be opened", e);
+        }
+        try {
+            ResponseCache.start(config.cache());
+        } catch (IOException e) {
+            throw new IllegalStateException("disk cache can not be opened", e);
+        }
+        Compression.start(config.compression());
 
+        Independent.init(config.transport());
         EventLoopGroup bossGroup = Independent.newEventLoopGroup(1, new DefaultThreadFactory("ReverseProxy-Boss-Thread"));
         EventLoopGroup workerGroup = Independent.newEventLoopGroup(config.workerThreads(),
                 new DefaultThreadFactory("ReverseProxy-Downstream-Worker-Thread"));
 
+        ConfigReloader reloader = new ConfigReloader(configPath, workerGroup,
+                HealthChecker.start(config, workerGroup));
         try {
+            if (config.adminListen() > 0) {
+                adminChannel = bindAdmin(config.adminBind(), config.adminListen(), bossGroup,
+                        null == configPath ? null : reloader);
+            }
+
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup);
             b.channel(Independent.serverChannelClass());
@@ -66,22 +112,86 @@ public class ReverseProxy {
             b.childOption(ChannelOption.TCP_NODELAY, true);
             b.childOption(ChannelOption.SO_SNDBUF, 32 * 1024);
             b.childOption(ChannelOption.SO_RCVBUF, 32 * 1024);
-            // temporary settings, need more tests
-            b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(8 * 1024, 32 * 1024));
+            // reading the upstream of a response stops while the client has this much to take
+            WriteBufferWaterMark waterMark = new WriteBufferWaterMark(config.writeBufferLow(),
+                    config.writeBufferHigh());
+            b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
             b.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
             // default is true, reduce thread context switching
             b.childOption(ChannelOption.SINGLE_EVENTEXECUTOR_PER_GROUP, true);
 
-            b.childHandler(new ReverseProxyDownStreamChannelInitializer(config, downStreamHandler));
+            b.childHandler(new ReverseProxyDownStreamChannelInitializer(downStreamHandler));
 
             Channel ch = b.bind(config.listen()).syncUninterruptibly().channel();
+            serverChannel = ch;
 
             logger.info(String.format("bind to %d success.", config.listen()));
 
+            for (StreamServer stream : config.stream()) {
+                streamChannels.add(bindStream(stream, waterMark, bossGroup, workerGroup));
+            }
+            reloader.start(config);
+
             ch.closeFuture().syncUninterruptibly();
         } finally {
+            reloader.stop();
+            if (null != adminChannel) {
+                adminChannel.close();
+            }
+            for (Channel streamChannel : streamChannels) {
+                streamChannel.close();
+            }
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            AccessLog.stop();
+            ResponseCache.stop();
+            Compression.stop();
+        }
+    }
+
+    // the admin listener shares the boss thread, it only serves the occasional scrape
+    private static Channel bindAdmin(String host, int port, EventLoopGroup group, ConfigReloader reloader) {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group);
+        b.channel(Independent.serverChannelClass());
+        b.option(ChannelOption.SO_REUSEADDR, true);
+        b.childOption(ChannelOption.TCP_NODELAY, true);
+        b.childHandler(new AdminChannelInitializer(reloader));
+
+        Channel ch = b.bind(new InetSocketAddress(host, port)).syncUninterruptibly().channel();
+        logger.info(String.format("admin bind to %s:%d success.", host, port));
+        return ch;
+    }
+
+    private static Channel bindStream(StreamServer stream, WriteBufferWaterMark waterMark, EventLoopGroup bossGroup,
+                                      EventLoopGroup workerGroup) {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup);
+        b.channel(Independent.serverChannelClass());
+        b.option(ChannelOption.SO_BACKLOG, 1024);
+        b.option(ChannelOption.SO_REUSEADDR, true);
+        b.childOption(ChannelOption.SO_KEEPALIVE, true);
+        b.childOption(ChannelOption.TCP_NODELAY, true);
+        b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
+        b.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        // read once the upstream connection is up
+        b.childOption(ChannelOption.AUTO_READ, false);
+        if (Independent.Transport.EPOLL == Independent.transport()) {
+            // splicing needs level triggered channels and moves at most the allocator's guess per wakeup
+            b.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+            b.childOption(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(64 * 1024));
+        }
+        b.childHandler(new StreamChannelInitializer(stream.proxypass(), waterMark));
+
+        Channel ch = b.bind(stream.listen()).syncUninterruptibly().channel();
+        logger.info(String.format("stream bind to %d for %s success.", stream.listen(), stream.proxypass()));
+        return ch;
+    }
+
+    public void shutdown() {
+        Channel ch = serverChannel;
+        if (null != ch) {
+            ch.close();
         }
     }
 }
@@ -0,0 +1,196 @@
+package reverseproxy.accesslog;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig.AccessLogConfig;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log written off the event loops. Every event loop fills records into its own {@link RecordRing} and a
+ * single background thread drains the rings and writes them to the file in batches. Event loops never block on
+ * the log: when a ring is full the record is dropped and counted, see {@link #dropped()}.
+ */
+public final class AccessLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+    // how long the writer sleeps when there was nothing to write, this bounds the delay of a record
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private static volatile AccessLog current;
+
+    private final int ringCapacity;
+
+    private final List<RecordRing> rings = new CopyOnWriteArrayList<>();
+
+    private final FastThreadLocal<RecordRing> ring = new FastThreadLocal<RecordRing>() {
+        @Override
+        protected RecordRing initialValue() throws Exception {
+            RecordRing ring = new RecordRing(ringCapacity);
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    private final OutputStream out;
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    private AccessLog(AccessLogConfig config) throws IOException {
+        this.ringCapacity = config.buffer();
+        File file = new File(config.path());
+        if (null != file.getParentFile()) {
+            file.getParentFile().mkdirs();
+        }
+        this.out = new BufferedOutputStream(new FileOutputStream(file, true), 2 * BATCH_BYTES);
+        this.writer = new Thread(this::writeLoop, "ReverseProxy-AccessLog-Writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens the log file and starts the writer, does nothing if the config has no access log.
+     */
+    public static void start(AccessLogConfig config) throws IOException {
+        if (null == config || null == config.path()) {
+            return;
+        }
+        AccessLog accessLog = new AccessLog(config);
+        accessLog.writer.start();
+        current = accessLog;
+        logger.info(String.format("access log to %s, %d records buffered per worker thread", config.path(),
+                config.buffer()));
+    }
+
+    /**
+     * Writes the records still buffered and closes the file.
+     */
+    public static void stop() {
+        AccessLog accessLog = current;
+        if (null == accessLog) {
+            return;
+        }
+        current = null;
+        accessLog.running = false;
+        LockSupport.unpark(accessLog.writer);
+        try {
+            accessLog.writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Logs a response sent on the downstream channel, must be called by its event loop.
+     *
+     * @param server        the upstream server that answered, null if none was chosen
+     * @param upstreamNanos the upstream response time, negative when no upstream response was received
+     */
+    public static void log(Channel downstream, HttpRequest request, int status, long bytes, Server server,
+                           long upstreamNanos) {
+        AccessLog accessLog = current;
+        if (null == accessLog || null == request) {
+            return;
+        }
+        RecordRing ring = accessLog.ring.get();
+        AccessLogRecord record = ring.claim();
+        if (null == record) {
+            return;
+        }
+        record.timeMillis = System.currentTimeMillis();
+        record.remote = downstream.remoteAddress();
+        record.method = request.method().name();
+        record.uri = request.uri();
+        record.protocol = request.protocolVersion().text();
+        record.host = request.headers().get(HttpHeaderNames.HOST);
+        record.status = status;
+        record.bytes = bytes;
+        record.server = server;
+        record.upstreamNanos = upstreamNanos;
+        ring.publish();
+    }
+
+    /**
+     * @return the number of records dropped because the writer could not keep up
+     */
+    public static long dropped() {
+        AccessLog accessLog = current;
+        return null == accessLog ? 0 : dropped(accessLog.rings);
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(2 * BATCH_BYTES);
+        AccessLogFormatter formatter = new AccessLogFormatter(batch);
+        long reportedDrops = 0;
+        try {
+            boolean stopping = false;
+            while (!stopping) {
+                // read the flag before draining so the last records are written after stop()
+                stopping = !running;
+                int drained = 0;
+                for (RecordRing ring : rings) {
+                    drained += ring.drain(formatter);
+                    if (batch.length() >= BATCH_BYTES) {
+                        write(batch);
+                    }
+                }
+                if (0 == drained) {
+                    if (batch.length() > 0) {
+                        write(batch);
+                    }
+                    out.flush();
+
+                    long drops = dropped(rings);
+                    if (drops != reportedDrops) {
+                        logger.warn(String.format("access log dropped %d records", drops - reportedDrops));
+                        reportedDrops = drops;
+                    }
+                    if (!stopping) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                }
+            }
+            write(batch);
+        } catch (IOException e) {
+            logger.error("access log write fail, logging stopped", e);
+            current = null;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.error("access log close fail", e);
+            }
+        }
+    }
+
+    private static long dropped(List<RecordRing> rings) {
+        long dropped = 0;
+        for (RecordRing ring : rings) {
+            dropped += ring.dropped();
+        }
+        return dropped;
+    }
+
+    private void write(StringBuilder batch) throws IOException {
+        out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+        batch.setLength(0);
+    }
+}
@@ -0,0 +1,78 @@
+package reverseproxy.accesslog;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Formats records like nginx's combined log, followed by the host, the upstream server and the upstream
+ * response time in seconds:
+ * <pre>
+ * 127.0.0.1 - - [17/Oct/2026:10:00:00 +0000] "GET /a HTTP/1.1" 200 1024 "localhost:8000" 127.0.0.1:9001 0.003
+ * </pre>
+ * Only used by the writer thread.
+ */
+final class AccessLogFormatter {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final StringBuilder out;
+
+    // the formatted time is reused for every record in the same second
+    private long cachedSecond = Long.MIN_VALUE;
+
+    private String cachedTime;
+
+    AccessLogFormatter(StringBuilder out) {
+        this.out = out;
+    }
+
+    void format(AccessLogRecord record) {
+        address(record.remote).append(" - - [").append(time(record.timeMillis)).append("] \"");
+        out.append(record.method).append(' ').append(record.uri).append(' ').append(record.protocol).append("\" ");
+        out.append(record.status).append(' ').append(record.bytes).append(" \"");
+        out.append(null == record.host ? "-" : record.host).append("\" ");
+        if (null == record.server) {
+            out.append('-');
+        } else {
+            out.append(record.server.getIp()).append(':').append(record.server.getPort());
+        }
+        out.append(' ');
+        if (record.upstreamNanos < 0) {
+            out.append('-');
+        } else {
+            // milliseconds precision, as nginx does
+            long millis = record.upstreamNanos / 1_000_000;
+            out.append(millis / 1000).append('.');
+            long fraction = millis % 1000;
+            if (fraction < 100) {
+                out.append('0');
+            }
+            if (fraction < 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+        out.append('\n');
+    }
+
+    private StringBuilder address(SocketAddress remote) {
+        if (remote instanceof InetSocketAddress) {
+            return out.append(((InetSocketAddress) remote).getAddress().getHostAddress());
+        }
+        return out.append(null == remote ? "-" : remote.toString());
+    }
+
+    private String time(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return cachedTime;
+    }
+}
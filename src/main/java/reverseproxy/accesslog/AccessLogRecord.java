@@ -0,0 +1,43 @@
+package reverseproxy.accesslog;
+
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.net.SocketAddress;
+
+/**
+ * One preallocated slot of a {@link RecordRing}. It only holds primitives and references to objects the request
+ * already created, so logging allocates nothing; formatting happens on the writer thread.
+ */
+final class AccessLogRecord {
+
+    long timeMillis;
+
+    SocketAddress remote;
+
+    String method;
+
+    String uri;
+
+    String protocol;
+
+    String host;
+
+    int status;
+
+    long bytes;
+
+    // null when no upstream server was chosen
+    Server server;
+
+    // -1 when no upstream response was received
+    long upstreamNanos;
+
+    void clear() {
+        remote = null;
+        method = null;
+        uri = null;
+        protocol = null;
+        host = null;
+        server = null;
+    }
+}
@@ -0,0 +1,75 @@
+package reverseproxy.accesslog;
+
+import io.netty.util.internal.MathUtil;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single producer single consumer ring of access log records. The producer is one event loop and the
+ * consumer is the writer thread, so both ends move with ordered stores and nobody ever blocks: a full ring makes
+ * the producer drop the record and count it.
+ */
+final class RecordRing {
+
+    private final AccessLogRecord[] records;
+
+    private final int mask;
+
+    // next slot to read, written by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // next slot to write, written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // written by the producer
+    private final AtomicLong dropped = new AtomicLong();
+
+    // producer's view of head, refreshed only when the ring looks full
+    private long headCache;
+
+    RecordRing(int capacity) {
+        int size = MathUtil.safeFindNextPositivePowerOfTwo(capacity);
+        records = new AccessLogRecord[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new AccessLogRecord();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side: the free slot to fill before {@link #publish()}, null if the ring is full.
+     */
+    AccessLogRecord claim() {
+        long t = tail.get();
+        if (t - headCache >= records.length && t - (headCache = head.get()) >= records.length) {
+            dropped.lazySet(dropped.get() + 1);
+            return null;
+        }
+        return records[(int) t & mask];
+    }
+
+    void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * Consumer side: hands every published record to the formatter and frees the slots.
+     *
+     * @return the number of records drained
+     */
+    int drain(AccessLogFormatter formatter) {
+        long h = head.get();
+        long t = tail.get();
+        for (long i = h; i < t; i++) {
+            AccessLogRecord record = records[(int) i & mask];
+            formatter.format(record);
+            record.clear();
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
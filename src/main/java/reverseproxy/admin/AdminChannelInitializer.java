@@ -0,0 +1,25 @@
+package reverseproxy.admin;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import reverseproxy.reload.ConfigReloader;
+
+public class AdminChannelInitializer extends ChannelInitializer<Channel> {
+
+    private final AdminHandler adminHandler;
+
+    public AdminChannelInitializer(ConfigReloader reloader) {
+        this.adminHandler = new AdminHandler(reloader);
+    }
+
+    @Override
+    protected void initChannel(Channel ch) throws Exception {
+        ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast(new HttpServerCodec());
+        pipeline.addLast(new HttpObjectAggregator(64 * 1024));
+        pipeline.addLast(adminHandler);
+    }
+}
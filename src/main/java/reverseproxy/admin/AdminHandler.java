@@ -0,0 +1,105 @@
+package reverseproxy.admin;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.metrics.Metrics;
+import reverseproxy.reload.ConfigReloader;
+
+import java.util.concurrent.CompletionException;
+
+/**
+ * Serves the admin endpoints, {@code GET /metrics} in the Prometheus text format and {@code POST /reload}, which
+ * answers once the config is reloaded or with the reason it was rejected.
+ */
+@ChannelHandler.Sharable
+public class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdminHandler.class);
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // null when the config was not read from a file
+    private final ConfigReloader reloader;
+
+    public AdminHandler(ConfigReloader reloader) {
+        this.reloader = reloader;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+        String path = request.uri();
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        FullHttpResponse response;
+        if ("/metrics".equals(path) && HttpMethod.GET.equals(request.method())) {
+            StringBuilder body = new StringBuilder(16 * 1024);
+            Metrics.writeTo(body);
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    ByteBufUtil.writeUtf8(ctx.alloc(), body));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, PROMETHEUS_CONTENT_TYPE);
+        } else if ("/reload".equals(path) && HttpMethod.POST.equals(request.method()) && null != reloader) {
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            // parsed and compiled on the reload thread, the answer is written back on this one
+            reloader.reload().whenComplete((ignored, cause) -> ctx.executor().execute(() ->
+                    respond(ctx, reloaded(cause), keepAlive)));
+            return;
+        } else {
+            response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        }
+        respond(ctx, response, HttpUtil.isKeepAlive(request));
+    }
+
+    private static FullHttpResponse reloaded(Throwable cause) {
+        if (null == cause) {
+            return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        }
+        if (cause instanceof CompletionException && null != cause.getCause()) {
+            cause = cause.getCause();
+        }
+        StringBuilder reason = new StringBuilder().append(cause.getMessage());
+        for (Throwable c = cause.getCause(); null != c; c = c.getCause()) {
+            reason.append(": ").append(c.getMessage());
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.UNPROCESSABLE_ENTITY,
+                Unpooled.copiedBuffer(reason.append('\n'), CharsetUtil.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+        return response;
+    }
+
+    private static void respond(ChannelHandlerContext ctx, FullHttpResponse response, boolean keepAlive) {
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response, ctx.voidPromise());
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error(String.format("admin channel[%s] exceptionCaught", ctx.channel()), cause);
+        ctx.close();
+    }
+}
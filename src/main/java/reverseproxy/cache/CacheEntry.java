@@ -0,0 +1,148 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stored response. The body lives in a pooled direct buffer owned by the cache, every hit sends a retained
+ * duplicate of it so readers never copy and never block the eviction that releases it.
+ * <p>
+ * The entry counts its own references: the cache holds one and a reader holds another while it duplicates the
+ * body. The body can not be checked after the cache released it, a freed pooled buffer is recycled and may
+ * already be a live allocation of someone else.
+ */
+final class CacheEntry {
+
+    final String key;
+
+    final String primary;
+
+    // lower case names of the request headers the response varies on, empty if none
+    final String[] vary;
+
+    final int size;
+
+    final long expiresAt;
+
+    final HttpResponseStatus status;
+
+    final HttpHeaders headers;
+
+    final ByteBuf body;
+
+    final long storedAt;
+
+    // seconds the response spent in caches before reaching this one
+    final long initialAge;
+
+    // segmented LRU links, guarded by the cache's eviction lock
+    CacheEntry prev;
+
+    CacheEntry next;
+
+    boolean protectedSegment;
+
+    boolean removed;
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    CacheEntry(String key, String primary, String[] vary, HttpResponseStatus status, HttpHeaders headers,
+               ByteBuf body, long storedAt, long initialAge, long expiresAt) {
+        this.key = key;
+        this.primary = primary;
+        this.vary = vary;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.storedAt = storedAt;
+        this.initialAge = initialAge;
+        this.expiresAt = expiresAt;
+        this.size = body.capacity() + key.length() + headerSize(headers);
+    }
+
+    // a sentinel of the segment lists
+    CacheEntry() {
+        this.key = null;
+        this.primary = null;
+        this.vary = null;
+        this.status = null;
+        this.headers = null;
+        this.body = null;
+        this.storedAt = 0;
+        this.initialAge = 0;
+        this.expiresAt = Long.MAX_VALUE;
+        this.size = 0;
+        this.prev = this;
+        this.next = this;
+    }
+
+    boolean isExpired(long nowMillis) {
+        return nowMillis >= expiresAt;
+    }
+
+    /**
+     * @return a response sharing the stored body, null if the entry was evicted meanwhile
+     */
+    FullHttpResponse response(long nowMillis) {
+        if (!tryRetain()) {
+            return null;
+        }
+        ByteBuf content;
+        try {
+            content = body.retainedDuplicate();
+        } finally {
+            release();
+        }
+        return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content,
+                headers(headers, storedAt, initialAge, nowMillis), EmptyHttpHeaders.INSTANCE);
+    }
+
+    /**
+     * @return a copy of the stored headers with the current Age
+     */
+    static HttpHeaders headers(HttpHeaders stored, long storedAt, long initialAge, long nowMillis) {
+        HttpHeaders headers = new DefaultHttpHeaders(false).set(stored);
+        headers.set(HttpHeaderNames.AGE, initialAge + TimeUnit.MILLISECONDS.toSeconds(nowMillis - storedAt));
+        return headers;
+    }
+
+    private boolean tryRetain() {
+        for (;;) {
+            int refs = this.refs.get();
+            if (refs <= 0) {
+                return false;
+            }
+            if (this.refs.compareAndSet(refs, refs + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops the cache's reference, the body is released once no reader is duplicating it.
+     */
+    void release() {
+        if (0 == refs.decrementAndGet()) {
+            body.release();
+        }
+    }
+
+    private static int headerSize(HttpHeaders headers) {
+        int size = 0;
+        for (Entry<String, String> header : headers) {
+            size += header.getKey().length() + header.getValue().length() + 4;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,228 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A request that missed the cache and whose response may be stored once the upstream answers. A streamed
+ * response is collected chunk by chunk between {@link #begin} and {@link #finish}, on the upstream's event loop.
+ * <p>
+ * Identical misses are coalesced: the first one fetches and the others, from any event loop, {@link #join} it and
+ * get the same response sharing its buffers. Waiters fall back to their own fetch when the response can not be
+ * shared, the fetch fails, or it takes longer than {@code lock_timeout}.
+ */
+public final class CacheFill {
+
+    private final ResponseCache cache;
+
+    private final String primary;
+
+    // the key the request was looked up with, identical misses share it
+    private final String key;
+
+    // the Vary header of the response picks the values that end up in the key
+    private final HttpHeaders requestHeaders;
+
+    // the streamed response being collected
+    private HttpResponse response;
+
+    private CompositeByteBuf body;
+
+    // requests waiting for this fetch, guarded by this; null once the fetch is settled
+    private List<Waiter> waiters = new ArrayList<>(2);
+
+    private ScheduledFuture<?> lockTimeout;
+
+    CacheFill(ResponseCache cache, String primary, String key, HttpHeaders requestHeaders) {
+        this.cache = cache;
+        this.primary = primary;
+        this.key = key;
+        this.requestHeaders = requestHeaders;
+    }
+
+    /**
+     * Waits for the fetch of an identical request in flight, or makes this request the one others wait for.
+     *
+     * @param eventLoop the event loop of the request, {@code then} is called on it
+     * @param then      gets the shared response, or null when the request has to be fetched on its own
+     * @return false if this request has to fetch, {@code then} is never called
+     */
+    public boolean join(EventLoop eventLoop, Consumer<FullHttpResponse> then) {
+        if (cache.lockTimeoutMillis() <= 0) {
+            return false;
+        }
+        Waiter waiter = new Waiter(eventLoop, requestHeaders, then);
+        for (;;) {
+            CacheFill leader = cache.inFlight.putIfAbsent(key, this);
+            if (null == leader) {
+                // bounds the wait of everyone joining, and frees the key if this fetch is never settled
+                lockTimeout = eventLoop.schedule(() -> settle(null, null), cache.lockTimeoutMillis(),
+                        TimeUnit.MILLISECONDS);
+                return false;
+            }
+            if (leader.add(waiter)) {
+                return true;
+            }
+            // settled meanwhile
+            cache.inFlight.remove(key, leader);
+        }
+    }
+
+    /**
+     * Stores the response if it is cacheable, must be called before the response is written or modified.
+     */
+    public void complete(FullHttpResponse response) {
+        cache.store(primary, requestHeaders, response, response.content());
+        settle(response, response.content());
+    }
+
+    /**
+     * Starts collecting a streamed response, must be called before its headers are written or modified.
+     *
+     * @return false if the response can not be stored, nothing is collected then
+     */
+    public boolean begin(HttpResponse response) {
+        if (!cache.storable(response)) {
+            abort();
+            return false;
+        }
+        this.response = new DefaultHttpResponse(response.protocolVersion(), response.status(),
+                response.headers().copy());
+        this.body = PooledByteBufAllocator.DEFAULT.compositeDirectBuffer(Integer.MAX_VALUE);
+        return true;
+    }
+
+    /**
+     * Adds a chunk of the streamed response, its buffer is retained rather than copied.
+     *
+     * @return false if the response grew too large to store, what was collected is released then
+     */
+    public boolean append(ByteBuf content) {
+        if (!content.isReadable()) {
+            return true;
+        }
+        if (body.readableBytes() + content.readableBytes() > cache.maxStoredSize()) {
+            abort();
+            return false;
+        }
+        body.addComponent(true, content.retainedSlice());
+        return true;
+    }
+
+    /**
+     * Stores the collected response.
+     */
+    public void finish() {
+        try {
+            cache.store(primary, requestHeaders, response, body);
+            settle(response, body);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Gives up the response, nothing is stored and waiters fetch on their own.
+     */
+    public void abort() {
+        release();
+        settle(null, null);
+    }
+
+    private void release() {
+        if (null != body) {
+            body.release();
+            body = null;
+        }
+        response = null;
+    }
+
+    private synchronized boolean add(Waiter waiter) {
+        if (null == waiters) {
+            return false;
+        }
+        waiters.add(waiter);
+        return true;
+    }
+
+    // hands the response to the waiters once, null sends them to the upstream
+    private void settle(HttpResponse response, ByteBuf content) {
+        List<Waiter> waiters;
+        synchronized (this) {
+            waiters = this.waiters;
+            this.waiters = null;
+        }
+        if (null == waiters) {
+            return;
+        }
+        if (null != lockTimeout) {
+            lockTimeout.cancel(false);
+            cache.inFlight.remove(key, this);
+        }
+        if (waiters.isEmpty()) {
+            return;
+        }
+        HttpHeaders headers = null;
+        String variant = null;
+        String[] vary = null;
+        if (null != response && CachePolicy.NOT_CACHEABLE != CachePolicy.freshness(response,
+                System.currentTimeMillis())) {
+            headers = CachePolicy.storedHeaders(response.headers(), content.readableBytes());
+            vary = ResponseCache.vary(response.headers());
+            variant = CacheKeys.variant(primary, vary, requestHeaders);
+        }
+        for (Waiter waiter : waiters) {
+            FullHttpResponse shared = null;
+            // a waiter that differs in a header the response varies on needs its own response
+            if (null != headers && variant.equals(CacheKeys.variant(primary, vary, waiter.requestHeaders))) {
+                shared = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, response.status(),
+                        content.retainedDuplicate(), new DefaultHttpHeaders(false).set(headers),
+                        EmptyHttpHeaders.INSTANCE);
+            }
+            cache.coalesced(null != shared);
+            waiter.resume(shared);
+        }
+    }
+
+    private static final class Waiter {
+
+        private final EventLoop eventLoop;
+
+        private final HttpHeaders requestHeaders;
+
+        private final Consumer<FullHttpResponse> then;
+
+        Waiter(EventLoop eventLoop, HttpHeaders requestHeaders, Consumer<FullHttpResponse> then) {
+            this.eventLoop = eventLoop;
+            this.requestHeaders = requestHeaders;
+            this.then = then;
+        }
+
+        void resume(FullHttpResponse response) {
+            try {
+                eventLoop.execute(() -> then.accept(response));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                ReferenceCountUtil.release(response);
+            }
+        }
+    }
+}
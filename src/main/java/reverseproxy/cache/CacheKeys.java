@@ -0,0 +1,125 @@
+package reverseproxy.cache;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.Locale;
+
+/**
+ * Cache keys: the primary key is the lower case host and the normalized URI, a response with a Vary header is
+ * stored under the primary key followed by the request's values of the varying headers.
+ */
+final class CacheKeys {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private CacheKeys() {
+    }
+
+    static String primary(HttpRequest request) {
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        return (null == host ? "" : host.toLowerCase(Locale.ROOT)) + ' ' + normalize(request.uri());
+    }
+
+    /**
+     * @param vary lower case header names, null or empty when the response does not vary
+     */
+    static String variant(String primary, String[] vary, HttpHeaders requestHeaders) {
+        if (null == vary || 0 == vary.length) {
+            return primary;
+        }
+        StringBuilder key = new StringBuilder(primary.length() + 32 * vary.length).append(primary);
+        for (String name : vary) {
+            key.append('\n').append(name).append(':');
+            // repeated headers are joined, so a: x, a: y and a: x,y vary the same way
+            boolean first = true;
+            for (String value : requestHeaders.getAll(name)) {
+                if (!first) {
+                    key.append(',');
+                }
+                key.append(value.trim());
+                first = false;
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Drops the fragment, an absolute form's scheme and authority, resolves dot segments and repeated slashes,
+     * decodes percent-encoded unreserved characters and upper cases the remaining escapes. The query is kept
+     * as is since its order can matter to the backend.
+     */
+    static String normalize(String uri) {
+        int end = uri.indexOf('#');
+        if (end >= 0) {
+            uri = uri.substring(0, end);
+        }
+        int scheme = uri.indexOf("://");
+        if (scheme > 0 && scheme < uri.indexOf('/') + 1) {
+            int path = uri.indexOf('/', scheme + 3);
+            uri = path < 0 ? "/" : uri.substring(path);
+        }
+        int q = uri.indexOf('?');
+        String path = q < 0 ? uri : uri.substring(0, q);
+        String query = q < 0 ? null : uri.substring(q);
+
+        StringBuilder out = new StringBuilder(uri.length());
+        int segmentStart = 0;
+        int i = 0;
+        // builds the path segment by segment, out never ends with a slash between segments
+        while (i <= path.length()) {
+            if (i == path.length() || '/' == path.charAt(i)) {
+                String segment = decodeUnreserved(path.substring(segmentStart, i));
+                if (".".equals(segment)) {
+                    // skip
+                } else if ("..".equals(segment)) {
+                    int slash = out.lastIndexOf("/");
+                    out.setLength(Math.max(0, slash));
+                } else if (!segment.isEmpty()) {
+                    out.append('/').append(segment);
+                }
+                segmentStart = i + 1;
+            }
+            i++;
+        }
+        if (0 == out.length() || path.endsWith("/") || path.endsWith("/.") || path.endsWith("/..")) {
+            out.append('/');
+        }
+        if (null != query) {
+            out.append(query);
+        }
+        return out.toString();
+    }
+
+    private static String decodeUnreserved(String segment) {
+        if (segment.indexOf('%') < 0) {
+            return segment;
+        }
+        StringBuilder out = new StringBuilder(segment.length());
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            int hi;
+            int lo;
+            if ('%' == c && i + 2 < segment.length()
+                    && (hi = Character.digit(segment.charAt(i + 1), 16)) >= 0
+                    && (lo = Character.digit(segment.charAt(i + 2), 16)) >= 0) {
+                char decoded = (char) (hi << 4 | lo);
+                if (isUnreserved(decoded)) {
+                    out.append(decoded);
+                } else {
+                    out.append('%').append(HEX[hi]).append(HEX[lo]);
+                }
+                i += 2;
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || '-' == c || '.' == c || '_' == c || '~' == c;
+    }
+}
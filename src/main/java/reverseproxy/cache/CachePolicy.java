@@ -0,0 +1,195 @@
+package reverseproxy.cache;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AsciiString;
+
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What may be served from and stored into a shared cache, a subset of RFC 7234: only GET without credentials,
+ * freshness from {@code s-maxage}, {@code max-age} or {@code Expires}, no heuristic freshness and no
+ * revalidation.
+ */
+final class CachePolicy {
+
+    static final long NOT_CACHEABLE = -1;
+
+    // HttpHeaderNames.KEEP_ALIVE is deprecated, the header is still sent by HTTP/1.0 servers
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    private CachePolicy() {
+    }
+
+    /**
+     * @return a copy of the response headers without the hop-by-hop ones (RFC 7230 section 6.1), with the
+     * length of the stored body
+     */
+    static HttpHeaders storedHeaders(HttpHeaders headers, int contentLength) {
+        HttpHeaders stored = new DefaultHttpHeaders(false).set(headers);
+        // headers named by Connection only apply to the connection they came on
+        for (String connection : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String name : connection.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    stored.remove(name.trim());
+                }
+            }
+        }
+        stored.remove(HttpHeaderNames.CONNECTION);
+        stored.remove(KEEP_ALIVE);
+        stored.remove(PROXY_CONNECTION);
+        stored.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        stored.remove(HttpHeaderNames.TRAILER);
+        stored.remove(HttpHeaderNames.UPGRADE);
+        stored.setInt(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        return stored;
+    }
+
+    /**
+     * @return whether the request may be answered from the cache
+     */
+    static boolean lookup(HttpRequest request) {
+        if (!storable(request)) {
+            return false;
+        }
+        HttpHeaders headers = request.headers();
+        String pragma = headers.get(HttpHeaderNames.PRAGMA);
+        return !hasDirective(headers, "no-cache") && !(null != pragma && pragma.toLowerCase(Locale.ROOT)
+                .contains("no-cache"));
+    }
+
+    /**
+     * @return whether the response to the request may be stored, a no-cache request still refreshes the cache
+     */
+    static boolean storable(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        return HttpMethod.GET.equals(request.method()) && !headers.contains(HttpHeaderNames.AUTHORIZATION)
+                && !hasDirective(headers, "no-store");
+    }
+
+    /**
+     * @return whether the request may change the resource, so what is stored for its URI is stale
+     */
+    static boolean invalidates(HttpRequest request) {
+        HttpMethod method = request.method();
+        return !HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)
+                && !HttpMethod.OPTIONS.equals(method) && !HttpMethod.TRACE.equals(method);
+    }
+
+    /**
+     * @return the seconds a response already spent in caches upstream
+     */
+    static long age(HttpHeaders headers) {
+        return seconds(headers.get(HttpHeaderNames.AGE));
+    }
+
+    /**
+     * @return how long the response stays fresh from now in milliseconds, {@link #NOT_CACHEABLE} if it must not be
+     * stored
+     */
+    static long freshness(HttpResponse response, long nowMillis) {
+        switch (response.status().code()) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 404:
+            case 410:
+                break;
+            default:
+                return NOT_CACHEABLE;
+        }
+        HttpHeaders headers = response.headers();
+        if (headers.contains(HttpHeaderNames.SET_COOKIE)) {
+            return NOT_CACHEABLE;
+        }
+        String vary = headers.get(HttpHeaderNames.VARY);
+        if (null != vary && vary.contains("*")) {
+            return NOT_CACHEABLE;
+        }
+
+        long maxAge = -1;
+        long sMaxAge = -1;
+        for (String cacheControl : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            for (String directive : cacheControl.split(",")) {
+                int eq = directive.indexOf('=');
+                String name = (eq < 0 ? directive : directive.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+                switch (name) {
+                    case "no-store":
+                    case "no-cache":
+                    case "private":
+                        return NOT_CACHEABLE;
+                    case "max-age":
+                        maxAge = seconds(directive, eq);
+                        break;
+                    case "s-maxage":
+                        sMaxAge = seconds(directive, eq);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        long freshness;
+        if (sMaxAge >= 0) {
+            freshness = TimeUnit.SECONDS.toMillis(sMaxAge);
+        } else if (maxAge >= 0) {
+            freshness = TimeUnit.SECONDS.toMillis(maxAge);
+        } else {
+            // an invalid Expires means already expired
+            Date expires = date(headers, HttpHeaderNames.EXPIRES);
+            if (null == expires) {
+                return NOT_CACHEABLE;
+            }
+            Date date = date(headers, HttpHeaderNames.DATE);
+            freshness = expires.getTime() - (null == date ? nowMillis : date.getTime());
+        }
+        // the time it already spent in caches upstream
+        freshness -= TimeUnit.SECONDS.toMillis(age(headers));
+        return freshness > 0 ? freshness : NOT_CACHEABLE;
+    }
+
+    private static boolean hasDirective(HttpHeaders headers, String directive) {
+        for (String cacheControl : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+            if (cacheControl.toLowerCase(Locale.ROOT).contains(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long seconds(String directive, int eq) {
+        if (eq < 0) {
+            return -1;
+        }
+        return seconds(directive.substring(eq + 1).trim().replace("\"", ""));
+    }
+
+    // delta-seconds, 0 when absent or invalid
+    private static long seconds(String value) {
+        if (null == value) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Date date(HttpHeaders headers, CharSequence name) {
+        String value = headers.get(name);
+        return null == value ? null : DateFormatter.parseHttpDate(value);
+    }
+}
@@ -0,0 +1,384 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.compression.Compression;
+import reverseproxy.conf.ReverseProxyConfig.DiskCacheConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Second tier of the {@link ResponseCache}: bodies in memory mapped segment files, headers and offsets in an
+ * in-memory index. A single writer thread appends responses the memory tier evicts or can not hold, so event
+ * loops never wait for the disk; hits are sent as file regions, with sendfile where the transport supports it.
+ * <p>
+ * Space is reclaimed a segment at a time. The writer compacts a segment whose live bytes fall under half of it by
+ * moving its fresh entries to the active segment, and when the files reach {@code size} the oldest segment is
+ * dropped whole. An entry hit {@link #PROMOTE_HITS} times on disk moves to the memory tier if it fits there.
+ */
+public final class DiskCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskCache.class);
+
+    static final int PROMOTE_HITS = 2;
+
+    private static final long COMPACT_INTERVAL_MILLIS = 1000;
+
+    private static final String SUFFIX = ".seg";
+
+    private final ResponseCache memory;
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final int maxObjectSize;
+
+    // bytes of responses queued for the writer, stores beyond a segment's worth are dropped
+    private final AtomicLong pending = new AtomicLong();
+
+    private final ConcurrentHashMap<String, DiskEntry> entries = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService writer;
+
+    // sealed segments oldest first and the one being appended to, only used by the writer thread
+    private final ArrayDeque<Segment> sealed = new ArrayDeque<>();
+
+    private Segment active;
+
+    private long nextSegment;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder stores = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder compactions = new LongAdder();
+
+    DiskCache(ResponseCache memory, DiskCacheConfig config) throws IOException {
+        this.memory = memory;
+        this.directory = new File(config.path());
+        this.segmentSize = config.segmentSize() * 1024 * 1024;
+        this.maxSegments = config.size() / config.segmentSize();
+        this.maxObjectSize = config.maxObjectSize() * 1024;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create " + directory);
+        }
+        // the index only lives in memory, segments of a previous run can not be read back
+        File[] stale = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (null != stale) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        this.writer = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("ReverseProxy-DiskCache-Writer", true));
+        this.writer.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    int maxObjectSize() {
+        return maxObjectSize;
+    }
+
+    /**
+     * @return the stored response, null on a miss
+     */
+    HttpResponse lookup(String key, long nowMillis) {
+        return lookup(key, nowMillis, null);
+    }
+
+    /**
+     * @param compression when not null and the response is compressible, the writer makes its gzip variant
+     * @return the stored response, null on a miss
+     */
+    HttpResponse lookup(String key, long nowMillis, Compression compression) {
+        DiskEntry entry = entries.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.isExpired(nowMillis)) {
+            remove(entry);
+            return null;
+        }
+        FileRegion body = entry.segment.region(entry.offset, entry.length);
+        if (null == body) {
+            return null;
+        }
+        hits.increment();
+        if (PROMOTE_HITS == entry.hits.incrementAndGet() && entry.length <= memory.maxObjectSize()) {
+            execute(() -> promote(entry));
+        }
+        if (null != compression && !entry.gzipQueued && compression.compressible(entry.headers, entry.length)) {
+            entry.gzipQueued = true;
+            execute(() -> gzip(entry, compression));
+        }
+        return new DiskResponse(entry.status,
+                CacheEntry.headers(entry.headers, entry.storedAt, entry.initialAge, nowMillis), body);
+    }
+
+    /**
+     * Queues a response for the writer, which releases {@code body} once copied.
+     */
+    void store(String key, String primary, String[] vary, HttpResponseStatus status, HttpHeaders headers,
+               ByteBuf body, long storedAt, long initialAge, long expiresAt) {
+        int length = body.readableBytes();
+        if (length > maxObjectSize || pending.addAndGet(length) > segmentSize) {
+            pending.addAndGet(-length);
+            dropped.increment();
+            body.release();
+            return;
+        }
+        boolean queued = execute(() -> {
+            try {
+                Segment segment = reserve(length);
+                if (null != segment) {
+                    DiskEntry entry = new DiskEntry(key, primary, vary, status, headers, storedAt, initialAge,
+                            expiresAt, segment, segment.append(body, length), length, new AtomicInteger());
+                    add(entry);
+                    DiskEntry old = entries.put(key, entry);
+                    if (null != old) {
+                        discard(old);
+                    }
+                    stores.increment();
+                }
+            } finally {
+                pending.addAndGet(-length);
+                body.release();
+            }
+        });
+        if (!queued) {
+            pending.addAndGet(-length);
+            body.release();
+        }
+    }
+
+    /**
+     * Removes what is stored under the key, the memory tier got a newer response.
+     */
+    void remove(String key) {
+        DiskEntry entry = entries.get(key);
+        if (null != entry) {
+            remove(entry);
+        }
+    }
+
+    void close() {
+        writer.shutdownNow();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        entries.clear();
+        // responses being sent keep their segments until written
+        for (Segment segment : sealed) {
+            segment.release();
+        }
+        sealed.clear();
+        if (null != active) {
+            active.release();
+            active = null;
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long stores() {
+        return stores.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public int entries() {
+        return entries.size();
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            writer.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // closing
+            return false;
+        }
+    }
+
+    private void remove(DiskEntry entry) {
+        if (entries.remove(entry.key, entry)) {
+            discard(entry);
+        }
+    }
+
+    // the entry left the index
+    private void discard(DiskEntry entry) {
+        entry.removed = true;
+        entry.segment.live.addAndGet(-entry.length);
+        bytes.addAndGet(-entry.length);
+    }
+
+    // writer thread
+    private void add(DiskEntry entry) {
+        entry.segment.entries.add(entry);
+        entry.segment.live.addAndGet(entry.length);
+        bytes.addAndGet(entry.length);
+    }
+
+    /**
+     * @return the segment with room for {@code length} bytes at its end, null if no segment file can be created
+     */
+    private Segment reserve(int length) {
+        if (null != active && active.remaining() >= length) {
+            return active;
+        }
+        if (null != active) {
+            sealed.addLast(active);
+        }
+        active = null;
+        // one segment is kept free for compaction
+        while (!sealed.isEmpty() && sealed.size() + 2 > maxSegments) {
+            evict(sealed.pollFirst());
+        }
+        try {
+            active = Segment.create(new File(directory, String.format("%08d%s", nextSegment++, SUFFIX)),
+                    segmentSize);
+        } catch (IOException e) {
+            logger.error("create disk cache segment fail", e);
+        }
+        return active;
+    }
+
+    private void evict(Segment segment) {
+        for (DiskEntry entry : segment.entries) {
+            if (!entry.removed && entries.remove(entry.key, entry)) {
+                discard(entry);
+                evictions.increment();
+            }
+        }
+        segment.release();
+    }
+
+    // writer thread, drops expired entries and rewrites the segments that are mostly dead
+    private void compact() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Segment> candidates = new ArrayList<>();
+            for (Segment segment : sealed) {
+                for (DiskEntry entry : segment.entries) {
+                    if (!entry.removed && entry.isExpired(now)) {
+                        remove(entry);
+                    }
+                }
+                if (segment.live.get() < segment.capacity / 2) {
+                    candidates.add(segment);
+                }
+            }
+            for (Segment segment : candidates) {
+                sealed.remove(segment);
+                for (DiskEntry entry : segment.entries) {
+                    if (entry.removed) {
+                        continue;
+                    }
+                    Segment target = reserve(entry.length);
+                    if (null == target) {
+                        break;
+                    }
+                    DiskEntry moved = entry.moveTo(target, target.append(segment, entry.offset, entry.length));
+                    if (entries.replace(entry.key, entry, moved)) {
+                        discard(entry);
+                        add(moved);
+                    } else {
+                        // removed meanwhile, the copy is dead space
+                        moved.removed = true;
+                        target.entries.add(moved);
+                    }
+                }
+                segment.release();
+                compactions.increment();
+            }
+        } catch (RuntimeException e) {
+            logger.error("disk cache compaction fail", e);
+        }
+    }
+
+    // writer thread
+    private void promote(DiskEntry entry) {
+        if (entry.removed || !entry.segment.tryRetain()) {
+            return;
+        }
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(entry.length, entry.length);
+        try {
+            entry.segment.copyTo(entry.offset, entry.length, body);
+        } finally {
+            entry.segment.release();
+        }
+        remove(entry);
+        memory.promote(new CacheEntry(entry.key, entry.primary, entry.vary, entry.status, entry.headers, body,
+                entry.storedAt, entry.initialAge, entry.expiresAt));
+    }
+
+    // writer thread, compresses the body once so the event loops do not for every hit
+    private void gzip(DiskEntry entry, Compression compression) {
+        if (entry.removed || memory.hasGzipVariant(entry.key) || !entry.segment.tryRetain()) {
+            return;
+        }
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(entry.length, entry.length);
+        byte[] gzipped;
+        try {
+            entry.segment.copyTo(entry.offset, entry.length, body);
+            gzipped = compression.gzip(body);
+        } finally {
+            entry.segment.release();
+            body.release();
+        }
+        memory.storeGzipVariant(entry.key, entry.primary, entry.status, entry.headers, gzipped, entry.storedAt,
+                entry.initialAge, entry.expiresAt);
+        compression.compressedVariant();
+    }
+
+    boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+}
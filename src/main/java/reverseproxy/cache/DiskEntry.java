@@ -0,0 +1,71 @@
+package reverseproxy.cache;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index entry of a response stored in a disk segment, the headers stay in memory.
+ */
+final class DiskEntry {
+
+    final String key;
+
+    final String primary;
+
+    final String[] vary;
+
+    final HttpResponseStatus status;
+
+    final HttpHeaders headers;
+
+    final long storedAt;
+
+    final long initialAge;
+
+    final long expiresAt;
+
+    final Segment segment;
+
+    final int offset;
+
+    final int length;
+
+    // disk hits, the entry moves to memory when they reach DiskCache.PROMOTE_HITS
+    final AtomicInteger hits;
+
+    volatile boolean removed;
+
+    // the gzip variant was queued for the writer, set without a lock since queuing twice is harmless
+    volatile boolean gzipQueued;
+
+    DiskEntry(String key, String primary, String[] vary, HttpResponseStatus status, HttpHeaders headers,
+              long storedAt, long initialAge, long expiresAt, Segment segment, int offset, int length,
+              AtomicInteger hits) {
+        this.key = key;
+        this.primary = primary;
+        this.vary = vary;
+        this.status = status;
+        this.headers = headers;
+        this.storedAt = storedAt;
+        this.initialAge = initialAge;
+        this.expiresAt = expiresAt;
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        this.hits = hits;
+    }
+
+    /**
+     * @return the same response at another place, compaction moves entries this way
+     */
+    DiskEntry moveTo(Segment segment, int offset) {
+        return new DiskEntry(key, primary, vary, status, headers, storedAt, initialAge, expiresAt, segment, offset,
+                length, hits);
+    }
+
+    boolean isExpired(long nowMillis) {
+        return nowMillis >= expiresAt;
+    }
+}
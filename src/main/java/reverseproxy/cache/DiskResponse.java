@@ -0,0 +1,48 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * A response served from the disk cache. Its body is a file region to be written after it, followed by the last
+ * content; it is released by the write like any message.
+ */
+public final class DiskResponse extends DefaultHttpResponse {
+
+    private final FileRegion body;
+
+    DiskResponse(HttpResponseStatus status, HttpHeaders headers, FileRegion body) {
+        super(HttpVersion.HTTP_1_1, status, headers);
+        this.body = body;
+    }
+
+    public FileRegion body() {
+        return body;
+    }
+
+    public long contentLength() {
+        return body.count();
+    }
+
+    /**
+     * Copies the body into a buffer for a channel that can not write file regions, the body is released.
+     */
+    public FullHttpResponse toFullHttpResponse(ByteBufAllocator alloc) {
+        ByteBuf content = alloc.directBuffer((int) body.count());
+        try {
+            ((Segment.SegmentRegion) body).copyTo(content);
+        } finally {
+            body.release();
+        }
+        return new DefaultFullHttpResponse(protocolVersion(), status(), content, headers(),
+                EmptyHttpHeaders.INSTANCE);
+    }
+}
@@ -0,0 +1,575 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.compression.Compression;
+import reverseproxy.conf.ReverseProxyConfig.CacheConfig;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared response cache of the locations that enable {@code cache}, bounded by {@code memory_size} and evicted
+ * by a segmented LRU: new entries start in the probation segment and move to the protected one, at most 80% of the
+ * cache, when hit again, so one pass over many cold URLs can not flush the popular ones.
+ * <p>
+ * Lookups only read the concurrent index. The hits they would move in the segments are buffered per event loop
+ * and applied in batches under the eviction lock, a batch is dropped rather than waited for when the lock is
+ * busy. Stores and evictions take the lock.
+ * <p>
+ * With {@code disk} configured, fresh entries evicted from memory and responses too large for it go to the
+ * {@link DiskCache}, which sends entries hit often enough back.
+ */
+public final class ResponseCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseCache.class);
+
+    private static final int READ_BUFFER_SIZE = 16;
+
+    private static final String[] NO_VARY = new String[0];
+
+    // appended to a key for the gzip variant of its response, header values hold no newlines
+    private static final String GZIP_SUFFIX = "\n" + Compression.GZIP;
+
+    private static volatile ResponseCache current;
+
+    private final long capacity;
+
+    private final long protectedCapacity;
+
+    private final int maxObjectSize;
+
+    // null when there is no disk tier
+    private final DiskCache disk;
+
+    private final long lockTimeoutMillis;
+
+    // the fetches identical misses can wait for, by lookup key
+    final ConcurrentHashMap<String, CacheFill> inFlight = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    // the Vary header names last stored for a primary key, they select the variant a lookup asks for
+    private final ConcurrentHashMap<String, String[]> varyByPrimary = new ConcurrentHashMap<>();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // sentinels of the segments, most recently used first, guarded by the eviction lock
+    private final CacheEntry probation = new CacheEntry();
+
+    private final CacheEntry protectedSegment = new CacheEntry();
+
+    private long protectedBytes;
+
+    // written under the eviction lock
+    private volatile long bytes;
+
+    private final FastThreadLocal<ReadBuffer> readBuffer = new FastThreadLocal<ReadBuffer>() {
+        @Override
+        protected ReadBuffer initialValue() throws Exception {
+            return new ReadBuffer();
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder stores = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder coalesceFallbacks = new LongAdder();
+
+    private ResponseCache(CacheConfig config) throws IOException {
+        this.capacity = config.memorySize() * 1024L * 1024L;
+        this.protectedCapacity = capacity * 80 / 100;
+        this.maxObjectSize = config.maxObjectSize() * 1024;
+        this.lockTimeoutMillis = TimeUnit.SECONDS.toMillis(config.lockTimeout());
+        this.disk = null == config.disk() ? null : new DiskCache(this, config.disk());
+    }
+
+    /**
+     * Creates the cache, does nothing if the config has no cache.
+     */
+    public static void start(CacheConfig config) throws IOException {
+        if (null == config) {
+            return;
+        }
+        current = new ResponseCache(config);
+        logger.info(String.format("response cache of %dMB, objects up to %dKB", config.memorySize(),
+                config.maxObjectSize()));
+        if (null != config.disk()) {
+            logger.info(String.format("disk cache of %dMB in %s, objects up to %dKB", config.disk().size(),
+                    config.disk().path(), config.disk().maxObjectSize()));
+        }
+    }
+
+    /**
+     * @return the cache, null when disabled
+     */
+    public static ResponseCache current() {
+        return current;
+    }
+
+    /**
+     * Drops all entries and frees their buffers, responses being sent keep their own reference.
+     */
+    public static void stop() {
+        ResponseCache cache = current;
+        if (null == cache) {
+            return;
+        }
+        current = null;
+        if (null != cache.disk) {
+            cache.disk.close();
+        }
+        cache.evictionLock.lock();
+        try {
+            for (CacheEntry entry : cache.entries.values()) {
+                cache.unlink(entry, false);
+            }
+            cache.entries.clear();
+        } finally {
+            cache.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return a fresh stored response to the request, a {@link FullHttpResponse} from memory or a
+     * {@link DiskResponse}; null on a miss or if the request must not be served from the cache
+     */
+    public HttpResponse lookup(HttpRequest request) {
+        return lookup(request, null);
+    }
+
+    /**
+     * Like {@link #lookup(HttpRequest)}, but with compression a request that accepts gzip gets the gzip variant of
+     * a compressible response. The variant is made from the response in memory when first asked for and stored
+     * next to it, with the same freshness, so a response is compressed once and not once per hit. A response on
+     * disk is sent as it is while the disk writer makes its variant.
+     */
+    public HttpResponse lookup(HttpRequest request, Compression compression) {
+        if (!CachePolicy.lookup(request)) {
+            return null;
+        }
+        String primary = CacheKeys.primary(request);
+        String key = CacheKeys.variant(primary, varyByPrimary.get(primary), request.headers());
+        long now = System.currentTimeMillis();
+        boolean gzip = null != compression
+                && Compression.acceptsGzip(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        FullHttpResponse response = gzip ? hit(key + GZIP_SUFFIX, now) : null;
+        if (null != response) {
+            return response;
+        }
+        CacheEntry entry = entries.get(key);
+        if (null != entry) {
+            if (entry.isExpired(now)) {
+                remove(entry);
+            } else {
+                response = entry.response(now);
+                if (null != response) {
+                    hits.increment();
+                    recordRead(entry);
+                    if (gzip && compression.compressible(entry.headers, response.content().readableBytes())) {
+                        return gzipVariant(entry, response, compression, now);
+                    }
+                    return response;
+                }
+            }
+        }
+        HttpResponse onDisk = null;
+        if (null != disk) {
+            onDisk = gzip ? disk.lookup(key + GZIP_SUFFIX, now) : null;
+            if (null == onDisk) {
+                onDisk = disk.lookup(key, now, gzip ? compression : null);
+            }
+        }
+        if (null == onDisk) {
+            misses.increment();
+        }
+        return onDisk;
+    }
+
+    // a fresh response from memory, null if there is none
+    private FullHttpResponse hit(String key, long now) {
+        CacheEntry entry = entries.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (entry.isExpired(now)) {
+            remove(entry);
+            return null;
+        }
+        FullHttpResponse response = entry.response(now);
+        if (null != response) {
+            hits.increment();
+            recordRead(entry);
+        }
+        return response;
+    }
+
+    /**
+     * Compresses a response read from the entry, stores the result as the entry's gzip variant and returns it.
+     * Should a newer response replace the entry meanwhile, the variant of the old one lives no longer than the
+     * old one would have.
+     */
+    private FullHttpResponse gzipVariant(CacheEntry entry, FullHttpResponse identity, Compression compression,
+                                         long now) {
+        byte[] gzipped;
+        try {
+            gzipped = compression.gzip(identity.content());
+        } finally {
+            identity.release();
+        }
+        CacheEntry variant = gzipEntry(entry.key, entry.primary, entry.status, entry.headers, gzipped,
+                entry.storedAt, entry.initialAge, entry.expiresAt);
+        FullHttpResponse response = variant.response(now);
+        put(variant);
+        compression.compressedVariant();
+        return response;
+    }
+
+    /**
+     * Stores the gzip variant the disk writer made of a response on disk, in memory if it fits.
+     */
+    void storeGzipVariant(String key, String primary, HttpResponseStatus status, HttpHeaders identity,
+                          byte[] gzipped, long storedAt, long initialAge, long expiresAt) {
+        if (gzipped.length <= maxObjectSize) {
+            promote(gzipEntry(key, primary, status, identity, gzipped, storedAt, initialAge, expiresAt));
+        } else {
+            disk.store(key + GZIP_SUFFIX, primary, NO_VARY, status,
+                    Compression.gzipHeaders(identity, gzipped.length), Unpooled.wrappedBuffer(gzipped), storedAt,
+                    initialAge, expiresAt);
+        }
+    }
+
+    boolean hasGzipVariant(String key) {
+        key += GZIP_SUFFIX;
+        return entries.containsKey(key) || (null != disk && disk.contains(key));
+    }
+
+    private static CacheEntry gzipEntry(String key, String primary, HttpResponseStatus status, HttpHeaders identity,
+                                        byte[] gzipped, long storedAt, long initialAge, long expiresAt) {
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(gzipped.length, gzipped.length);
+        body.writeBytes(gzipped);
+        // the variant has no Vary names of its own, evicting it must not drop the ones of the response
+        return new CacheEntry(key + GZIP_SUFFIX, primary, NO_VARY, status,
+                Compression.gzipHeaders(identity, gzipped.length), body, storedAt, initialAge, expiresAt);
+    }
+
+    /**
+     * @return the fill storing the response to a missed request, null if the response must not be stored; an
+     * unsafe method invalidates what is stored for its URI instead
+     */
+    public CacheFill fill(HttpRequest request) {
+        if (CachePolicy.storable(request)) {
+            String primary = CacheKeys.primary(request);
+            return new CacheFill(this, primary,
+                    CacheKeys.variant(primary, varyByPrimary.get(primary), request.headers()), request.headers());
+        }
+        if (CachePolicy.invalidates(request)) {
+            String primary = CacheKeys.primary(request);
+            // variants of other requests become unreachable and age out
+            varyByPrimary.remove(primary);
+            invalidate(primary);
+            invalidate(primary + GZIP_SUFFIX);
+        }
+        return null;
+    }
+
+    /**
+     * @return whether a streamed response is worth collecting for {@link #store}
+     */
+    boolean storable(HttpResponse response) {
+        return CachePolicy.NOT_CACHEABLE != CachePolicy.freshness(response, System.currentTimeMillis())
+                && HttpUtil.getContentLength(response, 0L) <= maxStoredSize();
+    }
+
+    /**
+     * @return the largest body either tier stores
+     */
+    int maxStoredSize() {
+        return null == disk ? maxObjectSize : Math.max(maxObjectSize, disk.maxObjectSize());
+    }
+
+    int maxObjectSize() {
+        return maxObjectSize;
+    }
+
+    long lockTimeoutMillis() {
+        return lockTimeoutMillis;
+    }
+
+    // a request waited for another's fetch and got its response, or fell back to its own fetch
+    void coalesced(boolean served) {
+        (served ? coalesced : coalesceFallbacks).increment();
+    }
+
+    void store(String primary, HttpHeaders requestHeaders, HttpResponse response, ByteBuf content) {
+        long now = System.currentTimeMillis();
+        long freshness = CachePolicy.freshness(response, now);
+        int length = content.readableBytes();
+        if (CachePolicy.NOT_CACHEABLE == freshness || length > maxStoredSize()) {
+            return;
+        }
+
+        String[] vary = vary(response.headers());
+        if (0 == vary.length) {
+            varyByPrimary.remove(primary);
+        } else {
+            varyByPrimary.put(primary, vary);
+        }
+        HttpHeaders headers = CachePolicy.storedHeaders(response.headers(), length);
+        // computed again when served
+        headers.remove(HttpHeaderNames.AGE);
+        String key = CacheKeys.variant(primary, vary, requestHeaders);
+        long initialAge = CachePolicy.age(response.headers());
+        // the variant of the response replaced is made again from the new one
+        invalidate(key + GZIP_SUFFIX);
+
+        if (length > maxObjectSize) {
+            CacheEntry old = entries.get(key);
+            if (null != old) {
+                remove(old);
+            }
+            disk.store(key, primary, vary, response.status(), headers, content.retainedDuplicate(), now,
+                    initialAge, now + freshness);
+            return;
+        }
+        if (null != disk) {
+            disk.remove(key);
+        }
+        // an exact copy, the aggregated content is a composite of partly filled buffers
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+        body.writeBytes(content, content.readerIndex(), length);
+        put(new CacheEntry(key, primary, vary, response.status(), headers, body, now, initialAge,
+                now + freshness));
+        stores.increment();
+    }
+
+    /**
+     * Moves an entry hit often on disk to memory, unless memory got a newer response meanwhile.
+     */
+    void promote(CacheEntry entry) {
+        evictionLock.lock();
+        try {
+            if (entries.containsKey(entry.key)) {
+                entry.release();
+                return;
+            }
+            put(entry);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the disk tier, null if not configured
+     */
+    public DiskCache disk() {
+        return disk;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long stores() {
+        return stores.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    public long coalesceFallbacks() {
+        return coalesceFallbacks.sum();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public int entries() {
+        return entries.size();
+    }
+
+    private void put(CacheEntry entry) {
+        evictionLock.lock();
+        try {
+            drain(readBuffer.get());
+            CacheEntry old = entries.put(entry.key, entry);
+            if (null != old) {
+                unlink(old, false);
+            }
+            linkFirst(probation, entry);
+            bytes += entry.size;
+            long now = System.currentTimeMillis();
+            while (bytes > capacity) {
+                CacheEntry victim = probation.prev != probation ? probation.prev : protectedSegment.prev;
+                entries.remove(victim.key, victim);
+                boolean demote = null != disk && !victim.isExpired(now);
+                if (demote) {
+                    disk.store(victim.key, victim.primary, victim.vary, victim.status, victim.headers,
+                            victim.body.retainedDuplicate(), victim.storedAt, victim.initialAge, victim.expiresAt);
+                }
+                // the variants stay reachable on disk
+                unlink(victim, !demote);
+                evictions.increment();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // drops what is stored under the key in both tiers
+    private void invalidate(String key) {
+        CacheEntry entry = entries.get(key);
+        if (null != entry) {
+            remove(entry);
+        }
+        if (null != disk) {
+            disk.remove(key);
+        }
+    }
+
+    private void remove(CacheEntry entry) {
+        if (!entries.remove(entry.key, entry)) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            unlink(entry, true);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void recordRead(CacheEntry entry) {
+        ReadBuffer buffer = readBuffer.get();
+        buffer.entries[buffer.size++] = entry;
+        if (buffer.size < READ_BUFFER_SIZE) {
+            return;
+        }
+        if (evictionLock.tryLock()) {
+            try {
+                drain(buffer);
+            } finally {
+                evictionLock.unlock();
+            }
+        } else {
+            buffer.clear();
+        }
+    }
+
+    // applies buffered hits, the eviction lock is held
+    private void drain(ReadBuffer buffer) {
+        for (int i = 0; i < buffer.size; i++) {
+            CacheEntry entry = buffer.entries[i];
+            if (entry.removed) {
+                continue;
+            }
+            unlinkFromSegment(entry);
+            linkFirst(protectedSegment, entry);
+        }
+        buffer.clear();
+        // the protected segment overflows into probation, where its least recent entries get a last chance
+        while (protectedBytes > protectedCapacity) {
+            CacheEntry demoted = protectedSegment.prev;
+            unlinkFromSegment(demoted);
+            linkFirst(probation, demoted);
+        }
+    }
+
+    private void linkFirst(CacheEntry segment, CacheEntry entry) {
+        entry.protectedSegment = segment == protectedSegment;
+        if (entry.protectedSegment) {
+            protectedBytes += entry.size;
+        }
+        entry.prev = segment;
+        entry.next = segment.next;
+        segment.next.prev = entry;
+        segment.next = entry;
+    }
+
+    private void unlinkFromSegment(CacheEntry entry) {
+        if (entry.protectedSegment) {
+            protectedBytes -= entry.size;
+        }
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    // removes the entry from the segments once and frees its body, the eviction lock is held
+    private void unlink(CacheEntry entry, boolean dropVary) {
+        if (entry.removed) {
+            return;
+        }
+        entry.removed = true;
+        unlinkFromSegment(entry);
+        bytes -= entry.size;
+        entry.release();
+        if (dropVary && entry.vary.length > 0) {
+            // only if no newer response replaced the names, so the map does not outgrow the entries
+            varyByPrimary.remove(entry.primary, entry.vary);
+        }
+    }
+
+    static String[] vary(HttpHeaders headers) {
+        String vary = headers.get(HttpHeaderNames.VARY);
+        if (null == vary || vary.trim().isEmpty()) {
+            return NO_VARY;
+        }
+        String[] names = vary.toLowerCase(Locale.ROOT).split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim();
+        }
+        // the order of the names does not change the variant
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Hits of one event loop not yet applied to the segments.
+     */
+    private static final class ReadBuffer {
+
+        private final CacheEntry[] entries = new CacheEntry[READ_BUFFER_SIZE];
+
+        private int size;
+
+        void clear() {
+            Arrays.fill(entries, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory mapped file of the disk cache, filled append-only by the writer thread. The cache owns one reference,
+ * every response sent from the segment holds another, so a segment given up by compaction or eviction is only
+ * unmapped and deleted once the last of them is written.
+ */
+final class Segment {
+
+    private static final Logger logger = LoggerFactory.getLogger(Segment.class);
+
+    final File file;
+
+    final int capacity;
+
+    // bytes of entries still in the index
+    final AtomicLong live = new AtomicLong();
+
+    // entries appended, removed ones included, only used by the writer thread
+    final List<DiskEntry> entries = new ArrayList<>();
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer mapping;
+
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    // only used by the writer thread
+    private int position;
+
+    private Segment(File file, int capacity, FileChannel channel, MappedByteBuffer mapping) {
+        this.file = file;
+        this.capacity = capacity;
+        this.channel = channel;
+        this.mapping = mapping;
+    }
+
+    static Segment create(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            FileChannel channel = raf.getChannel();
+            return new Segment(file, capacity, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+    }
+
+    int remaining() {
+        return capacity - position;
+    }
+
+    /**
+     * Copies {@code length} readable bytes of {@code src} to the end of the segment.
+     *
+     * @return the offset they were written at
+     */
+    int append(ByteBuf src, int length) {
+        int offset = position;
+        ByteBuffer dst = mapping.duplicate();
+        dst.limit(offset + length).position(offset);
+        src.getBytes(src.readerIndex(), dst);
+        position += length;
+        return offset;
+    }
+
+    /**
+     * Copies bytes of another segment to the end of this one.
+     *
+     * @return the offset they were written at
+     */
+    int append(Segment src, int srcOffset, int length) {
+        ByteBuffer from = src.mapping.duplicate();
+        from.limit(srcOffset + length).position(srcOffset);
+        int offset = position;
+        ByteBuffer dst = mapping.duplicate();
+        dst.position(offset);
+        dst.put(from);
+        position += length;
+        return offset;
+    }
+
+    /**
+     * Copies bytes of the segment to {@code dst}, the caller holds a reference.
+     */
+    void copyTo(int offset, int length, ByteBuf dst) {
+        ByteBuffer src = mapping.duplicate();
+        src.limit(offset + length).position(offset);
+        dst.writeBytes(src);
+    }
+
+    /**
+     * @return a region sent with sendfile where the transport supports it, it holds a reference to the segment
+     * until released; null if the segment is already freed
+     */
+    FileRegion region(int offset, int length) {
+        return tryRetain() ? new SegmentRegion(this, offset, length) : null;
+    }
+
+    boolean tryRetain() {
+        for (;;) {
+            int refs = this.refs.get();
+            if (refs <= 0) {
+                return false;
+            }
+            if (this.refs.compareAndSet(refs, refs + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (0 != refs.decrementAndGet()) {
+            return;
+        }
+        PlatformDependent.freeDirectBuffer(mapping);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn(String.format("close cache segment %s fail", file), e);
+        }
+        if (!file.delete()) {
+            logger.warn(String.format("delete cache segment %s fail", file));
+        }
+    }
+
+    static final class SegmentRegion extends DefaultFileRegion {
+
+        private final Segment segment;
+
+        SegmentRegion(Segment segment, int offset, int length) {
+            super(segment.channel, offset, length);
+            this.segment = segment;
+        }
+
+        void copyTo(ByteBuf dst) {
+            segment.copyTo((int) position(), (int) count(), dst);
+        }
+
+        @Override
+        protected void deallocate() {
+            // the channel belongs to the segment, closing it is left to the segment
+            segment.release();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package reverseproxy.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig.CompressionConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Which responses are gzipped and how. Responses from the backend are compressed on the fly by the
+ * {@link ResponseCompressor} of every connection, cached responses are compressed once and the result is stored
+ * next to them by the {@link reverseproxy.cache.ResponseCache}.
+ */
+public final class Compression {
+
+    private static final Logger logger = LoggerFactory.getLogger(Compression.class);
+
+    public static final String GZIP = "gzip";
+
+    // the gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static volatile Compression current;
+
+    private final int level;
+
+    private final int minLength;
+
+    // lower case media types, a type ending in /* matches all its subtypes
+    private final Set<String> types = new HashSet<>();
+
+    private final FastThreadLocal<Deflater> deflater = new FastThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() throws Exception {
+            // raw deflate, the gzip header and trailer are written around it
+            return new Deflater(level, true);
+        }
+
+        @Override
+        protected void onRemoval(Deflater value) throws Exception {
+            value.end();
+        }
+    };
+
+    private final LongAdder responses = new LongAdder();
+
+    private final LongAdder variants = new LongAdder();
+
+    public Compression(int level, int minLength, Iterable<String> types) {
+        this.level = level;
+        this.minLength = minLength;
+        for (String type : types) {
+            this.types.add(type.trim().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Enables compression, does nothing if the config has none.
+     */
+    public static void start(CompressionConfig config) {
+        if (null == config) {
+            return;
+        }
+        current = new Compression(config.level(), config.minLength(), config.types());
+        logger.info(String.format("gzip level %d of %s from %d bytes", config.level(), config.types(),
+                config.minLength()));
+    }
+
+    /**
+     * @return the compression settings, null when disabled
+     */
+    public static Compression current() {
+        return current;
+    }
+
+    public static void stop() {
+        current = null;
+    }
+
+    public int level() {
+        return level;
+    }
+
+    /**
+     * @param acceptEncoding the request's Accept-Encoding, may be null
+     * @return whether the client takes gzip, named or through * with a non zero q
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (null == acceptEncoding) {
+            return false;
+        }
+        float gzip = -1f;
+        float any = -1f;
+        for (String coding : acceptEncoding.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+            float q = 1f;
+            int equals = coding.indexOf("q=", semicolon);
+            if (semicolon >= 0 && equals > 0) {
+                try {
+                    q = Float.parseFloat(coding.substring(equals + 2).trim());
+                } catch (NumberFormatException e) {
+                    q = 0f;
+                }
+            }
+            if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                gzip = Math.max(gzip, q);
+            } else if ("*".equals(name)) {
+                any = q;
+            }
+        }
+        return gzip > 0f || (gzip < 0f && any > 0f);
+    }
+
+    /**
+     * @param length the body length, -1 if not known yet
+     * @return whether a response with these headers is worth compressing: one of the types, not encoded yet and
+     * not shorter than the minimum
+     */
+    public boolean compressible(HttpHeaders headers, long length) {
+        if (length >= 0 && length < minLength || headers.contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            return false;
+        }
+        String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        if (null == contentType) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim()
+                .toLowerCase(Locale.ROOT);
+        if (types.contains(type)) {
+            return true;
+        }
+        int slash = type.indexOf('/');
+        return slash > 0 && types.contains(type.substring(0, slash + 1) + '*');
+    }
+
+    /**
+     * @return the readable bytes of the content as one gzip member, the content is not consumed
+     */
+    public byte[] gzip(ByteBuf content) {
+        byte[] input = ByteBufUtil.getBytes(content);
+        CRC32 crc = new CRC32();
+        crc.update(input, 0, input.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 3 + 64);
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        Deflater deflater = this.deflater.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] chunk = new byte[Math.min(64 * 1024, Math.max(512, input.length))];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, input.length);
+        return out.toByteArray();
+    }
+
+    static void varyOnAcceptEncoding(HttpHeaders headers) {
+        String vary = headers.get(HttpHeaderNames.VARY);
+        if (null == vary || vary.trim().isEmpty()) {
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        } else if (!"*".equals(vary.trim()) && !containsToken(vary, HttpHeaderNames.ACCEPT_ENCODING.toString())) {
+            headers.set(HttpHeaderNames.VARY, vary + ", " + HttpHeaderNames.ACCEPT_ENCODING);
+        }
+    }
+
+    /**
+     * Marks a strong ETag weak, the encoded body is not byte for byte the one it was given to.
+     */
+    static void weakenETag(HttpHeaders headers) {
+        String etag = headers.get(HttpHeaderNames.ETAG);
+        if (null != etag && etag.startsWith("\"")) {
+            headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+        }
+    }
+
+    private static boolean containsToken(String list, String token) {
+        for (String value : list.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of cached headers describing the body gzipped to {@code length} bytes
+     */
+    public static HttpHeaders gzipHeaders(HttpHeaders identity, int length) {
+        HttpHeaders headers = identity.copy();
+        headers.set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        headers.setInt(HttpHeaderNames.CONTENT_LENGTH, length);
+        varyOnAcceptEncoding(headers);
+        weakenETag(headers);
+        return headers;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    // a response was compressed on the fly
+    void compressedResponse() {
+        responses.increment();
+    }
+
+    /**
+     * A cached response was compressed to store its gzip variant.
+     */
+    public void compressedVariant() {
+        variants.increment();
+    }
+
+    public long responses() {
+        return responses.sum();
+    }
+
+    public long variants() {
+        return variants.sum();
+    }
+}
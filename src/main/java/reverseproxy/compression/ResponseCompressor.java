@@ -0,0 +1,49 @@
+package reverseproxy.compression;
+
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import reverseproxy.cache.DiskResponse;
+
+/**
+ * Gzips the responses of a connection or an HTTP/2 stream on the fly when the {@link Compression} settings and
+ * the request's Accept-Encoding allow it. Responses gzipped already, a cached gzip variant among them, pass
+ * through, and so do disk cache hits, which are sent from the file as they are.
+ */
+public class ResponseCompressor extends HttpContentCompressor {
+
+    private final Compression compression;
+
+    public ResponseCompressor(Compression compression) {
+        super(compression.level());
+        this.compression = compression;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        if (response instanceof DiskResponse) {
+            return null;
+        }
+        long length = response instanceof HttpContent
+                ? ((HttpContent) response).content().readableBytes() : HttpUtil.getContentLength(response, -1L);
+        if (!compression.compressible(response.headers(), length)) {
+            return null;
+        }
+        // the identity response varies too, a shared cache behind us must not hand it to every client
+        Compression.varyOnAcceptEncoding(response.headers());
+        Result result = super.beginEncode(response, acceptEncoding);
+        if (null != result) {
+            compression.compressedResponse();
+            Compression.weakenETag(response.headers());
+        }
+        return result;
+    }
+
+    @Override
+    protected ZlibWrapper determineWrapper(String acceptEncoding) {
+        // deflate is left out, clients disagree on whether it is zlib wrapped
+        return Compression.acceptsGzip(acceptEncoding) ? ZlibWrapper.GZIP : null;
+    }
+}
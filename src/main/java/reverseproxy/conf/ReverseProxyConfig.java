@@ -7,15 +7,23 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import org.apache.commons.collections.CollectionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reverseproxy.util.AntPathMatcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 public class ReverseProxyConfig {
 
@@ -27,24 +35,83 @@ public class ReverseProxyConfig {
 
     private static final int DEFAULT_HTTP_PORT = 80;
 
-    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    public static final String ROUND_ROBIN = "round_robin";
+
+    public static final String LEAST_REQUEST = "least_request";
+
+    public static final String HTTP1 = "http1";
+
+    public static final String H2C = "h2c";
 
     @JsonProperty("listen")
     private int listen;
 
+    // seconds an idle downstream connection is kept open, 0 keeps it open
     @JsonProperty("keepalive_timeout")
-    private int keepaliveTimeout;
+    private int keepaliveTimeout = 75;
 
     @JsonProperty("worker_threads")
     private String workerThreads;
     private int workers;
 
+    // accepted connections per worker thread, 0 for no limit
     @JsonProperty("worker_connections")
     private int workerConnections;
 
+    // pipelined requests of a downstream connection dispatched at once
+    @JsonProperty("pipeline_depth")
+    private int pipelineDepth = 16;
+
+    // h2c, with prior knowledge or upgraded from HTTP/1.1
+    @JsonProperty("http2")
+    private boolean http2 = true;
+
+    // streams of an HTTP/2 connection open at once
+    @JsonProperty("http2_max_concurrent_streams")
+    private int http2MaxConcurrentStreams = 128;
+
+    // bytes queued for writing to a connection at which reading its peer stops, and resumes once down to the low one
+    @JsonProperty("write_buffer_high")
+    private int writeBufferHigh = 32 * 1024;
+
+    @JsonProperty("write_buffer_low")
+    private int writeBufferLow = 8 * 1024;
+
+    // auto, epoll, kqueue or nio
+    @JsonProperty("transport")
+    private String transport;
+
+    // port of the admin listener serving /metrics, disabled when 0
+    @JsonProperty("admin_listen")
+    private int adminListen;
+
+    // address of the admin listener, POST /reload is not authenticated so it stays on loopback by default
+    @JsonProperty("admin_bind")
+    private String adminBind = "127.0.0.1";
+
+    // reload when the config file changes, besides SIGHUP and POST /reload
+    @JsonProperty("watch_config")
+    private boolean watchConfig;
+
+    // disabled when not set
+    @JsonProperty("access_log")
+    private AccessLogConfig accessLog;
+
+    // response cache shared by the locations that enable it, disabled when not set
+    @JsonProperty("cache")
+    private CacheConfig cache;
+
+    // gzip of responses to clients that accept it, disabled when not set
+    @JsonProperty("compression")
+    private CompressionConfig compression;
+
     @JsonProperty("servers")
     private Map<String, List<Location>> servers;
 
+    // TCP listeners relaying bytes to an upstream without parsing HTTP
+    @JsonProperty("stream")
+    private List<StreamServer> stream;
+
     @JsonProperty("upstreams")
     private Map<String, Upstream> upstreams;
 
@@ -74,7 +141,60 @@ public class ReverseProxyConfig {
         listen = reverseProxyConfig.listen;
         keepaliveTimeout = reverseProxyConfig.keepaliveTimeout;
         workerConnections = reverseProxyConfig.workerConnections;
+        if (keepaliveTimeout < 0 || workerConnections < 0) {
+            throw new ConfigException("keepalive_timeout or worker_connections invalid", null);
+        }
         workerThreads = reverseProxyConfig.workerThreads;
+        pipelineDepth = reverseProxyConfig.pipelineDepth;
+        if (pipelineDepth <= 0) {
+            throw new ConfigException("pipeline_depth invalid: " + pipelineDepth, null);
+        }
+        http2 = reverseProxyConfig.http2;
+        http2MaxConcurrentStreams = reverseProxyConfig.http2MaxConcurrentStreams;
+        if (http2MaxConcurrentStreams <= 0) {
+            throw new ConfigException("http2_max_concurrent_streams invalid: " + http2MaxConcurrentStreams, null);
+        }
+        writeBufferHigh = reverseProxyConfig.writeBufferHigh;
+        writeBufferLow = reverseProxyConfig.writeBufferLow;
+        if (writeBufferLow <= 0 || writeBufferHigh < writeBufferLow) {
+            throw new ConfigException("write_buffer_low or write_buffer_high invalid", null);
+        }
+        adminListen = reverseProxyConfig.adminListen;
+        adminBind = reverseProxyConfig.adminBind;
+        if (null == adminBind || adminBind.trim().isEmpty()) {
+            throw new ConfigException("admin_bind invalid: " + adminBind, null);
+        }
+        watchConfig = reverseProxyConfig.watchConfig;
+        accessLog = reverseProxyConfig.accessLog;
+        cache = reverseProxyConfig.cache;
+        if (null != cache && (cache.memorySize <= 0 || cache.maxObjectSize <= 0 || cache.lockTimeout < 0)) {
+            throw new ConfigException("cache memory_size, max_object_size or lock_timeout invalid", null);
+        }
+        if (null != cache && null != cache.disk) {
+            DiskCacheConfig disk = cache.disk;
+            if (null == disk.path || disk.segmentSize <= 0 || disk.segmentSize > 1024
+                    || disk.size < 2 * disk.segmentSize) {
+                throw new ConfigException("cache disk needs a path, a segment_size of at most 1024 and a size of at "
+                        + "least two segments", null);
+            }
+            if (disk.maxObjectSize <= 0 || disk.maxObjectSize > disk.segmentSize * 1024) {
+                throw new ConfigException("cache disk max_object_size invalid: " + disk.maxObjectSize, null);
+            }
+        }
+        compression = reverseProxyConfig.compression;
+        if (null != compression && (compression.level < 1 || compression.level > 9 || compression.minLength < 0
+                || null == compression.types || compression.types.isEmpty())) {
+            throw new ConfigException("compression needs a level of 1 to 9, a min_length of at least 0 and types",
+                    null);
+        }
+        if (null != accessLog && accessLog.buffer <= 0) {
+            throw new ConfigException("access_log buffer invalid: " + accessLog.buffer, null);
+        }
+        transport = null == reverseProxyConfig.transport ? AUTO : reverseProxyConfig.transport;
+        if (!AUTO.equalsIgnoreCase(transport) && !"epoll".equalsIgnoreCase(transport)
+                && !"kqueue".equalsIgnoreCase(transport) && !"nio".equalsIgnoreCase(transport)) {
+            throw new ConfigException("transport invalid: " + transport, null);
+        }
 
         if (AUTO.equalsIgnoreCase(workerThreads)) {
             workers = Runtime.getRuntime().availableProcessors();
@@ -88,9 +208,61 @@ public class ReverseProxyConfig {
 
         upstreams = new HashMap<>();
         for (Entry<String, Upstream> entry : reverseProxyConfig.upstreams.entrySet()) {
+            String balance = entry.getValue().balance;
+            if (null == balance) {
+                entry.getValue().balance = ROUND_ROBIN;
+            } else if (!ROUND_ROBIN.equals(balance) && !LEAST_REQUEST.equals(balance)) {
+                throw new ConfigException("upstream " + entry.getKey() + " balance invalid: " + balance, null);
+            }
+            if (entry.getValue().maxFails < 0 || entry.getValue().failTimeout <= 0) {
+                throw new ConfigException("upstream " + entry.getKey() + " max_fails or fail_timeout invalid", null);
+            }
+            if (entry.getValue().maxRetries < 0 || entry.getValue().retryBudget < 0
+                    || entry.getValue().retryBudget > 100) {
+                throw new ConfigException("upstream " + entry.getKey() + " max_retries or retry_budget invalid", null);
+            }
+            String protocol = entry.getValue().protocol;
+            if (null == protocol) {
+                entry.getValue().protocol = HTTP1;
+            } else if (!HTTP1.equals(protocol) && !H2C.equals(protocol)) {
+                throw new ConfigException("upstream " + entry.getKey() + " protocol invalid: " + protocol, null);
+            }
+            if (entry.getValue().connectTimeout < 0 || entry.getValue().readTimeout < 0
+                    || entry.getValue().requestTimeout < 0) {
+                throw new ConfigException("upstream " + entry.getKey()
+                        + " connect_timeout, read_timeout or request_timeout invalid", null);
+            }
+            if (entry.getValue().maxConcurrentStreams <= 0) {
+                throw new ConfigException("upstream " + entry.getKey() + " max_concurrent_streams invalid", null);
+            }
+            HealthCheck check = entry.getValue().healthCheck;
+            if (null != check && (check.interval <= 0 || check.timeout <= 0 || check.rise <= 0 || check.fall <= 0
+                    || null == check.path || !check.path.startsWith("/"))) {
+                throw new ConfigException("upstream " + entry.getKey() + " health_check invalid", null);
+            }
             upstreams.put(UPSTREAM_POOL_PREFIX + entry.getKey(), entry.getValue());
         }
 
+        stream = null == reverseProxyConfig.stream ? new ArrayList<>() : reverseProxyConfig.stream;
+        Set<Integer> ports = new HashSet<>();
+        ports.add(listen);
+        ports.add(adminListen);
+        for (StreamServer server : stream) {
+            if (server.listen <= 0 || !ports.add(server.listen)) {
+                throw new ConfigException("stream listen invalid or taken: " + server.listen, null);
+            }
+            if (null == server.proxyPass) {
+                throw new ConfigException("stream " + server.listen + " needs a proxy_pass", null);
+            }
+            if (!server.proxyPass.startsWith(UPSTREAM_POOL_PREFIX)) {
+                server.proxyPass = UPSTREAM_POOL_PREFIX + server.proxyPass;
+            }
+            if (!upstreams.containsKey(server.proxyPass)) {
+                throw new ConfigException("stream " + server.listen + " upstream unknown: " + server.proxyPass,
+                        null);
+            }
+        }
+
         servers = new HashMap<>();
         if (DEFAULT_HTTP_PORT != listen) {
             for (Entry<String, List<Location>> entry : reverseProxyConfig.servers.entrySet()) {
@@ -102,16 +274,42 @@ public class ReverseProxyConfig {
 
         List<String> hosts;
         List<Server> servers;
-        for (Entry<String, Upstream> upstreamEntry : upstreams.entrySet()) {
+        for (Entry<String, Upstream> upstreamEntry : reverseProxyConfig.upstreams.entrySet()) {
             hosts = upstreamEntry.getValue().servers();
             if (CollectionUtils.isEmpty(hosts)) {
                 continue;
             }
             servers = new ArrayList<>(1 << 2);
             for (String host : hosts) {
-                servers.add(new Server(host, upstreamEntry.getValue().keepAlive()));
+                Upstream upstream = upstreamEntry.getValue();
+                servers.add(new Server(upstreamEntry.getKey(), host, upstream.keepAlive(),
+                        H2C.equals(upstream.protocol) ? upstream.maxConcurrentStreams : 0));
+            }
+            us.put(UPSTREAM_POOL_PREFIX + upstreamEntry.getKey(), servers);
+        }
+
+        // a location inherits the streaming mode and the timeouts of its upstream unless it sets its own
+        Upstream upstream;
+        for (List<Location> locations : this.servers.values()) {
+            for (Location location : locations) {
+                upstream = upstreams.get(location.proxypass());
+                if (null == location.streaming) {
+                    location.streaming = null != upstream && upstream.streaming();
+                }
+                if (null == location.connectTimeout) {
+                    location.connectTimeout = null == upstream ? 0 : upstream.connectTimeout;
+                }
+                if (null == location.readTimeout) {
+                    location.readTimeout = null == upstream ? 0 : upstream.readTimeout;
+                }
+                if (null == location.requestTimeout) {
+                    location.requestTimeout = null == upstream ? 0 : upstream.requestTimeout;
+                }
+                if (location.connectTimeout < 0 || location.readTimeout < 0 || location.requestTimeout < 0) {
+                    throw new ConfigException("location " + location.path
+                            + " connect_timeout, read_timeout or request_timeout invalid", null);
+                }
             }
-            us.put(upstreamEntry.getKey(), servers);
         }
     }
 
@@ -131,21 +329,96 @@ public class ReverseProxyConfig {
         return workerConnections;
     }
 
+    public int pipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public boolean http2() {
+        return http2;
+    }
+
+    public int http2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    public int writeBufferHigh() {
+        return writeBufferHigh;
+    }
+
+    public int writeBufferLow() {
+        return writeBufferLow;
+    }
+
+    public String transport() {
+        return transport;
+    }
+
+    public int adminListen() {
+        return adminListen;
+    }
+
+    public String adminBind() {
+        return adminBind;
+    }
+
+    public boolean watchConfig() {
+        return watchConfig;
+    }
+
+    public AccessLogConfig accessLog() {
+        return accessLog;
+    }
+
+    public CacheConfig cache() {
+        return cache;
+    }
+
+    public CompressionConfig compression() {
+        return compression;
+    }
+
     public Map<String, List<Server>> upstreams() {
         return us;
     }
 
-    public String proxyPass(String serverName, String uri) {
-        List<Location> locations = servers.get(serverName);
-        if (CollectionUtils.isEmpty(locations)) {
-            return null;
+    /**
+     * @return the settings of the upstream a proxy_pass points to, null if there is none
+     */
+    public Upstream upstream(String proxyPass) {
+        return upstreams.get(proxyPass);
+    }
+
+    public List<StreamServer> stream() {
+        return stream;
+    }
+
+    /**
+     * Swaps every server equal to one of the previous config for the instance that is running, so a reload keeps
+     * its health, its requests in flight and its metrics. A server whose weight changed is not equal, it is
+     * retired and drained like a removed one.
+     */
+    public void retainServers(ReverseProxyConfig previous) {
+        Map<Server, Server> running = new HashMap<>();
+        for (List<Server> servers : previous.us.values()) {
+            for (Server server : servers) {
+                running.put(server, server);
+            }
         }
-        for (Location location : locations) {
-            if (pathMatcher.match(location.path(), uri)) {
-                return location.proxypass();
+        for (List<Server> servers : us.values()) {
+            for (ListIterator<Server> it = servers.listIterator(); it.hasNext(); ) {
+                Server server = it.next();
+                Server same = running.get(server);
+                if (null != same) {
+                    it.set(same);
+                }
             }
         }
-        return null;
+    }
+
+    // virtual host(with the listen port unless it is 80) to its locations in declaration order
+
+    public Map<String, List<Location>> servers() {
+        return servers;
     }
 
     public static class ConfigException extends Exception {
@@ -155,7 +428,173 @@ public class ReverseProxyConfig {
         }
     }
 
-    static class Location {
+    public static class AccessLogConfig {
+
+        @JsonProperty("path")
+        private String path;
+
+        // records buffered per worker thread, more are dropped while the writer falls behind
+        @JsonProperty("buffer")
+        private int buffer = 16 * 1024;
+
+        public String path() {
+            return path;
+        }
+
+        public int buffer() {
+            return buffer;
+        }
+    }
+
+    public static class CacheConfig {
+
+        // megabytes of response bodies and headers kept in memory
+        @JsonProperty("memory_size")
+        private int memorySize = 64;
+
+        // kilobytes, larger responses are not cached
+        @JsonProperty("max_object_size")
+        private int maxObjectSize = 1024;
+
+        // seconds a miss waits for the fetch of an identical request in flight before fetching on its own(0 = off)
+        @JsonProperty("lock_timeout")
+        private int lockTimeout = 5;
+
+        // second tier on local disk, disabled when not set
+        @JsonProperty("disk")
+        private DiskCacheConfig disk;
+
+        public int memorySize() {
+            return memorySize;
+        }
+
+        public int maxObjectSize() {
+            return maxObjectSize;
+        }
+
+        public int lockTimeout() {
+            return lockTimeout;
+        }
+
+        public DiskCacheConfig disk() {
+            return disk;
+        }
+    }
+
+    public static class CompressionConfig {
+
+        // gzip level, 1 is the fastest and 9 the smallest
+        @JsonProperty("level")
+        private int level = 6;
+
+        // bytes, shorter responses are sent as they are
+        @JsonProperty("min_length")
+        private int minLength = 1024;
+
+        // media types compressed, type/* matches all subtypes
+        @JsonProperty("types")
+        private List<String> types = Arrays.asList("text/html", "text/plain", "text/css", "text/xml",
+                "application/json", "application/javascript", "application/xml", "image/svg+xml");
+
+        public int level() {
+            return level;
+        }
+
+        public int minLength() {
+            return minLength;
+        }
+
+        public List<String> types() {
+            return types;
+        }
+    }
+
+    public static class DiskCacheConfig {
+
+        // directory of the segment files, emptied at startup
+        @JsonProperty("path")
+        private String path;
+
+        // megabytes of segment files
+        @JsonProperty("size")
+        private int size = 1024;
+
+        // megabytes, the unit of allocation and compaction
+        @JsonProperty("segment_size")
+        private int segmentSize = 64;
+
+        // kilobytes, larger responses are not cached
+        @JsonProperty("max_object_size")
+        private int maxObjectSize = 16 * 1024;
+
+        public String path() {
+            return path;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int segmentSize() {
+            return segmentSize;
+        }
+
+        public int maxObjectSize() {
+            return maxObjectSize;
+        }
+    }
+
+    public static class HealthCheck {
+
+        // seconds between two checks of a server
+        @JsonProperty("interval")
+        private int interval = 5;
+
+        // seconds to connect and get the response
+        @JsonProperty("timeout")
+        private int timeout = 2;
+
+        @JsonProperty("path")
+        private String path = "/";
+
+        // the response status of a healthy server
+        @JsonProperty("status")
+        private int status = 200;
+
+        // consecutive passed checks that bring a server back up
+        @JsonProperty("rise")
+        private int rise = 2;
+
+        // consecutive failed checks that take a server down
+        @JsonProperty("fall")
+        private int fall = 3;
+
+        public int interval() {
+            return interval;
+        }
+
+        public int timeout() {
+            return timeout;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        public int rise() {
+            return rise;
+        }
+
+        public int fall() {
+            return fall;
+        }
+    }
+
+    public static class Location {
 
         @JsonProperty("path")
         private String path;
@@ -163,6 +602,25 @@ public class ReverseProxyConfig {
         @JsonProperty("proxy_pass")
         private String proxypass;
 
+        // forward request and response bodies chunk by chunk instead of aggregating them,
+        // inherited from the upstream when not set
+        @JsonProperty("streaming")
+        private Boolean streaming;
+
+        // serve cacheable GET responses from the response cache
+        @JsonProperty("cache")
+        private boolean cache;
+
+        // milliseconds, inherited from the upstream when not set
+        @JsonProperty("connect_timeout")
+        private Integer connectTimeout;
+
+        @JsonProperty("read_timeout")
+        private Integer readTimeout;
+
+        @JsonProperty("request_timeout")
+        private Integer requestTimeout;
+
         public String path() {
             return path;
         }
@@ -170,9 +628,50 @@ public class ReverseProxyConfig {
         public String proxypass() {
             return proxypass;
         }
+
+        public boolean streaming() {
+            return null != streaming && streaming;
+        }
+
+        public boolean cache() {
+            return cache;
+        }
+
+        public int connectTimeout() {
+            return null == connectTimeout ? 0 : connectTimeout;
+        }
+
+        public int readTimeout() {
+            return null == readTimeout ? 0 : readTimeout;
+        }
+
+        public int requestTimeout() {
+            return null == requestTimeout ? 0 : requestTimeout;
+        }
     }
 
-    static class Upstream {
+    public static class StreamServer {
+
+        @JsonProperty("listen")
+        private int listen;
+
+        // name of the upstream, with or without the http:// of the locations
+        @JsonProperty("proxy_pass")
+        private String proxyPass;
+
+        public int listen() {
+            return listen;
+        }
+
+        /**
+         * @return the upstream key, like {@link Location#proxypass()}
+         */
+        public String proxypass() {
+            return proxyPass;
+        }
+    }
+
+    public static class Upstream {
         // the maximum number of idle keepalive connections to upstream servers
         // that are preserved in the cache of each worker process
         @JsonProperty("keepalive")
@@ -181,10 +680,106 @@ public class ReverseProxyConfig {
         @JsonProperty("servers")
         private List<String> servers;
 
+        // default streaming mode for all locations proxied to this upstream
+        @JsonProperty("streaming")
+        private boolean streaming;
+
+        // round_robin or least_request(power of two choices on the outstanding requests)
+        @JsonProperty("balance")
+        private String balance;
+
+        // consecutive failures that eject a server, 0 never ejects
+        @JsonProperty("max_fails")
+        private int maxFails = 3;
+
+        // seconds a server stays ejected the first time, doubled for every ejection in a row
+        @JsonProperty("fail_timeout")
+        private int failTimeout = 10;
+
+        // active checks, none when not set
+        @JsonProperty("health_check")
+        private HealthCheck healthCheck;
+
+        // times a failed request is tried again on another server, 0 never retries
+        @JsonProperty("max_retries")
+        private int maxRetries = 3;
+
+        // retries allowed as a percentage of the requests
+        @JsonProperty("retry_budget")
+        private int retryBudget = 20;
+
+        // http1 or h2c(HTTP/2 with prior knowledge)
+        @JsonProperty("protocol")
+        private String protocol;
+
+        // streams of one h2c connection open at once
+        @JsonProperty("max_concurrent_streams")
+        private int maxConcurrentStreams = 100;
+
+        // milliseconds to open a connection, 0 waits for the operating system to give up
+        @JsonProperty("connect_timeout")
+        private int connectTimeout = 5000;
+
+        // milliseconds a request in flight may see nothing read from or written to its connection, 0 for no limit
+        @JsonProperty("read_timeout")
+        private int readTimeout = 60000;
+
+        // milliseconds from sending a request to the end of its response, 0 for no limit
+        @JsonProperty("request_timeout")
+        private int requestTimeout;
+
         public int keepAlive() {
             return keepalive;
         }
 
+        public boolean streaming() {
+            return streaming;
+        }
+
+        public String balance() {
+            return balance;
+        }
+
+        public int maxFails() {
+            return maxFails;
+        }
+
+        public int failTimeout() {
+            return failTimeout;
+        }
+
+        public HealthCheck healthCheck() {
+            return healthCheck;
+        }
+
+        public int maxRetries() {
+            return maxRetries;
+        }
+
+        public int retryBudget() {
+            return retryBudget;
+        }
+
+        public String protocol() {
+            return protocol;
+        }
+
+        public int maxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        public int connectTimeout() {
+            return connectTimeout;
+        }
+
+        public int readTimeout() {
+            return readTimeout;
+        }
+
+        public int requestTimeout() {
+            return requestTimeout;
+        }
+
         public List<String> servers() {
             return servers;
         }
@@ -192,14 +787,60 @@ public class ReverseProxyConfig {
 
     public static class Server {
 
+        private static final IdAllocator IDS = new IdAllocator();
+
+        // dense index for per server tables such as the metrics, given to a new server once this one is collected
+        private final int id;
+
+        // servers that had the id before this one, a table resets a slot holding an older generation
+        private final int generation;
+
+        // name of the upstream block the server was declared in
+        private String upstream;
+
         private int keepalive;
 
+        // streams per connection if the server speaks h2c, 0 for HTTP/1.1
+        private int maxConcurrentStreams;
+
+        // relative share of the requests, set with "host:port weight=N"
+        private int weight = 1;
+
         private String ip;
 
         private int port;
 
+        // unresolved, every connect resolves it again so a changed DNS record is followed
+        private InetSocketAddress address;
+
+        // set once a reload dropped the server, its connections are closed instead of kept idle
+        private volatile boolean retired;
+
         public Server(String host, int keepalive) {
+            this(null, host, keepalive, 0);
+        }
+
+        public Server(String upstream, String host, int keepalive, int maxConcurrentStreams) {
+            synchronized (IDS) {
+                this.id = IDS.allocate(this);
+                this.generation = IDS.generation(id);
+            }
+            this.upstream = upstream;
             this.keepalive = keepalive;
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            // host:port followed by optional name=value parameters, like nginx
+            String[] parts = host.trim().split("\\s+");
+            host = parts[0];
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("weight=")) {
+                    this.weight = Integer.parseInt(parts[i].substring("weight=".length()));
+                    if (weight <= 0) {
+                        throw new IllegalArgumentException("weight must be positive: " + parts[i]);
+                    }
+                } else {
+                    throw new IllegalArgumentException("unknown server parameter: " + parts[i]);
+                }
+            }
             int pidx = host.lastIndexOf(':');
             if (pidx >= 0) {
                 // otherwise : is at the end of the string, ignore
@@ -208,6 +849,21 @@ public class ReverseProxyConfig {
                 }
                 this.ip = host.substring(0, pidx);
             }
+            if (null != ip) {
+                this.address = InetSocketAddress.createUnresolved(ip, port);
+            }
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        public String getUpstream() {
+            return upstream;
         }
 
         public String getIp() {
@@ -222,13 +878,43 @@ public class ReverseProxyConfig {
             return keepalive;
         }
 
+        public boolean isHttp2() {
+            return maxConcurrentStreams > 0;
+        }
+
+        public int getMaxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return the unresolved host and port, for a bootstrap using {@code Independent#resolver()}
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public boolean isRetired() {
+            return retired;
+        }
+
+        public void retire() {
+            retired = true;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
+            result = prime * result + ((upstream == null) ? 0 : upstream.hashCode());
             result = prime * result + ((ip == null) ? 0 : ip.hashCode());
             result = prime * result + keepalive;
+            result = prime * result + maxConcurrentStreams;
             result = prime * result + port;
+            result = prime * result + weight;
             return result;
         }
 
@@ -241,6 +927,11 @@ public class ReverseProxyConfig {
             if (getClass() != obj.getClass())
                 return false;
             Server other = (Server) obj;
+            if (upstream == null) {
+                if (other.upstream != null)
+                    return false;
+            } else if (!upstream.equals(other.upstream))
+                return false;
             if (ip == null) {
                 if (other.ip != null)
                     return false;
@@ -248,13 +939,67 @@ public class ReverseProxyConfig {
                 return false;
             if (keepalive != other.keepalive)
                 return false;
+            if (maxConcurrentStreams != other.maxConcurrentStreams)
+                return false;
             if (port != other.port)
                 return false;
+            if (weight != other.weight)
+                return false;
             return true;
         }
 
+        /**
+         * Hands out the ids. The id of a server is reused once the server was garbage collected: nothing refers
+         * to it any more, no snapshot, route, connection or request in flight, so it has drained everywhere.
+         * Guarded by itself.
+         */
+        private static final class IdAllocator {
+
+            private final ReferenceQueue<Server> collected = new ReferenceQueue<>();
+
+            // the references are only enqueued while they are reachable themselves
+            private final Set<IdReference> references = new HashSet<>();
+
+            private final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+            private int[] generations = new int[16];
+
+            private int next;
+
+            int allocate(Server server) {
+                Reference<? extends Server> reference;
+                while (null != (reference = collected.poll())) {
+                    references.remove(reference);
+                    free.add(((IdReference) reference).id);
+                }
+                Integer reused = free.poll();
+                int id = null == reused ? next++ : reused;
+                if (id >= generations.length) {
+                    generations = Arrays.copyOf(generations, generations.length << 1);
+                }
+                generations[id]++;
+                references.add(new IdReference(server, id, collected));
+                return id;
+            }
+
+            int generation(int id) {
+                return generations[id];
+            }
+        }
+
+        private static final class IdReference extends WeakReference<Server> {
+
+            final int id;
+
+            IdReference(Server server, int id, ReferenceQueue<Server> queue) {
+                super(server, queue);
+                this.id = id;
+            }
+        }
+
         public String toString() {
-            return "Server: IP = " + getIp() + " port: " + getPort() + " keepAlive: " + getKeepalive();
+            return "Server: IP = " + getIp() + " port: " + getPort() + " keepAlive: " + getKeepalive() + " weight: "
+                    + getWeight();
         }
     }
 }
@@ -1,14 +1,29 @@
 package reverseproxy.core;
 
-import io.netty.channel.Channel;
 import io.netty.util.AttributeKey;
+import reverseproxy.route.Route;
+import reverseproxy.upstream.pool.Connection;
 
 public class AttributeKeys {
 
-    public static final AttributeKey<Channel> DOWNSTREAM_CHANNEL_KEY = AttributeKey.valueOf("downstreamChannel");
+    // the exchange an upstream channel is answering, null while idle
+    public static final AttributeKey<Exchange> EXCHANGE_KEY = AttributeKey.valueOf("exchange");
 
-    public static final AttributeKey<Boolean> KEEP_ALIVED_KEY = AttributeKey.valueOf("keepalived");
+    // the open exchanges of a downstream channel, in request order
+    public static final AttributeKey<ExchangeQueue> EXCHANGE_QUEUE_KEY = AttributeKey.valueOf("exchangeQueue");
 
     public static final AttributeKey<Boolean> UPSTREAM_ACTIVE_CLOSE_KEY = AttributeKey.valueOf("upstreamActiveCloseKey");
 
+    // the pooled connection wrapping an upstream channel
+    public static final AttributeKey<Connection> CONNECTION_KEY = AttributeKey.valueOf("connection");
+
+    // route matched for the request currently being decoded on a downstream channel
+    public static final AttributeKey<Route> ROUTE_KEY = AttributeKey.valueOf("route");
+
+    // whether the response of the in-flight request on an upstream channel is streamed
+    public static final AttributeKey<Boolean> STREAMING_KEY = AttributeKey.valueOf("streaming");
+
+    // the streamed request whose body is still being received on a downstream channel
+    public static final AttributeKey<StreamingRequest> STREAMING_REQUEST_KEY = AttributeKey.valueOf("streamingRequest");
+
 }
@@ -0,0 +1,99 @@
+package reverseproxy.core;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code worker_connections} of every event loop: accepted connections, HTTP and stream, are counted by the
+ * loop they are registered with. A connection beyond the limit of its loop is closed at once and its listener
+ * stops accepting for {@link #ACCEPT_PAUSE_MILLIS}, so a flood waits in the listen backlog instead of taking file
+ * descriptors and buffers.
+ */
+public final class ConnectionLimit {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionLimit.class);
+
+    private static final long ACCEPT_PAUSE_MILLIS = 100;
+
+    private static final List<ConnectionLimit> LOOPS = new CopyOnWriteArrayList<>();
+
+    private static final FastThreadLocal<ConnectionLimit> LIMIT = new FastThreadLocal<ConnectionLimit>() {
+        @Override
+        protected ConnectionLimit initialValue() throws Exception {
+            ConnectionLimit limit = new ConnectionLimit();
+            LOOPS.add(limit);
+            return limit;
+        }
+    };
+
+    private static final LongAdder REJECTED = new LongAdder();
+
+    // written by the event loop only, read by scrapes
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private ConnectionLimit() {
+    }
+
+    /**
+     * Counts a channel just accepted, on its event loop, until it is closed.
+     *
+     * @param max connections of the loop, 0 for no limit
+     * @return false if the loop is full, the channel is then closed
+     */
+    public static boolean admit(Channel channel, int max) {
+        ConnectionLimit limit = LIMIT.get();
+        int connections = limit.connections.get();
+        if (max > 0 && connections >= max) {
+            REJECTED.increment();
+            channel.close();
+            pauseAccept(channel.parent(), max);
+            return false;
+        }
+        limit.connections.lazySet(connections + 1);
+        // run by the same event loop
+        channel.closeFuture().addListener(f -> limit.connections.lazySet(limit.connections.get() - 1));
+        return true;
+    }
+
+    private static void pauseAccept(Channel listener, int max) {
+        if (null == listener) {
+            return;
+        }
+        listener.eventLoop().execute(() -> {
+            if (!listener.config().isAutoRead()) {
+                return;
+            }
+            logger.warn(String.format("%d worker_connections are not enough, %s stops accepting for %dms", max,
+                    listener, ACCEPT_PAUSE_MILLIS));
+            listener.config().setAutoRead(false);
+            listener.eventLoop().schedule(() -> listener.config().setAutoRead(true), ACCEPT_PAUSE_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * @return the accepted connections open, over all event loops
+     */
+    public static long connections() {
+        long connections = 0;
+        for (ConnectionLimit limit : LOOPS) {
+            connections += limit.connections.get();
+        }
+        return connections;
+    }
+
+    /**
+     * @return the connections closed because their event loop was full
+     */
+    public static long rejected() {
+        return REJECTED.sum();
+    }
+}
@@ -0,0 +1,251 @@
+package reverseproxy.core;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
+import reverseproxy.cache.CacheFill;
+
+import java.util.ArrayDeque;
+
+/**
+ * One request and its response on a downstream connection. Responses of pipelined requests can be ready in any
+ * order, everything written for an exchange goes through it so the client gets them in request order: the
+ * messages of an exchange that is not the oldest one open are held until the exchanges before it ended.
+ * <p>
+ * The upstream channel bound to the exchange is not read while the client can not take more: while the downstream
+ * is above its high write watermark, or while the held messages reach it. A slow client so holds the backend back
+ * instead of piling the response up in direct memory.
+ * <p>
+ * All methods must be called by the event loop of the downstream channel.
+ */
+public final class Exchange {
+
+    // why reading the upstream is suspended, a bit per reason
+    private static final int UNWRITABLE = 1;
+
+    private static final int HELD_FULL = 1 << 1;
+
+    private final ExchangeQueue queue;
+
+    private final boolean keepAlive;
+
+    // stores the response in the cache, null if it is not stored
+    private CacheFill cacheFill;
+
+    // messages held until the exchange is the oldest, null while nothing is held
+    private ArrayDeque<Object> held;
+
+    private long heldBytes;
+
+    // the channel the response is read from, null while there is none
+    private Channel upstream;
+
+    private int upstreamSuspended;
+
+    private boolean ended;
+
+    // the response was cut short, the connection is closed once the exchanges before are written
+    private boolean aborted;
+
+    Exchange(ExchangeQueue queue, boolean keepAlive) {
+        this.queue = queue;
+        this.keepAlive = keepAlive;
+    }
+
+    public Channel downstream() {
+        return queue.channel();
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public CacheFill getCacheFill() {
+        return cacheFill;
+    }
+
+    public void setCacheFill(CacheFill cacheFill) {
+        this.cacheFill = cacheFill;
+    }
+
+    /**
+     * @return the cache fill, which is forgotten
+     */
+    public CacheFill takeCacheFill() {
+        CacheFill cacheFill = this.cacheFill;
+        this.cacheFill = null;
+        return cacheFill;
+    }
+
+    /**
+     * Binds the upstream the response is read from, reading it is suspended at once if the client can not take
+     * more. The upstream bound before is read again.
+     */
+    public void bindUpstream(Channel upstream) {
+        unbindUpstream();
+        this.upstream = upstream;
+        if (!queue.channel().isWritable()) {
+            suspendUpstream(UNWRITABLE);
+        }
+        if (heldBytes >= queue.channel().config().getWriteBufferHighWaterMark()) {
+            suspendUpstream(HELD_FULL);
+        }
+    }
+
+    /**
+     * Forgets the upstream, its reading is resumed if the exchange suspended it so it can be pooled or closed.
+     */
+    public void unbindUpstream() {
+        if (null == upstream) {
+            return;
+        }
+        if (0 != upstreamSuspended) {
+            upstreamSuspended = 0;
+            upstream.config().setAutoRead(true);
+        }
+        upstream = null;
+    }
+
+    /**
+     * Writes a part of the response, without flushing.
+     */
+    public void write(Object msg) {
+        if (ended || queue.isClosed()) {
+            ReferenceCountUtil.release(msg);
+        } else if (queue.isHead(this)) {
+            queue.write(msg);
+        } else {
+            hold(msg);
+        }
+    }
+
+    /**
+     * Writes a part of the response and flushes it if the exchange is the oldest.
+     */
+    public void writeAndFlush(Object msg) {
+        write(msg);
+        flush();
+    }
+
+    /**
+     * Flushes what was written if the exchange is the oldest, held messages wait for their turn.
+     */
+    public void flush() {
+        if (queue.isHead(this)) {
+            queue.channel().flush();
+        }
+    }
+
+    /**
+     * Writes the last part of the response. The connection is closed after it unless kept alive, otherwise the
+     * next exchange's messages follow.
+     */
+    public void end(Object last) {
+        unbindUpstream();
+        // the rest of a streamed body is dropped or written to nowhere
+        queue.resumeRead(ExchangeQueue.UPSTREAM_FULL);
+        write(last);
+        ended = true;
+        queue.ended(this);
+    }
+
+    /**
+     * Gives up a response that was partly written, closing the connection is the only way to tell the client.
+     */
+    public void abort() {
+        unbindUpstream();
+        queue.resumeRead(ExchangeQueue.UPSTREAM_FULL);
+        releaseHeld();
+        ended = true;
+        aborted = true;
+        queue.ended(this);
+    }
+
+    boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * @return whether the response was given up, or the exchange was opened on a connection already closing
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    // the downstream crossed one of its write watermarks
+    void downstreamWritable(boolean writable) {
+        if (writable) {
+            resumeUpstream(UNWRITABLE);
+        } else {
+            suspendUpstream(UNWRITABLE);
+        }
+    }
+
+    private void suspendUpstream(int reason) {
+        if (null == upstream) {
+            return;
+        }
+        if (0 == upstreamSuspended) {
+            upstream.config().setAutoRead(false);
+        }
+        upstreamSuspended |= reason;
+    }
+
+    private void resumeUpstream(int reason) {
+        if (null == upstream || 0 == (upstreamSuspended & reason)) {
+            return;
+        }
+        upstreamSuspended &= ~reason;
+        if (0 == upstreamSuspended) {
+            upstream.config().setAutoRead(true);
+        }
+    }
+
+    private void hold(Object msg) {
+        if (null == held) {
+            held = new ArrayDeque<>(4);
+        }
+        held.add(msg);
+        heldBytes += size(msg);
+        if (heldBytes >= queue.channel().config().getWriteBufferHighWaterMark()) {
+            suspendUpstream(HELD_FULL);
+        }
+    }
+
+    private static int size(Object msg) {
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        return 0;
+    }
+
+    // the exchange became the oldest
+    void writeHeld() {
+        if (null == held) {
+            return;
+        }
+        Object msg;
+        while (null != (msg = held.poll())) {
+            queue.write(msg);
+        }
+        held = null;
+        heldBytes = 0;
+        resumeUpstream(HELD_FULL);
+    }
+
+    void releaseHeld() {
+        if (null == held) {
+            return;
+        }
+        Object msg;
+        while (null != (msg = held.poll())) {
+            ReferenceCountUtil.release(msg);
+        }
+        held = null;
+        heldBytes = 0;
+    }
+}
@@ -0,0 +1,160 @@
+package reverseproxy.core;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+
+import java.util.ArrayDeque;
+
+/**
+ * The open {@link Exchange}s of a downstream connection, oldest first. Pipelined requests are dispatched to the
+ * upstreams in parallel: reading from the client is suspended while more than {@code depth} responses are
+ * pending. Only the newest request can still be sending its body, so there is always an older response to
+ * resume reading once it is written.
+ * <p>
+ * Reading is also suspended for other reasons, each one a bit, so the reasons do not undo each other.
+ * All methods must be called by the event loop of the channel.
+ */
+public final class ExchangeQueue {
+
+    // too many responses are pending
+    public static final int PIPELINE_FULL = 1;
+
+    // a streamed request waits for its upstream connection
+    public static final int CONNECTING = 1 << 1;
+
+    // the upstream of a streamed request takes its body slower than the client sends it
+    public static final int UPSTREAM_FULL = 1 << 2;
+
+    private final Channel channel;
+
+    private final int depth;
+
+    private final ArrayDeque<Exchange> exchanges = new ArrayDeque<>(4);
+
+    // why reading is suspended, a bit per reason
+    private int suspended;
+
+    // a response closed the connection, nothing is written after it
+    private boolean closed;
+
+    public ExchangeQueue(Channel channel, int depth) {
+        this.channel = channel;
+        this.depth = depth;
+    }
+
+    /**
+     * @return the queue of a downstream channel
+     */
+    public static ExchangeQueue of(Channel downstream) {
+        return downstream.attr(AttributeKeys.EXCHANGE_QUEUE_KEY).get();
+    }
+
+    Channel channel() {
+        return channel;
+    }
+
+    /**
+     * Opens the exchange of a request that was just received.
+     */
+    public Exchange start(boolean keepAlive) {
+        Exchange exchange = new Exchange(this, keepAlive);
+        if (closed) {
+            // the client pipelined past a response that closes the connection
+            exchange.abort();
+            return exchange;
+        }
+        exchanges.add(exchange);
+        if (exchanges.size() > depth) {
+            suspendRead(PIPELINE_FULL);
+        }
+        return exchange;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return whether no exchange is open, the connection waits for the next request
+     */
+    public boolean isIdle() {
+        return exchanges.isEmpty();
+    }
+
+    public void suspendRead(int reason) {
+        suspended |= reason;
+        channel.config().setAutoRead(false);
+    }
+
+    public void resumeRead(int reason) {
+        if (0 == (suspended & reason)) {
+            return;
+        }
+        suspended &= ~reason;
+        if (0 == suspended) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Suspends reading the upstreams of the exchanges while the channel is not writable.
+     */
+    public void writabilityChanged(boolean writable) {
+        for (Exchange exchange : exchanges) {
+            exchange.downstreamWritable(writable);
+        }
+    }
+
+    /**
+     * Drops the held messages, the connection is gone. The upstreams are read again, their responses are
+     * dropped as they arrive.
+     */
+    public void close() {
+        closed = true;
+        Exchange exchange;
+        while (null != (exchange = exchanges.poll())) {
+            exchange.unbindUpstream();
+            exchange.releaseHeld();
+        }
+    }
+
+    boolean isHead(Exchange exchange) {
+        return !closed && exchanges.peek() == exchange;
+    }
+
+    void write(Object msg) {
+        channel.write(msg, channel.voidPromise());
+    }
+
+    // writes the exchanges that were waiting for the ended ones
+    void ended(Exchange exchange) {
+        if (closed || exchanges.peek() != exchange) {
+            return;
+        }
+        while (null != (exchange = exchanges.peek()) && exchange.isEnded()) {
+            exchanges.poll();
+            if (exchange.isAborted()) {
+                closed = true;
+                channel.flush();
+                channel.close();
+                close();
+                return;
+            }
+            if (!exchange.isKeepAlive()) {
+                closed = true;
+                channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                close();
+                return;
+            }
+            Exchange next = exchanges.peek();
+            if (null != next) {
+                next.writeHeld();
+            }
+        }
+        channel.flush();
+        if (exchanges.size() <= depth) {
+            resumeRead(PIPELINE_FULL);
+        }
+    }
+}
@@ -3,42 +3,133 @@ package reverseproxy.core;
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.kqueue.KQueue;
+import io.netty.channel.kqueue.KQueueDatagramChannel;
 import io.netty.channel.kqueue.KQueueEventLoopGroup;
 import io.netty.channel.kqueue.KQueueServerSocketChannel;
 import io.netty.channel.kqueue.KQueueSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import reverseproxy.util.PlatformUtil;
 
+import java.net.InetSocketAddress;
+import java.util.Locale;
 import java.util.concurrent.ThreadFactory;
 
 public class Independent {
 
-    public static EventLoopGroup newEventLoopGroup(int nThreads, ThreadFactory threadFactory) {
-        if (PlatformUtil.isMac()) {
-            return new KQueueEventLoopGroup(nThreads, threadFactory);
+    private static final Logger logger = LoggerFactory.getLogger(Independent.class);
+
+    public enum Transport {
+        EPOLL, KQUEUE, NIO
+    }
+
+    private static volatile Transport transport = select("auto");
+
+    private static volatile AddressResolverGroup<InetSocketAddress> resolver;
+
+    /**
+     * Selects the transport used by all event loop groups and channels created afterwards. "auto" picks the
+     * native transport of the platform when it is available, an unavailable native transport falls back to NIO.
+     */
+    public static void init(String name) {
+        transport = select(name);
+        logger.info(String.format("using %s transport", transport));
+    }
+
+    public static Transport transport() {
+        return transport;
+    }
+
+    private static Transport select(String name) {
+        Transport wanted;
+        if (null == name || "auto".equalsIgnoreCase(name)) {
+            wanted = PlatformUtil.isMac() ? Transport.KQUEUE : Transport.EPOLL;
         } else {
-            return new NioEventLoopGroup(nThreads, threadFactory);
+            wanted = Transport.valueOf(name.toUpperCase(Locale.ROOT));
+        }
+        if (Transport.EPOLL == wanted && !Epoll.isAvailable()) {
+            logger.warn("epoll transport unavailable, falling back to nio", Epoll.unavailabilityCause());
+            return Transport.NIO;
+        }
+        if (Transport.KQUEUE == wanted && !KQueue.isAvailable()) {
+            logger.warn("kqueue transport unavailable, falling back to nio", KQueue.unavailabilityCause());
+            return Transport.NIO;
+        }
+        return wanted;
+    }
+
+    public static EventLoopGroup newEventLoopGroup(int nThreads, ThreadFactory threadFactory) {
+        switch (transport) {
+            case EPOLL:
+                return new EpollEventLoopGroup(nThreads, threadFactory);
+            case KQUEUE:
+                return new KQueueEventLoopGroup(nThreads, threadFactory);
+            default:
+                return new NioEventLoopGroup(nThreads, threadFactory);
         }
     }
 
     public static Class<? extends Channel> channelClass() {
-        if (PlatformUtil.isMac()) {
-            return KQueueSocketChannel.class;
-        } else {
-            return NioSocketChannel.class;
+        switch (transport) {
+            case EPOLL:
+                return EpollSocketChannel.class;
+            case KQUEUE:
+                return KQueueSocketChannel.class;
+            default:
+                return NioSocketChannel.class;
+        }
+    }
+
+    public static Class<? extends DatagramChannel> datagramChannelClass() {
+        switch (transport) {
+            case EPOLL:
+                return EpollDatagramChannel.class;
+            case KQUEUE:
+                return KQueueDatagramChannel.class;
+            default:
+                return NioDatagramChannel.class;
+        }
+    }
+
+    /**
+     * @return the resolver of the bootstraps connecting to upstream servers. It queries DNS without blocking the
+     * event loop and caches the answers for their TTL, so a server whose address changes is followed.
+     */
+    public static AddressResolverGroup<InetSocketAddress> resolver() {
+        AddressResolverGroup<InetSocketAddress> group = resolver;
+        if (null == group) {
+            synchronized (Independent.class) {
+                if (null == (group = resolver)) {
+                    resolver = group = new DnsAddressResolverGroup(datagramChannelClass(),
+                            DnsServerAddressStreamProviders.platformDefault());
+                }
+            }
         }
+        return group;
     }
 
     public static Class<? extends ServerChannel> serverChannelClass() {
-        if (PlatformUtil.isMac()) {
-            return KQueueServerSocketChannel.class;
-        } else {
-            return NioServerSocketChannel.class;
+        switch (transport) {
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            case KQUEUE:
+                return KQueueServerSocketChannel.class;
+            default:
+                return NioServerSocketChannel.class;
         }
     }
 }
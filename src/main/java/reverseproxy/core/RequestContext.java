@@ -3,10 +3,6 @@ package reverseproxy.core;
 import io.netty.handler.codec.http.*;
 import io.netty.util.concurrent.FastThreadLocal;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-
 public class RequestContext {
 
     private static final FastThreadLocal<RequestContext> CONTEXT = new FastThreadLocal<RequestContext>() {
@@ -16,12 +12,12 @@ public class RequestContext {
         }
     };
 
-    private final Map<String, LinkedList<Connection>> keepAlivedConns = new HashMap<>();
-
     private final FullHttpResponse errorResponse;
 
     private final FullHttpResponse notfoundResponse;
 
+    private final FullHttpResponse timeoutResponse;
+
     private RequestContext() {
         errorResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR);
         errorResponse.headers().set(HttpHeaderNames.CONTENT_LENGTH, errorResponse.content().readableBytes());
@@ -30,10 +26,10 @@ public class RequestContext {
         notfoundResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
         notfoundResponse.headers().set(HttpHeaderNames.CONTENT_LENGTH, notfoundResponse.content().readableBytes());
         notfoundResponse.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-    }
 
-    public static LinkedList<Connection> keepAlivedConntions(String proxypass) {
-        return CONTEXT.get().getKeepAlivedConns(proxypass);
+        timeoutResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.GATEWAY_TIMEOUT);
+        timeoutResponse.headers().set(HttpHeaderNames.CONTENT_LENGTH, timeoutResponse.content().readableBytes());
+        timeoutResponse.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
     }
 
     public static FullHttpResponse errorResponse() {
@@ -44,13 +40,8 @@ public class RequestContext {
         return CONTEXT.get().getNotfoundResponse().retain();
     }
 
-    public LinkedList<Connection> getKeepAlivedConns(String proxypass) {
-        LinkedList<Connection> conns = keepAlivedConns.get(proxypass);
-        if (null == conns) {
-            conns = new LinkedList<>();
-            keepAlivedConns.put(proxypass, conns);
-        }
-        return keepAlivedConns.get(proxypass);
+    public static FullHttpResponse timeoutResponse() {
+        return CONTEXT.get().getTimeoutResponse().retain();
     }
 
     public FullHttpResponse getErrorResponse() {
@@ -60,4 +51,8 @@ public class RequestContext {
     public FullHttpResponse getNotfoundResponse() {
         return notfoundResponse;
     }
+
+    public FullHttpResponse getTimeoutResponse() {
+        return timeoutResponse;
+    }
 }
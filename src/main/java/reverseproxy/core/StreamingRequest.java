@@ -0,0 +1,125 @@
+package reverseproxy.core;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.route.Route;
+
+import java.util.ArrayDeque;
+
+/**
+ * A request whose body is forwarded to the upstream chunk by chunk. Chunks received before the upstream
+ * connection is ready are queued and written once it is bound. Reading the client is suspended while the upstream
+ * is above its high write watermark, until it drains.
+ */
+public class StreamingRequest {
+
+    private final HttpRequest request;
+
+    private final Route route;
+
+    private final Exchange exchange;
+
+    private final ArrayDeque<HttpContent> pending = new ArrayDeque<>(4);
+
+    // replaced when the connect is retried on another server
+    private Server server;
+
+    private Channel upstream;
+
+    private boolean lastReceived;
+
+    private boolean aborted;
+
+    public StreamingRequest(HttpRequest request, Server server, Route route, Exchange exchange) {
+        this.request = request;
+        this.server = server;
+        this.route = route;
+        this.exchange = exchange;
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public void setServer(Server server) {
+        this.server = server;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    public Exchange getExchange() {
+        return exchange;
+    }
+
+    public Channel getUpstream() {
+        return upstream;
+    }
+
+    public boolean isLastReceived() {
+        return lastReceived;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Queues a retained chunk until the upstream is bound, or writes it directly afterwards.
+     */
+    public void offer(HttpContent content) {
+        if (content instanceof LastHttpContent) {
+            lastReceived = true;
+        }
+        if (aborted) {
+            content.release();
+        } else if (null == upstream) {
+            pending.add(content);
+        } else {
+            upstream.write(content).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+            suspendIfFull();
+        }
+    }
+
+    /**
+     * Binds the upstream channel and writes the request line, headers and all queued chunks to it.
+     */
+    public void bind(Channel upstream) {
+        this.upstream = upstream;
+        upstream.write(request).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        HttpContent content;
+        while (null != (content = pending.poll())) {
+            upstream.write(content).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        }
+        upstream.flush();
+        suspendIfFull();
+    }
+
+    // the upstream handler resumes once it is writable again
+    private void suspendIfFull() {
+        if (!lastReceived && upstream.isActive() && !upstream.isWritable()) {
+            ExchangeQueue.of(exchange.downstream()).suspendRead(ExchangeQueue.UPSTREAM_FULL);
+        }
+    }
+
+    /**
+     * Drops all queued chunks and every chunk received afterwards.
+     */
+    public void abort() {
+        aborted = true;
+        HttpContent content;
+        while (null != (content = pending.poll())) {
+            ReferenceCountUtil.release(content);
+        }
+    }
+}
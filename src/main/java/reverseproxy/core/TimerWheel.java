@@ -0,0 +1,224 @@
+package reverseproxy.core;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Timeouts of one event loop in a hashed wheel, like Netty's {@code HashedWheelTimer} but driven by the loop
+ * itself instead of a thread of its own. Scheduling and cancelling are O(1) and touch no shared state; a single
+ * task of the loop advances the wheel every {@link #TICK_MILLIS} while timeouts are pending, so thousands of them
+ * cost no more than a few list links each. Deadlines are rounded up to the next tick.
+ * <p>
+ * All methods must be called by the event loop owning the wheel, and the tasks run on it.
+ */
+public final class TimerWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    public static final long TICK_MILLIS = 100;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+
+    // one turn is 51.2s, later deadlines stay in their bucket for more turns
+    private static final int WHEEL_SIZE = 512;
+
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    // Timeout#bucket of a timeout not in the wheel, and of one expired but not run yet
+    private static final int NONE = -1;
+
+    private static final int EXPIRING = -2;
+
+    private static final FastThreadLocal<TimerWheel> WHEEL = new FastThreadLocal<>();
+
+    private final EventExecutor executor;
+
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+
+    // System::nanoTime, the tests move it by hand
+    private final LongSupplier clock;
+
+    private final long startTime;
+
+    // the last tick whose bucket expired
+    private long tick;
+
+    private int pending;
+
+    private ScheduledFuture<?> ticker;
+
+    TimerWheel(EventExecutor executor, LongSupplier clock) {
+        this.executor = executor;
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+    }
+
+    /**
+     * @return the wheel of the event loop, which must be the calling thread
+     */
+    public static TimerWheel of(EventExecutor executor) {
+        TimerWheel wheel = WHEEL.get();
+        if (null == wheel) {
+            wheel = new TimerWheel(executor, System::nanoTime);
+            WHEEL.set(wheel);
+        }
+        return wheel;
+    }
+
+    /**
+     * Runs the task once the delay is over unless the returned timeout is cancelled first.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task);
+        schedule(timeout, delay, unit);
+        return timeout;
+    }
+
+    /**
+     * Schedules a timeout again, from now; it is cancelled first if it is still pending.
+     */
+    public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        if (timeout.wheel != this) {
+            throw new IllegalArgumentException("timeout of another event loop");
+        }
+        timeout.cancel();
+        long now = currentTick();
+        if (0 == pending) {
+            // nothing expired while the wheel was stopped
+            tick = now;
+        }
+        long deadline = now + Math.max(1, (unit.toNanos(delay) + TICK_NANOS - 1) / TICK_NANOS);
+        timeout.deadline = deadline;
+        link(timeout, (int) (deadline & MASK));
+        if (1 == ++pending && null == ticker) {
+            ticker = executor.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the timeouts not yet expired or cancelled
+     */
+    public int pending() {
+        return pending;
+    }
+
+    private long currentTick() {
+        return (clock.getAsLong() - startTime) / TICK_NANOS;
+    }
+
+    // run by the ticker, expires the buckets of the ticks passed since
+    void advance() {
+        long now = currentTick();
+        while (tick < now && pending > 0) {
+            tick++;
+            expire(tick);
+        }
+        if (0 == pending && null != ticker) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    private void expire(long tick) {
+        // unlinked first, a task may schedule or cancel timeouts of the same bucket
+        Timeout expired = null;
+        for (Timeout timeout = buckets[(int) (tick & MASK)]; null != timeout; ) {
+            Timeout next = timeout.next;
+            if (timeout.deadline <= tick) {
+                unlink(timeout);
+                timeout.bucket = EXPIRING;
+                timeout.nextExpired = expired;
+                expired = timeout;
+            }
+            timeout = next;
+        }
+        while (null != expired) {
+            Timeout timeout = expired;
+            expired = timeout.nextExpired;
+            timeout.nextExpired = null;
+            if (EXPIRING != timeout.bucket) {
+                // cancelled or scheduled again by an earlier task
+                continue;
+            }
+            timeout.bucket = NONE;
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                logger.error("timeout task failed", t);
+            }
+        }
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        Timeout head = buckets[bucket];
+        timeout.bucket = bucket;
+        timeout.next = head;
+        if (null != head) {
+            head.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (null != timeout.prev) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (null != timeout.next) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = NONE;
+        pending--;
+    }
+
+    /**
+     * A task in the wheel, can be scheduled again once it expired or was cancelled.
+     */
+    public static final class Timeout {
+
+        private final TimerWheel wheel;
+
+        private final Runnable task;
+
+        private long deadline;
+
+        // NONE while not in the wheel
+        private int bucket = NONE;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        // the timeouts of the tick being expired
+        private Timeout nextExpired;
+
+        private Timeout(TimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * @return whether the task is still to run
+         */
+        public boolean isPending() {
+            return bucket >= 0;
+        }
+
+        public void cancel() {
+            if (bucket >= 0) {
+                wheel.unlink(this);
+            } else {
+                bucket = NONE;
+            }
+        }
+    }
+}
@@ -1,200 +1,405 @@
 package reverseproxy.downstream;
 
-import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.accesslog.AccessLog;
+import reverseproxy.cache.CacheFill;
+import reverseproxy.cache.DiskResponse;
+import reverseproxy.cache.ResponseCache;
+import reverseproxy.compression.Compression;
 import reverseproxy.conf.ReverseProxyConfig.Server;
 import reverseproxy.core.AttributeKeys;
-import reverseproxy.core.Connection;
+import reverseproxy.core.Exchange;
+import reverseproxy.core.ExchangeQueue;
 import reverseproxy.core.RequestContext;
-import reverseproxy.upstream.ReverseProxyUpStreamChannelInitializer;
+import reverseproxy.core.StreamingRequest;
+import reverseproxy.metrics.Metrics;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.route.Route;
+import reverseproxy.upstream.UpstreamTimeoutHandler;
+import reverseproxy.upstream.health.ServerHealth;
 import reverseproxy.upstream.lb.RoundRobin;
-import reverseproxy.upstream.lb.RoundRobinFactory;
-
-import java.util.Iterator;
-import java.util.LinkedList;
+import reverseproxy.upstream.pool.Connection;
+import reverseproxy.upstream.pool.ConnectionPool;
 
 @ChannelHandler.Sharable
-public class DownStreamHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+public class DownStreamHandler extends SimpleChannelInboundHandler<HttpObject> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownStreamHandler.class);
 
-    private static final int MAX_ATTEMPTS = 3;
-
-    private final ReverseProxyConfig config;
-
-    private final RoundRobinFactory robinFactory;
-
-    public DownStreamHandler(ReverseProxyConfig config, RoundRobinFactory robinFactory) {
-        this.config = config;
-        this.robinFactory = robinFactory;
+    @Override
+    protected void channelRead0(ChannelHandlerContext channelHandlerContext, HttpObject httpObject) throws Exception {
+        if (httpObject instanceof FullHttpRequest) {
+            proxyRequest(channelHandlerContext, (FullHttpRequest) httpObject);
+        } else if (httpObject instanceof HttpRequest) {
+            startStreaming(channelHandlerContext, (HttpRequest) httpObject);
+        } else if (httpObject instanceof HttpContent) {
+            streamContent(channelHandlerContext, (HttpContent) httpObject);
+        }
     }
 
-    @Override
-    protected void channelRead0(ChannelHandlerContext channelHandlerContext, FullHttpRequest fullHttpRequest) throws Exception {
+    private void proxyRequest(ChannelHandlerContext channelHandlerContext, FullHttpRequest fullHttpRequest) {
         final Channel downstream = channelHandlerContext.channel();
 
-        boolean keepAlive = HttpUtil.isKeepAlive(fullHttpRequest);
-        HttpHeaders requestHeaders = fullHttpRequest.headers();
+        Exchange exchange = ExchangeQueue.of(downstream).start(HttpUtil.isKeepAlive(fullHttpRequest));
+        if (exchange.isAborted()) {
+            // pipelined past a response that closes the connection, nobody would get the answer
+            downstream.attr(AttributeKeys.ROUTE_KEY).set(null);
+            return;
+        }
 
-        // get Host header
-        String serverName = requestHeaders.get(HttpHeaderNames.HOST);
-        // get proxy_pass
-        String proxyPass = config.proxyPass(serverName, fullHttpRequest.uri());
+        // get route
+        Route route = route(downstream, fullHttpRequest);
 
+        ResponseCache cache = null != route && route.cache() ? ResponseCache.current() : null;
+        if (null != cache && fromCache(cache, exchange, fullHttpRequest)) {
+            return;
+        }
+        CacheFill cacheFill = null == cache ? null : cache.fill(fullHttpRequest);
+        if (null != cacheFill) {
+            // held until the fetch it waits for is settled
+            fullHttpRequest.retain();
+            boolean waiting = cacheFill.join(downstream.eventLoop(), response -> {
+                if (null != response && downstream.isActive()) {
+                    writeCached(exchange, fullHttpRequest, response);
+                } else if (null != response) {
+                    response.release();
+                } else if (downstream.isActive()) {
+                    forward(exchange, route, fullHttpRequest, cache.fill(fullHttpRequest));
+                }
+                fullHttpRequest.release();
+            });
+            if (waiting) {
+                return;
+            }
+            fullHttpRequest.release();
+        }
+        forward(exchange, route, fullHttpRequest, cacheFill);
+    }
+
+    /**
+     * Sends a buffered request that was not answered from the cache to the upstream.
+     */
+    private void forward(Exchange exchange, Route route, FullHttpRequest request, CacheFill cacheFill) {
         // get roundRobin
         RoundRobin roundRobin = null;
         Server server = null;
-        if (null == proxyPass || null == (roundRobin = robinFactory.roundRobin(proxyPass))
-                || null == (server = roundRobin.next())) {
+        if (null == route || null == (roundRobin = route.roundRobin()) || null == (server = roundRobin.next())) {
             // return 404
-            notFound(channelHandlerContext, keepAlive);
+            if (null != cacheFill) {
+                cacheFill.abort();
+            }
+            notFound(exchange, request);
             return;
         }
+        route.retryPolicy().deposit();
+        exchange.setCacheFill(cacheFill);
 
         // rewrite http request(keep alive to upstream)
-        fullHttpRequest.setProtocolVersion(HttpVersion.HTTP_1_1);
-        requestHeaders.remove(HttpHeaderNames.CONNECTION);
+        request.setProtocolVersion(HttpVersion.HTTP_1_1);
+        request.headers().remove(HttpHeaderNames.CONNECTION);
 
         // increase refCount
-        fullHttpRequest.retain();
+        request.retain();
         // proxy request
-        proxy(server, proxyPass, downstream, fullHttpRequest, keepAlive, MAX_ATTEMPTS);
+        proxy(route, server, exchange, request, route.retryPolicy().maxRetries());
+    }
+
+    private boolean fromCache(ResponseCache cache, Exchange exchange, HttpRequest request) {
+        HttpResponse response = cache.lookup(request, Compression.current());
+        if (null == response) {
+            return false;
+        }
+        writeCached(exchange, request, response);
+        return true;
+    }
+
+    private void writeCached(Exchange exchange, HttpRequest request, HttpResponse response) {
+        if (exchange.isKeepAlive()) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        if (response instanceof DiskResponse && exchange.downstream() instanceof Http2StreamChannel) {
+            // HTTP/2 frames can not be sent from a file, the body is copied
+            response = ((DiskResponse) response).toFullHttpResponse(exchange.downstream().alloc());
+        }
+        if (response instanceof DiskResponse) {
+            // the body goes out as a file region, with sendfile where the transport supports it
+            DiskResponse diskResponse = (DiskResponse) response;
+            AccessLog.log(exchange.downstream(), request, response.status().code(), diskResponse.contentLength(),
+                    null, -1);
+            exchange.write(response);
+            exchange.write(diskResponse.body());
+            exchange.end(LastHttpContent.EMPTY_LAST_CONTENT);
+        } else {
+            AccessLog.log(exchange.downstream(), request, response.status().code(),
+                    ((FullHttpResponse) response).content().readableBytes(), null, -1);
+            exchange.end(response);
+        }
     }
 
-    /*@Override
-    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+    private void startStreaming(ChannelHandlerContext ctx, HttpRequest request) {
         final Channel downstream = ctx.channel();
 
-        boolean keepAlive = HttpUtil.isKeepAlive(request);
-        HttpHeaders requestHeaders = request.headers();
+        Exchange exchange = ExchangeQueue.of(downstream).start(HttpUtil.isKeepAlive(request));
+        if (exchange.isAborted()) {
+            // pipelined past a response that closes the connection, the body that follows is released as it
+            // arrives
+            downstream.attr(AttributeKeys.ROUTE_KEY).set(null);
+            return;
+        }
+        Route route = route(downstream, request);
 
-        // get Host header
-        String serverName = requestHeaders.get(HttpHeaderNames.HOST);
-        // get proxy_pass
-        String proxyPass = config.proxyPass(serverName, request.uri());
+        ResponseCache cache = null != route && route.cache() ? ResponseCache.current() : null;
+        if (null != cache && fromCache(cache, exchange, request)) {
+            // the body that follows is released as it arrives
+            return;
+        }
+        CacheFill cacheFill = null == cache ? null : cache.fill(request);
+        // only a request without body can wait, it is complete once the headers are decoded
+        if (null != cacheFill && !HttpUtil.isTransferEncodingChunked(request)
+                && 0 == HttpUtil.getContentLength(request, 0L)
+                && cacheFill.join(downstream.eventLoop(), response -> {
+                    if (null != response && downstream.isActive()) {
+                        writeCached(exchange, request, response);
+                    } else if (null != response) {
+                        response.release();
+                    } else if (downstream.isActive()) {
+                        forwardStreaming(exchange, route, request, cache.fill(request), true);
+                    }
+                })) {
+            // the empty body that follows is released as it arrives
+            return;
+        }
+        forwardStreaming(exchange, route, request, cacheFill, false);
+    }
+
+    /**
+     * Sends a streamed request that was not answered from the cache to the upstream.
+     *
+     * @param complete whether the request has no body and its end was already received
+     */
+    private void forwardStreaming(Exchange exchange, Route route, HttpRequest request, CacheFill cacheFill,
+                                  boolean complete) {
+        final Channel downstream = exchange.downstream();
 
-        // get roundRobin
         RoundRobin roundRobin = null;
         Server server = null;
-        if (null == proxyPass || null == (roundRobin = robinFactory.roundRobin(proxyPass))
-                || null == (server = roundRobin.next())) {
-            // return 404
-            notFound(ctx, keepAlive);
+        if (null == route || null == (roundRobin = route.roundRobin()) || null == (server = roundRobin.next())) {
+            // the body that follows is released as it arrives
+            if (null != cacheFill) {
+                cacheFill.abort();
+            }
+            notFound(exchange, request);
             return;
         }
+        route.retryPolicy().deposit();
+        exchange.setCacheFill(cacheFill);
 
-        // rewrite http request(keep alive to upstream)
         request.setProtocolVersion(HttpVersion.HTTP_1_1);
-        requestHeaders.remove(HttpHeaderNames.CONNECTION);
+        request.headers().remove(HttpHeaderNames.CONNECTION);
 
-        // increase refCount
-        request.retain();
-        // proxy request
-        proxy(server, proxyPass, downstream, request, keepAlive, MAX_ATTEMPTS);
-    }*/
+        StreamingRequest streamingRequest = new StreamingRequest(request, server, route, exchange);
+        if (complete) {
+            streamingRequest.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+        } else {
+            downstream.attr(AttributeKeys.STREAMING_REQUEST_KEY).set(streamingRequest);
+            // stop reading the body until the upstream connection is ready
+            ExchangeQueue.of(downstream).suspendRead(ExchangeQueue.CONNECTING);
+        }
+        proxyStreaming(streamingRequest, route.retryPolicy().maxRetries());
+    }
+
+    private void streamContent(ChannelHandlerContext ctx, HttpContent content) {
+        StreamingRequest streamingRequest = ctx.channel().attr(AttributeKeys.STREAMING_REQUEST_KEY).get();
+        if (null == streamingRequest) {
+            return;
+        }
+        streamingRequest.offer(content.retain());
+        if (streamingRequest.isLastReceived()) {
+            ctx.channel().attr(AttributeKeys.STREAMING_REQUEST_KEY).set(null);
+            if (null != streamingRequest.getUpstream()) {
+                streamingRequest.getUpstream().flush();
+            }
+        }
+    }
+
+    private Route route(Channel downstream, HttpRequest request) {
+        // matched by the aggregator while decoding
+        Route route = downstream.attr(AttributeKeys.ROUTE_KEY).getAndSet(null);
+        if (null == route) {
+            return Snapshot.current().routeTable().route(request.headers().get(HttpHeaderNames.HOST), request.uri());
+        }
+        return route;
+    }
 
-    public void proxy(Server server, String proxyPass, Channel downstream, FullHttpRequest request, boolean keepAlived,
-                      int maxAttempts) {
+    public void proxy(Route route, Server server, Exchange exchange, FullHttpRequest request, int retries) {
         // get connection from cache
-        Connection connection = getConn(server, proxyPass);
+        Connection connection = getConn(server);
+        Metrics.server(server).pool(null != connection);
         if (null == connection) {// need create an new connection
-            createConnAndSendRequest(downstream, server, proxyPass, request, keepAlived, maxAttempts);
+            createConnAndSendRequest(route, exchange, server, request, retries);
         } else {// use the cached connection
-            setContextAndRequest(server, proxyPass, request, connection.getChannel(), downstream, keepAlived, false,
-                    maxAttempts);
-        }
-    }
-
-    public void createConnAndSendRequest(Channel downstream, Server server, String proxyPass, FullHttpRequest request,
-                                         boolean keepAlived, int maxAttempts) {
-        Bootstrap b = new Bootstrap();
-        b.group(downstream.eventLoop());
-        b.channel(downstream.getClass());
-
-        b.option(ChannelOption.TCP_NODELAY, true);
-        b.option(ChannelOption.SO_KEEPALIVE, true);
-        // default is pooled direct
-        // ByteBuf(io.netty.util.internal.PlatformDependent.DIRECT_BUFFER_PREFERRED)
-        b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
-        // 32kb(for massive long connections, See
-        // http://www.infoq.com/cn/articles/netty-million-level-push-service-design-points)
-        // 64kb(RocketMq remoting default value)
-        b.option(ChannelOption.SO_SNDBUF, 32 * 1024);
-        b.option(ChannelOption.SO_RCVBUF, 32 * 1024);
-        // temporary settings, need more tests
-        b.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(8 * 1024, 32 * 1024));
-        // default is true, reduce thread context switching
-        b.option(ChannelOption.SINGLE_EVENTEXECUTOR_PER_GROUP, true);
-
-        b.handler(new ReverseProxyUpStreamChannelInitializer(server, proxyPass));
-
-        ChannelFuture connectFuture = b.connect(server.getIp(), server.getPort());
-        connectFuture.addListener(new ChannelFutureListener() {
+            setContextAndRequest(route, server, request, connection.getChannel(), exchange, false, retries);
+        }
+    }
+
+    /**
+     * Sends a request that failed on {@code failed} to another server of the route, if its retry policy allows.
+     *
+     * @param sent whether the request may have reached the failed server
+     * @return false if the request is not retried
+     */
+    private boolean retry(Route route, Server failed, Exchange exchange, FullHttpRequest request, int retries,
+                          boolean sent) {
+        if (retries <= 0 || !exchange.downstream().isActive()) {
+            return false;
+        }
+        if (!route.retryPolicy().tryRetry(request.method(), sent)) {
+            Metrics.server(failed).retryDenied();
+            return false;
+        }
+        Metrics.server(failed).retry();
+        proxy(route, route.roundRobin().next(failed), exchange, request, retries - 1);
+        return true;
+    }
+
+    public void proxyStreaming(StreamingRequest request, int retries) {
+        Exchange exchange = request.getExchange();
+        Channel downstream = exchange.downstream();
+        Connection connection = getConn(request.getServer());
+        Metrics.server(request.getServer()).pool(null != connection);
+        if (null != connection) {
+            bindStreaming(request, connection.getChannel());
+            return;
+        }
+        ConnectionPool.current()
+                .connect(downstream.eventLoop(), request.getServer(), request.getRoute().connectTimeout())
+                .addListener(new GenericFutureListener<Future<Channel>>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) throws Exception {
+                        if (future.isSuccess()) {
+                            bindStreaming(request, future.getNow());
+                            return;
+                        }
+                        Server failed = request.getServer();
+                        Metrics.server(failed).connectFailure();
+                        ServerHealth.of(failed).failure();
+                        // nothing was sent yet, any method can go to another server
+                        if (retries > 0 && !request.isAborted()
+                                && request.getRoute().retryPolicy().tryRetry(request.getRequest().method(), false)) {
+                            Metrics.server(failed).retry();
+                            request.setServer(request.getRoute().roundRobin().next(failed));
+                            proxyStreaming(request, retries - 1);
+                        } else {
+                            request.abort();
+                            downstream.attr(AttributeKeys.STREAMING_REQUEST_KEY).compareAndSet(request, null);
+                            abortCacheFill(exchange);
+                            AccessLog.log(downstream, request.getRequest(), 500, 0, request.getServer(), -1);
+                            // keep reading so the rest of the body is discarded
+                            ExchangeQueue.of(downstream).resumeRead(ExchangeQueue.CONNECTING);
+                            exchange.end(RequestContext.errorResponse());
+                        }
+                    }
+                });
+    }
+
+    private void bindStreaming(StreamingRequest request, Channel upstream) {
+        if (request.isAborted()) {
+            // the downstream went away while connecting
+            upstream.close();
+            return;
+        }
+        upstream.attr(AttributeKeys.EXCHANGE_KEY).set(request.getExchange());
+        upstream.attr(AttributeKeys.STREAMING_KEY).set(true);
+        request.getExchange().bindUpstream(upstream);
+        ConnectionPool.connection(upstream).startExchange(request.getRequest());
+        Metrics.server(request.getServer()).request();
+        // the body is gone once sent, the upstream handler answers when the connection is closed
+        UpstreamTimeoutHandler.arm(upstream, request.getRoute().readTimeout(), request.getRoute().requestTimeout(),
+                () -> {
+                    upstream.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+                    upstream.close();
+                });
+        request.bind(upstream);
+        ExchangeQueue.of(request.getExchange().downstream()).resumeRead(ExchangeQueue.CONNECTING);
+    }
+
+    public void createConnAndSendRequest(Route route, Exchange exchange, Server server, FullHttpRequest request,
+                                         int retries) {
+        Channel downstream = exchange.downstream();
+        Future<Channel> connectFuture = ConnectionPool.current().connect(downstream.eventLoop(), server,
+                route.connectTimeout());
+        connectFuture.addListener(new GenericFutureListener<Future<Channel>>() {
             @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                System.out.println("Operation Complete");
+            public void operationComplete(Future<Channel> future) throws Exception {
                 if (future.isSuccess()) {
-                    setContextAndRequest(server, proxyPass, request, future.channel(), downstream, keepAlived, true,
-                            maxAttempts);
+                    setContextAndRequest(route, server, request, future.getNow(), exchange, true, retries);
                 } else {
-                    if (maxAttempts > 0) {
-                        proxy(server, proxyPass, downstream, request, keepAlived, maxAttempts - 1);
-                    } else {
+                    Metrics.server(server).connectFailure();
+                    ServerHealth.of(server).failure();
+                    if (!retry(route, server, exchange, request, retries, false)) {
+                        abortCacheFill(exchange);
+                        AccessLog.log(downstream, request, 500, 0, server, -1);
                         request.release();
-                        downstream.writeAndFlush(RequestContext.errorResponse(), downstream.voidPromise());
+                        exchange.end(RequestContext.errorResponse());
                     }
                 }
             }
         });
     }
 
-    public Connection getConn(Server server, String proxyPass) {
-        LinkedList<Connection> conns = RequestContext.keepAlivedConntions(proxyPass);
-        Connection connection = null;
-        Connection tmp = null;
-
-        for (Iterator<Connection> it = conns.iterator(); it.hasNext(); ) {
-            tmp = it.next();
-            // find the matched keepalived connection
-            if (server.equals(tmp.getServer())) {
-                it.remove();
-                connection = tmp;
-                break;
-            }
+    // the request failed, requests waiting for its response fetch on their own
+    private static void abortCacheFill(Exchange exchange) {
+        CacheFill cacheFill = exchange.takeCacheFill();
+        if (null != cacheFill) {
+            cacheFill.abort();
         }
-        return connection;
     }
 
-    public void notFound(ChannelHandlerContext ctx, boolean keepAlived) {
-        if (keepAlived) {
-            ctx.writeAndFlush(RequestContext.notfoundResponse(), ctx.voidPromise());
-        } else {
-            ctx.writeAndFlush(RequestContext.notfoundResponse()).addListener(ChannelFutureListener.CLOSE);
-        }
+    public Connection getConn(Server server) {
+        return ConnectionPool.current().acquire(server);
     }
 
-    public void setContextAndRequest(Server server, String proxyPass, FullHttpRequest request, Channel upstream,
-                                     Channel downstream, boolean keepAlive, final boolean newConn, final int maxAttempts) {
-        // set request context
-        upstream.attr(AttributeKeys.DOWNSTREAM_CHANNEL_KEY).set(downstream);
-        upstream.attr(AttributeKeys.KEEP_ALIVED_KEY).set(keepAlive);
+    public void notFound(Exchange exchange, HttpRequest request) {
+        AccessLog.log(exchange.downstream(), request, 404, 0, null, -1);
+        exchange.end(RequestContext.notfoundResponse());
+    }
 
-        request.retain();
-        upstream.writeAndFlush(request).addListener(new ChannelFutureListener() {
+    public void setContextAndRequest(Route route, Server server, FullHttpRequest request, Channel upstream,
+                                     Exchange exchange, final boolean newConn, final int retries) {
+        // set request context
+        upstream.attr(AttributeKeys.EXCHANGE_KEY).set(exchange);
+        upstream.attr(AttributeKeys.STREAMING_KEY).set(false);
+        exchange.bindUpstream(upstream);
+        ConnectionPool.connection(upstream).startExchange(request);
+        Metrics.server(server).request();
+        UpstreamTimeoutHandler.arm(upstream, route.readTimeout(), route.requestTimeout(),
+                () -> timedOut(route, server, request, upstream, exchange, retries));
+
+        // a duplicate, the content stays readable to send it again
+        upstream.writeAndFlush(request.retainedDuplicate()).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 if (!future.isSuccess()) {
-                    if (maxAttempts > 0) {
-                        proxy(server, proxyPass, downstream, request, keepAlive, maxAttempts - 1);
-                    } else {
-                        downstream.writeAndFlush(RequestContext.errorResponse(), downstream.voidPromise());
+                    // the connection is broken, forget the exchange so closing it does not answer the downstream
+                    upstream.attr(AttributeKeys.EXCHANGE_KEY).set(null);
+                    ConnectionPool.connection(upstream).endExchange();
+                    Metrics.server(server).failure();
+                    ServerHealth.of(server).failure();
+                    upstream.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+                    upstream.close();
+                    if (!retry(route, server, exchange, request, retries, true)) {
+                        abortCacheFill(exchange);
+                        AccessLog.log(exchange.downstream(), request, 500, 0, server, -1);
+                        exchange.end(RequestContext.errorResponse());
                         logger.error(String.format("%s upstream channel[%s] write to backed fail",
                                 newConn ? "new" : "cached", future.channel()), future.cause());
+                        request.release();
                     }
                 } else {
                     request.release();
@@ -203,16 +408,53 @@ public class DownStreamHandler extends SimpleChannelInboundHandler<FullHttpReque
         });
     }
 
+    // the upstream kept the request waiting, another server may answer it
+    private void timedOut(Route route, Server server, FullHttpRequest request, Channel upstream, Exchange exchange,
+                          int retries) {
+        upstream.attr(AttributeKeys.EXCHANGE_KEY).set(null);
+        // held by the connection until now
+        request.retain();
+        ConnectionPool.connection(upstream).endExchange();
+        Metrics.server(server).failure();
+        ServerHealth.of(server).failure();
+        upstream.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+        upstream.close();
+        if (!retry(route, server, exchange, request, retries, true)) {
+            abortCacheFill(exchange);
+            AccessLog.log(exchange.downstream(), request, 504, 0, server, -1);
+            request.release();
+            exchange.end(RequestContext.timeoutResponse());
+        }
+    }
+
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
-        logger.warn(String.format("downstream channel[%s] writability changed, isWritable: %s", ctx.channel(),
-                ctx.channel().isWritable()));
+        // the upstreams stop being read while the client is slow
+        ExchangeQueue.of(ctx.channel()).writabilityChanged(ctx.channel().isWritable());
         super.channelWritabilityChanged(ctx);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        StreamingRequest streamingRequest = ctx.channel().attr(AttributeKeys.STREAMING_REQUEST_KEY).get();
+        if (null != streamingRequest && null != streamingRequest.getUpstream()) {
+            streamingRequest.getUpstream().flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         logger.warn(String.format("downstream channel[%s] inactive", ctx.channel()));
+        ExchangeQueue.of(ctx.channel()).close();
+        StreamingRequest streamingRequest = ctx.channel().attr(AttributeKeys.STREAMING_REQUEST_KEY).getAndSet(null);
+        if (null != streamingRequest) {
+            // the upstream got a partial body and can not be reused
+            streamingRequest.abort();
+            if (null != streamingRequest.getUpstream()) {
+                streamingRequest.getUpstream().close();
+            }
+        }
         super.channelInactive(ctx);
     }
 
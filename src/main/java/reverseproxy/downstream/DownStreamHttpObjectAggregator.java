@@ -0,0 +1,44 @@
+package reverseproxy.downstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.route.Route;
+
+/**
+ * Aggregates requests of buffered locations only, requests of streaming locations pass through as
+ * {@link HttpRequest} followed by their chunks. The matched route is kept on the channel so the
+ * {@link DownStreamHandler} does not match it again.
+ */
+public class DownStreamHttpObjectAggregator extends HttpObjectAggregator {
+
+    private Channel channel;
+
+    public DownStreamHttpObjectAggregator(int maxContentLength) {
+        super(maxContentLength);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            // the snapshot of every request, a keepalive connection picks up a reload with its next request
+            Route route = Snapshot.current().routeTable().route(request.headers().get(HttpHeaderNames.HOST), request.uri());
+            channel.attr(AttributeKeys.ROUTE_KEY).set(route);
+            if (null != route && route.streaming()) {
+                return false;
+            }
+        }
+        return super.acceptInboundMessage(msg);
+    }
+}
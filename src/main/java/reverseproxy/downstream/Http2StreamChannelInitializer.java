@@ -0,0 +1,38 @@
+package reverseproxy.downstream;
+
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import reverseproxy.compression.Compression;
+import reverseproxy.compression.ResponseCompressor;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.core.ExchangeQueue;
+
+/**
+ * The pipeline of an HTTP/2 stream. Its frames are converted to {@link io.netty.handler.codec.http.HttpObject}s,
+ * so a stream is handled like an HTTP/1.1 connection carrying a single request. Streams run on the event loop of
+ * their connection and share its upstream pools.
+ */
+public class Http2StreamChannelInitializer extends ChannelInitializer<Http2StreamChannel> {
+
+    private final DownStreamHandler downStreamHandler;
+
+    public Http2StreamChannelInitializer(DownStreamHandler downStreamHandler) {
+        this.downStreamHandler = downStreamHandler;
+    }
+
+    @Override
+    protected void initChannel(Http2StreamChannel ch) throws Exception {
+        // reading a stream is suspended for its own reasons only, this also holds back its flow control window
+        ch.attr(AttributeKeys.EXCHANGE_QUEUE_KEY).set(new ExchangeQueue(ch, 1));
+        ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast(new Http2StreamFrameToHttpObjectCodec(true));
+        Compression compression = Compression.current();
+        if (null != compression) {
+            pipeline.addLast(new ResponseCompressor(compression));
+        }
+        pipeline.addLast(new DownStreamHttpObjectAggregator(512 * 1024));
+        pipeline.addLast(downStreamHandler);
+    }
+}
@@ -0,0 +1,100 @@
+package reverseproxy.downstream;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.core.ExchangeQueue;
+import reverseproxy.core.TimerWheel;
+import reverseproxy.core.TimerWheel.Timeout;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes a downstream connection once it carried nothing for {@code keepalive_timeout}: no exchange is open, or no
+ * stream for HTTP/2, and nothing was read or flushed. Reads and flushes only stamp the time, the single timeout of
+ * the connection sits in the {@link TimerWheel} of its event loop and when it expires early it is moved to when
+ * the connection can be idle for long enough at the soonest.
+ */
+public class KeepaliveTimeoutHandler extends ChannelDuplexHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(KeepaliveTimeoutHandler.class);
+
+    private static final LongAdder CLOSED = new LongAdder();
+
+    private final long timeoutNanos;
+
+    private ChannelHandlerContext ctx;
+
+    private Timeout timeout;
+
+    private long lastActivity;
+
+    public KeepaliveTimeoutHandler(int timeoutSeconds) {
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    }
+
+    /**
+     * @return the connections closed for being idle
+     */
+    public static long closed() {
+        return CLOSED.sum();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        lastActivity = System.nanoTime();
+        timeout = TimerWheel.of(ctx.executor()).schedule(this::expired, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        timeout.cancel();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        timeout.cancel();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        lastActivity = System.nanoTime();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        lastActivity = System.nanoTime();
+        super.flush(ctx);
+    }
+
+    private void expired() {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        long idle = busy() ? 0 : System.nanoTime() - lastActivity;
+        if (idle < timeoutNanos) {
+            TimerWheel.of(ctx.executor()).schedule(timeout, timeoutNanos - idle, TimeUnit.NANOSECONDS);
+            return;
+        }
+        CLOSED.increment();
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("downstream channel[%s] idle for keepalive_timeout, closing", ctx.channel()));
+        }
+        ctx.close();
+    }
+
+    private boolean busy() {
+        Http2FrameCodec codec = ctx.pipeline().get(Http2FrameCodec.class);
+        if (null != codec) {
+            return codec.connection().numActiveStreams() > 0;
+        }
+        ExchangeQueue exchanges = ExchangeQueue.of(ctx.channel());
+        return null != exchanges && !exchanges.isIdle();
+    }
+}
@@ -1,26 +1,115 @@
 package reverseproxy.downstream;
 
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.AsciiString;
+import reverseproxy.compression.Compression;
+import reverseproxy.compression.ResponseCompressor;
 import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.core.ConnectionLimit;
+import reverseproxy.core.ExchangeQueue;
+import reverseproxy.reload.Snapshot;
 
 public class ReverseProxyDownStreamChannelInitializer extends ChannelInitializer<Channel> {
 
+    private static final int MAX_CONTENT_LENGTH = 512 * 1024;
+
     private final DownStreamHandler downStreamHandler;
 
-    public ReverseProxyDownStreamChannelInitializer(ReverseProxyConfig config, DownStreamHandler downStreamHandler) {
+    private final Http2StreamChannelInitializer streamInitializer;
+
+    public ReverseProxyDownStreamChannelInitializer(DownStreamHandler downStreamHandler) {
         this.downStreamHandler = downStreamHandler;
+        this.streamInitializer = new Http2StreamChannelInitializer(downStreamHandler);
     }
 
     @Override
     protected void initChannel(Channel ch) throws Exception {
+        // a connection keeps the settings of the snapshot it was accepted with
+        ReverseProxyConfig config = Snapshot.current().config();
+        if (!ConnectionLimit.admit(ch, config.workerConnections())) {
+            return;
+        }
+        ch.attr(AttributeKeys.EXCHANGE_QUEUE_KEY).set(new ExchangeQueue(ch, config.pipelineDepth()));
         ChannelPipeline pipeline = ch.pipeline();
-        pipeline.addLast(new HttpServerCodec());
-        pipeline.addLast(new HttpObjectAggregator(512 * 1024));
+        if (config.keepaliveTimeout() > 0) {
+            // first, it sees the bytes of HTTP/1.1 and HTTP/2 alike
+            pipeline.addLast(new KeepaliveTimeoutHandler(config.keepaliveTimeout()));
+        }
+        DownStreamHttpObjectAggregator aggregator = new DownStreamHttpObjectAggregator(MAX_CONTENT_LENGTH);
+        if (config.http2()) {
+            // HTTP/1.1 until the client sends the HTTP/2 preface or asks for an h2c upgrade
+            HttpServerCodec codec = new HttpServerCodec();
+            HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(codec, protocol -> {
+                if (!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                    return null;
+                }
+                return new Http2ServerUpgradeCodec(frameCodec(config), new Http2Handlers(config, aggregator, true));
+            }, MAX_CONTENT_LENGTH);
+            pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(codec, upgradeHandler,
+                    new Http2Handlers(config, aggregator, false)));
+        } else {
+            pipeline.addLast(new HttpServerCodec());
+        }
+        Compression compression = Compression.current();
+        if (null != compression) {
+            pipeline.addLast(new ResponseCompressor(compression));
+        }
+        pipeline.addLast(aggregator);
         pipeline.addLast(downStreamHandler);
     }
 
+    private static Http2FrameCodec frameCodec(ReverseProxyConfig config) {
+        return Http2FrameCodecBuilder.forServer()
+                .initialSettings(Http2Settings.defaultSettings()
+                        .maxConcurrentStreams(config.http2MaxConcurrentStreams()))
+                .build();
+    }
+
+    /**
+     * Switches a connection to HTTP/2: the HTTP/1.1 handlers are replaced with the multiplexer, which gives
+     * every stream a child channel set up by the {@link Http2StreamChannelInitializer}.
+     */
+    private final class Http2Handlers extends ChannelInitializer<Channel> {
+
+        private final ReverseProxyConfig config;
+
+        private final ChannelHandler aggregator;
+
+        // the upgrade codec added the frame codec already
+        private final boolean upgraded;
+
+        Http2Handlers(ReverseProxyConfig config, ChannelHandler aggregator, boolean upgraded) {
+            this.config = config;
+            this.aggregator = aggregator;
+            this.upgraded = upgraded;
+        }
+
+        @Override
+        protected void initChannel(Channel ch) throws Exception {
+            ChannelPipeline pipeline = ch.pipeline();
+            pipeline.remove(aggregator);
+            pipeline.remove(downStreamHandler);
+            if (null != pipeline.get(ResponseCompressor.class)) {
+                // every stream compresses its own responses
+                pipeline.remove(ResponseCompressor.class);
+            }
+            if (!upgraded) {
+                pipeline.addLast(frameCodec(config));
+            }
+            pipeline.addLast(new Http2MultiplexHandler(streamInitializer));
+        }
+    }
 }
@@ -0,0 +1,52 @@
+package reverseproxy.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed Prometheus style buckets. A histogram belongs to one event loop: recording is a
+ * plain read followed by an ordered store, no lock and no CAS, and any thread can read a consistent enough copy.
+ */
+public final class Histogram {
+
+    // upper bounds in seconds, a last +Inf bucket follows
+    static final double[] BOUNDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1_000_000_000L);
+        }
+    }
+
+    // the +Inf bucket
+    static final int INF = BOUNDS.length;
+
+    // the sum of all recorded values in nanoseconds, stored after the buckets
+    static final int SUM = INF + 1;
+
+    static final int LENGTH = SUM + 1;
+
+    private final AtomicLongArray values = new AtomicLongArray(LENGTH);
+
+    /**
+     * Must only be called by the owning event loop.
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < INF && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        values.lazySet(i, values.get(i) + 1);
+        values.lazySet(SUM, values.get(SUM) + Math.max(0, nanos));
+    }
+
+    /**
+     * Adds the non-cumulative bucket counts followed by the sum to {@code into}, which has {@link #LENGTH} slots.
+     */
+    void mergeInto(long[] into) {
+        for (int i = 0; i < LENGTH; i++) {
+            into[i] += values.get(i);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package reverseproxy.metrics;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import reverseproxy.accesslog.AccessLog;
+import reverseproxy.cache.DiskCache;
+import reverseproxy.cache.ResponseCache;
+import reverseproxy.compression.Compression;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.core.ConnectionLimit;
+import reverseproxy.downstream.KeepaliveTimeoutHandler;
+import reverseproxy.upstream.health.ServerHealth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per upstream and per server request metrics. Every event loop records into its own shard, with no contention
+ * between loops, and the shards are merged when the metrics are scraped.
+ */
+public final class Metrics {
+
+    private static final List<Shard> SHARDS = new CopyOnWriteArrayList<>();
+
+    private static final FastThreadLocal<Shard> SHARD = new FastThreadLocal<Shard>() {
+        @Override
+        protected Shard initialValue() throws Exception {
+            Shard shard = new Shard();
+            SHARDS.add(shard);
+            return shard;
+        }
+    };
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the stats of the server owned by the calling event loop
+     */
+    public static ServerStats server(Server server) {
+        return SHARD.get().stats(server);
+    }
+
+    /**
+     * Writes the merged metrics in the Prometheus text exposition format(version 0.0.4).
+     */
+    public static void writeTo(StringBuilder out) {
+        // merged per upstream and address, ordered so the output is stable between scrapes; a server replaced by
+        // a reload carries on with the same series, one it removed is no longer exported
+        Map<String, Merged> byServer = new TreeMap<>();
+        for (Shard shard : SHARDS) {
+            for (ServerStats stats : shard.statsById) {
+                Server server;
+                if (null == stats || null == (server = stats.server()) || server.isRetired()) {
+                    continue;
+                }
+                String key = upstream(server) + '\0' + address(server);
+                Merged merged = byServer.get(key);
+                if (null == merged) {
+                    merged = new Merged(server);
+                    byServer.put(key, merged);
+                }
+                stats.mergeInto(merged.counters, merged.latency);
+            }
+        }
+        Map<String, Merged> byUpstream = new LinkedHashMap<>();
+        for (Merged server : byServer.values()) {
+            Merged upstream = byUpstream.get(upstream(server.server));
+            if (null == upstream) {
+                upstream = new Merged(server.server);
+                byUpstream.put(upstream(server.server), upstream);
+            }
+            upstream.add(server);
+        }
+
+        List<Merged> upstreams = new ArrayList<>(byUpstream.values());
+        List<Merged> servers = new ArrayList<>(byServer.values());
+        writeFamilies(out, "reverseproxy_upstream", upstreams, false);
+        writeFamilies(out, "reverseproxy_server", servers, true);
+
+        header(out, "reverseproxy_server_down", "1 while the active health check has the server down.", "gauge");
+        for (Merged server : servers) {
+            out.append("reverseproxy_server_down");
+            labels(out, server, true).append("} ").append(ServerHealth.of(server.server).isDown() ? 1 : 0)
+                    .append('\n');
+        }
+
+        header(out, "reverseproxy_server_ejected", "1 while the server gets no requests after failing.", "gauge");
+        for (Merged server : servers) {
+            out.append("reverseproxy_server_ejected");
+            labels(out, server, true).append("} ").append(ServerHealth.of(server.server).isEjected() ? 1 : 0)
+                    .append('\n');
+        }
+
+        writeValue(out, "reverseproxy_downstream_connections", "Accepted connections open.", "gauge",
+                ConnectionLimit.connections());
+        writeValue(out, "reverseproxy_downstream_rejected_total", "Connections closed at once because their worker "
+                + "had worker_connections open.", "counter", ConnectionLimit.rejected());
+        writeValue(out, "reverseproxy_downstream_idle_closed_total", "Connections closed after keepalive_timeout "
+                + "without traffic.", "counter", KeepaliveTimeoutHandler.closed());
+
+        header(out, "reverseproxy_access_log_dropped_total", "Access log records dropped while the writer was behind.",
+                "counter");
+        out.append("reverseproxy_access_log_dropped_total ").append(AccessLog.dropped()).append('\n');
+
+        ResponseCache cache = ResponseCache.current();
+        if (null != cache) {
+            writeValue(out, "reverseproxy_cache_hits_total", "Requests answered from the response cache.", "counter",
+                    cache.hits());
+            writeValue(out, "reverseproxy_cache_misses_total", "Cacheable requests sent upstream.", "counter",
+                    cache.misses());
+            writeValue(out, "reverseproxy_cache_stores_total", "Responses stored in the cache.", "counter",
+                    cache.stores());
+            writeValue(out, "reverseproxy_cache_evictions_total", "Entries evicted to stay within memory_size.",
+                    "counter", cache.evictions());
+            writeValue(out, "reverseproxy_cache_coalesced_total", "Misses answered with the response fetched for "
+                    + "an identical request.", "counter", cache.coalesced());
+            writeValue(out, "reverseproxy_cache_coalesce_fallbacks_total", "Misses that waited for an identical "
+                    + "request and then fetched on their own.", "counter", cache.coalesceFallbacks());
+            writeValue(out, "reverseproxy_cache_bytes", "Memory held by the cached responses.", "gauge",
+                    cache.bytes());
+            writeValue(out, "reverseproxy_cache_entries", "Responses in the cache.", "gauge", cache.entries());
+        }
+        Compression compression = Compression.current();
+        if (null != compression) {
+            writeValue(out, "reverseproxy_compression_responses_total", "Responses gzipped on the fly.", "counter",
+                    compression.responses());
+            writeValue(out, "reverseproxy_compression_variants_total", "Cached responses gzipped once to store "
+                    + "their gzip variant.", "counter", compression.variants());
+        }
+        DiskCache disk = null == cache ? null : cache.disk();
+        if (null != disk) {
+            writeValue(out, "reverseproxy_cache_disk_hits_total", "Requests answered from the disk cache.", "counter",
+                    disk.hits());
+            writeValue(out, "reverseproxy_cache_disk_stores_total", "Responses written to the disk cache.",
+                    "counter", disk.stores());
+            writeValue(out, "reverseproxy_cache_disk_dropped_total", "Responses not written because the disk "
+                    + "writer was behind.", "counter", disk.dropped());
+            writeValue(out, "reverseproxy_cache_disk_evictions_total", "Entries dropped with the oldest segment.",
+                    "counter", disk.evictions());
+            writeValue(out, "reverseproxy_cache_disk_compactions_total", "Segments rewritten to reclaim space.",
+                    "counter", disk.compactions());
+            writeValue(out, "reverseproxy_cache_disk_bytes", "Bytes of the responses in the disk cache.", "gauge",
+                    disk.bytes());
+            writeValue(out, "reverseproxy_cache_disk_entries", "Responses in the disk cache.", "gauge",
+                    disk.entries());
+        }
+    }
+
+    private static void writeValue(StringBuilder out, String name, String help, String type, long value) {
+        header(out, name, help, type);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeFamilies(StringBuilder out, String prefix, List<Merged> rows, boolean perServer) {
+        writeCounter(out, prefix, "requests_total", "Requests written, retries included.", rows, perServer,
+                ServerStats.REQUESTS);
+
+        String name = prefix + "_responses_total";
+        header(out, name, "Complete responses by status class.", "counter");
+        for (Merged row : rows) {
+            for (int i = 0; i < 5; i++) {
+                out.append(name);
+                labels(out, row, perServer).append(",code=\"").append(i + 1).append("xx\"} ")
+                        .append(row.counters[ServerStats.RESPONSES + i]).append('\n');
+            }
+        }
+
+        writeCounter(out, prefix, "failures_total", "Requests written that got no complete response.", rows,
+                perServer, ServerStats.FAILURES);
+        writeCounter(out, prefix, "retries_total", "Failed attempts that were tried again.", rows, perServer,
+                ServerStats.RETRIES);
+        writeCounter(out, prefix, "retries_denied_total", "Failed attempts not retried because of the method or the "
+                + "retry budget.", rows, perServer, ServerStats.RETRIES_DENIED);
+        writeCounter(out, prefix, "connect_failures_total", "Connections that could not be opened.", rows,
+                perServer, ServerStats.CONNECT_FAILURES);
+        writeCounter(out, prefix, "timeouts_total", "Requests that exceeded read_timeout or request_timeout.", rows,
+                perServer, ServerStats.TIMEOUTS);
+        writeCounter(out, prefix, "pool_hits_total", "Requests dispatched on an idle keepalive connection.", rows,
+                perServer, ServerStats.POOL_HITS);
+        writeCounter(out, prefix, "pool_misses_total", "Requests that needed a new connection.", rows, perServer,
+                ServerStats.POOL_MISSES);
+
+        name = prefix + "_response_seconds";
+        header(out, name, "Time from writing the request to the end of the response.", "histogram");
+        for (Merged row : rows) {
+            long cumulative = 0;
+            for (int i = 0; i <= Histogram.INF; i++) {
+                cumulative += row.latency[i];
+                out.append(name).append("_bucket");
+                labels(out, row, perServer).append(",le=\"")
+                        .append(i == Histogram.INF ? "+Inf" : Double.toString(Histogram.BOUNDS[i])).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum");
+            labels(out, row, perServer).append("} ").append(row.latency[Histogram.SUM] / 1e9).append('\n');
+            out.append(name).append("_count");
+            labels(out, row, perServer).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static void writeCounter(StringBuilder out, String prefix, String suffix, String help, List<Merged> rows,
+                                     boolean perServer, int counter) {
+        String name = prefix + '_' + suffix;
+        header(out, name, help, "counter");
+        for (Merged row : rows) {
+            out.append(name);
+            labels(out, row, perServer).append("} ").append(row.counters[counter]).append('\n');
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // leaves the label set open so the caller can append more labels
+    private static StringBuilder labels(StringBuilder out, Merged row, boolean perServer) {
+        out.append("{upstream=\"");
+        escape(out, upstream(row.server)).append('"');
+        if (perServer) {
+            out.append(",server=\"");
+            escape(out, address(row.server)).append('"');
+        }
+        return out;
+    }
+
+    private static StringBuilder escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ('\\' == c || '"' == c) {
+                out.append('\\').append(c);
+            } else if ('\n' == c) {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        return out;
+    }
+
+    private static String upstream(Server server) {
+        return null == server.getUpstream() ? "" : server.getUpstream();
+    }
+
+    private static String address(Server server) {
+        return server.getIp() + ':' + server.getPort();
+    }
+
+    private static final class Shard {
+
+        // indexed by Server#getId(), replaced when it grows or a reused id gets new stats so scrapes always see a
+        // complete array
+        private volatile ServerStats[] statsById = new ServerStats[16];
+
+        ServerStats stats(Server server) {
+            ServerStats[] statsById = this.statsById;
+            int id = server.getId();
+            ServerStats stats;
+            if (id < statsById.length && null != (stats = statsById[id])
+                    && stats.generation == server.getGeneration()) {
+                return stats;
+            }
+            statsById = Arrays.copyOf(statsById, Math.max(statsById.length, Integer.highestOneBit(id) << 1));
+            stats = new ServerStats(server);
+            statsById[id] = stats;
+            this.statsById = statsById;
+            return stats;
+        }
+    }
+
+    private static final class Merged {
+
+        private final Server server;
+
+        private final long[] counters = new long[ServerStats.COUNTERS];
+
+        private final long[] latency = new long[Histogram.LENGTH];
+
+        Merged(Server server) {
+            this.server = server;
+        }
+
+        void add(Merged other) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] += other.counters[i];
+            }
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] += other.latency[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package reverseproxy.metrics;
+
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency of one upstream server as seen by one event loop. Like {@link Histogram} there is a single
+ * writer, the event loop, so the counters are bumped with ordered stores instead of atomic increments.
+ */
+public final class ServerStats {
+
+    // responses by status class, 1xx to 5xx
+    static final int RESPONSES = 0;
+
+    static final int REQUESTS = 5;
+
+    static final int FAILURES = 6;
+
+    static final int RETRIES = 7;
+
+    static final int CONNECT_FAILURES = 8;
+
+    static final int POOL_HITS = 9;
+
+    static final int POOL_MISSES = 10;
+
+    static final int RETRIES_DENIED = 11;
+
+    static final int TIMEOUTS = 12;
+
+    static final int COUNTERS = 13;
+
+    // weak, the stats must not keep a server that a reload dropped from being collected and its id reused
+    private final WeakReference<Server> server;
+
+    final int generation;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+    private final Histogram latency = new Histogram();
+
+    ServerStats(Server server) {
+        this.server = new WeakReference<>(server);
+        this.generation = server.getGeneration();
+    }
+
+    /**
+     * @return the server, null once it was collected
+     */
+    public Server server() {
+        return server.get();
+    }
+
+    /**
+     * A request was written to the server.
+     */
+    public void request() {
+        increment(REQUESTS);
+    }
+
+    /**
+     * A complete response arrived {@code nanos} after its request was written.
+     */
+    public void response(int status, long nanos) {
+        int statusClass = status / 100;
+        if (statusClass < 1 || statusClass > 5) {
+            statusClass = 5;
+        }
+        increment(RESPONSES + statusClass - 1);
+        latency.record(nanos);
+    }
+
+    /**
+     * A request was written but no complete response came back.
+     */
+    public void failure() {
+        increment(FAILURES);
+    }
+
+    /**
+     * A failed attempt on this server is tried again.
+     */
+    public void retry() {
+        increment(RETRIES);
+    }
+
+    /**
+     * A failed attempt on this server is not tried again because of its method or the retry budget.
+     */
+    public void retryDenied() {
+        increment(RETRIES_DENIED);
+    }
+
+    public void connectFailure() {
+        increment(CONNECT_FAILURES);
+    }
+
+    /**
+     * A request got no complete response within its read_timeout or request_timeout.
+     */
+    public void timeout() {
+        increment(TIMEOUTS);
+    }
+
+    /**
+     * A request was dispatched on an idle keepalive connection, or on a new one if not {@code hit}.
+     */
+    public void pool(boolean hit) {
+        increment(hit ? POOL_HITS : POOL_MISSES);
+    }
+
+    private void increment(int counter) {
+        counters.lazySet(counter, counters.get(counter) + 1);
+    }
+
+    void mergeInto(long[] counters, long[] latency) {
+        for (int i = 0; i < COUNTERS; i++) {
+            counters[i] += this.counters.get(i);
+        }
+        this.latency.mergeInto(latency);
+    }
+}
@@ -0,0 +1,272 @@
+package reverseproxy.reload;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.ConfigException;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.conf.ReverseProxyConfig.StreamServer;
+import reverseproxy.upstream.health.HealthChecker;
+import reverseproxy.upstream.pool.ConnectionPool;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the config file on SIGHUP, on {@code POST /reload} of the admin listener and, with {@code watch_config},
+ * when the file changes. A reload parses and compiles the new {@link Snapshot} on a thread of its own, never on an
+ * event loop, and publishes it at once; a config that does not parse leaves the running one untouched.
+ * <p>
+ * Servers still present keep their instance, so their pooled keepalive connections, health and metrics carry on.
+ * Servers that are gone are retired: every event loop closes its idle connections to them, busy ones are closed
+ * when their exchange ends. The listeners, the worker threads, the transport, the write buffer watermarks, the
+ * access log, the cache, the compression and {@code watch_config} are set up once and take a restart to change.
+ */
+public final class ConfigReloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigReloader.class);
+
+    // changes of an editor saving the file arrive as several events, they are settled as one
+    private static final long WATCH_SETTLE_MILLIS = 200;
+
+    private final String path;
+
+    private final EventLoopGroup workerGroup;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("ReverseProxy-Reload-Thread", true));
+
+    // touched by the reload thread only
+    private HealthChecker healthChecker;
+
+    private volatile WatchService watchService;
+
+    /**
+     * @param path null if the config was not read from a file, reloads then fail
+     */
+    public ConfigReloader(String path, EventLoopGroup workerGroup, HealthChecker healthChecker) {
+        this.path = path;
+        this.workerGroup = workerGroup;
+        this.healthChecker = healthChecker;
+    }
+
+    public void start(ReverseProxyConfig config) {
+        if (null == path) {
+            return;
+        }
+        HangupSignal.install(() -> {
+            logger.info("SIGHUP received, reloading " + path);
+            reload();
+        });
+        if (config.watchConfig()) {
+            watch();
+        }
+    }
+
+    /**
+     * Reloads on the reload thread, one reload at a time.
+     *
+     * @return completed once the new snapshot is published, or with the reason the config was rejected
+     */
+    public CompletableFuture<Void> reload() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    doReload();
+                    result.complete(null);
+                } catch (Throwable e) {
+                    logger.error(String.format("reload of %s failed, the running config is kept", path), e);
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected once stopped
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void doReload() throws ConfigException {
+        if (null == path) {
+            throw new ConfigException("the config was not read from a file", null);
+        }
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(path);
+        Snapshot previous = Snapshot.current();
+        ReverseProxyConfig running = previous.config();
+        // the virtual hosts are named with the port they are bound to
+        if (running.listen() != config.listen()) {
+            throw new ConfigException("listen can not change without a restart", null);
+        }
+        // the stream listeners stay bound and balance with the upstream of the new snapshot
+        for (StreamServer stream : running.stream()) {
+            if (null == config.upstream(stream.proxypass())) {
+                throw new ConfigException("upstream " + stream.proxypass() + " of stream " + stream.listen()
+                        + " can not be removed without a restart", null);
+            }
+        }
+        warnRestartOnly(running, config);
+
+        config.retainServers(running);
+        Snapshot snapshot = Snapshot.compile(config);
+        HealthChecker checker = HealthChecker.start(config, workerGroup);
+        Snapshot.publish(snapshot);
+        healthChecker.stop(checker);
+        healthChecker = checker;
+
+        List<Server> removed = retire(running, config);
+        if (!removed.isEmpty()) {
+            for (EventExecutor loop : workerGroup) {
+                loop.execute(() -> ConnectionPool.current().drain());
+            }
+        }
+        logger.info(String.format("reloaded %s, %d servers retired", path, removed.size()));
+    }
+
+    // servers with no equal one left, the ones kept were swapped in by retainServers
+    private static List<Server> retire(ReverseProxyConfig running, ReverseProxyConfig config) {
+        Set<Server> kept = new HashSet<>();
+        for (List<Server> servers : config.upstreams().values()) {
+            kept.addAll(servers);
+        }
+        List<Server> removed = new ArrayList<>();
+        for (List<Server> servers : running.upstreams().values()) {
+            for (Server server : servers) {
+                if (!kept.contains(server)) {
+                    server.retire();
+                    removed.add(server);
+                    logger.info(String.format("[%s:%d] removed, draining its connections", server.getIp(),
+                            server.getPort()));
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static void warnRestartOnly(ReverseProxyConfig running, ReverseProxyConfig config) {
+        List<String> changed = new ArrayList<>();
+        if (running.adminListen() != config.adminListen() || !running.adminBind().equals(config.adminBind())) {
+            changed.add("admin_listen, admin_bind");
+        }
+        if (running.workerThreads() != config.workerThreads()) {
+            changed.add("worker_threads");
+        }
+        if (!running.transport().equalsIgnoreCase(config.transport())) {
+            changed.add("transport");
+        }
+        if (running.writeBufferLow() != config.writeBufferLow()
+                || running.writeBufferHigh() != config.writeBufferHigh()) {
+            changed.add("write_buffer_low, write_buffer_high");
+        }
+        if (running.watchConfig() != config.watchConfig()) {
+            changed.add("watch_config");
+        }
+        if (!streams(running).equals(streams(config))) {
+            changed.add("stream");
+        }
+        if ((null == running.accessLog()) != (null == config.accessLog())) {
+            changed.add("access_log");
+        }
+        if ((null == running.cache()) != (null == config.cache())) {
+            changed.add("cache");
+        }
+        if ((null == running.compression()) != (null == config.compression())) {
+            changed.add("compression");
+        }
+        if (!changed.isEmpty()) {
+            logger.warn("reload keeps the running " + String.join(", ", changed) + ", they take a restart");
+        }
+    }
+
+    private static Set<String> streams(ReverseProxyConfig config) {
+        Set<String> streams = new HashSet<>();
+        for (StreamServer stream : config.stream()) {
+            streams.add(stream.listen() + " " + stream.proxypass());
+        }
+        return streams;
+    }
+
+    private void watch() {
+        Path file = Paths.get(path).toAbsolutePath();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            // editors often replace the file, so its directory is watched
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.error("config file can not be watched: " + file, e);
+            return;
+        }
+        Thread watcher = new DefaultThreadFactory("ReverseProxy-Config-Watcher", true).newThread(() -> {
+            WatchService watchService = this.watchService;
+            try {
+                for (;;) {
+                    WatchKey key = watchService.take();
+                    boolean changed = changed(key, file);
+                    // let the writes of one save settle
+                    while (null != (key = watchService.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS))) {
+                        changed |= changed(key, file);
+                    }
+                    if (changed) {
+                        logger.info(file + " changed, reloading");
+                        reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // stopped
+            }
+        });
+        watcher.start();
+        logger.info("watching " + file);
+    }
+
+    private static boolean changed(WatchKey key, Path file) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= Objects.equals(file.getFileName(), event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Stops watching and reloading, and stops the health checks of the snapshot running.
+     */
+    public void stop() {
+        WatchService watchService = this.watchService;
+        if (null != watchService) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("config watcher close fail", e);
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        healthChecker.stop(null);
+    }
+}
@@ -0,0 +1,65 @@
+package reverseproxy.reload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * The SIGHUP hook, through {@code sun.misc.Signal} looked up reflectively: nothing is compiled against the
+ * internal API, and a JVM without it or a platform without SIGHUP only loses the signal, reloads still work with
+ * {@code POST /reload}.
+ */
+final class HangupSignal {
+
+    private static final Logger logger = LoggerFactory.getLogger(HangupSignal.class);
+
+    private HangupSignal() {
+    }
+
+    /**
+     * Runs the task on the signal dispatcher thread every time the process gets SIGHUP.
+     *
+     * @return false if the handler could not be installed, the reason is logged
+     */
+    static boolean install(Runnable task) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object signal = signalClass.getConstructor(String.class).newInstance("HUP");
+            Object handler = Proxy.newProxyInstance(HangupSignal.class.getClassLoader(), new Class<?>[]{handlerClass},
+                    (proxy, method, args) -> invoke(task, proxy, method, args));
+            Object previous = signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+            if (previous == handlerClass.getField("SIG_IGN").get(null)) {
+                // the JVM leaves a signal ignored at startup ignored
+                logger.warn("SIGHUP is ignored by this process (started with nohup?), reload with POST /reload");
+                return false;
+            }
+            return true;
+        } catch (InvocationTargetException e) {
+            // the platform has no SIGHUP or the JVM uses it
+            logger.warn("SIGHUP can not be handled on this platform, reload with POST /reload", e.getCause());
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            logger.warn("SIGHUP can not be handled without sun.misc.Signal, reload with POST /reload", e);
+        }
+        return false;
+    }
+
+    private static Object invoke(Runnable task, Object proxy, Method method, Object[] args) {
+        if (Object.class == method.getDeclaringClass()) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "SIGHUP handler";
+            }
+        }
+        // SignalHandler#handle(Signal)
+        task.run();
+        return null;
+    }
+}
@@ -0,0 +1,56 @@
+package reverseproxy.reload;
+
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.route.RouteTable;
+import reverseproxy.upstream.lb.RoundRobinFactory;
+
+/**
+ * A config with the balancers and the routes compiled from it. Nothing in a snapshot changes once it is built, a
+ * reload builds a new one off the event loops and publishes it in one volatile write. Every request routes with
+ * the snapshot current when it arrived and keeps its route, so it finishes on the balancer it started with.
+ */
+public final class Snapshot {
+
+    private static volatile Snapshot current;
+
+    private final ReverseProxyConfig config;
+
+    private final RoundRobinFactory robinFactory;
+
+    private final RouteTable routeTable;
+
+    private Snapshot(ReverseProxyConfig config, RoundRobinFactory robinFactory, RouteTable routeTable) {
+        this.config = config;
+        this.robinFactory = robinFactory;
+        this.routeTable = routeTable;
+    }
+
+    public static Snapshot compile(ReverseProxyConfig config) {
+        RoundRobinFactory robinFactory = new RoundRobinFactory();
+        robinFactory.init(config);
+        return new Snapshot(config, robinFactory, RouteTable.compile(config, robinFactory));
+    }
+
+    /**
+     * @return the snapshot requests are routed with, null before the first one is published
+     */
+    public static Snapshot current() {
+        return current;
+    }
+
+    public static void publish(Snapshot snapshot) {
+        current = snapshot;
+    }
+
+    public ReverseProxyConfig config() {
+        return config;
+    }
+
+    public RoundRobinFactory robinFactory() {
+        return robinFactory;
+    }
+
+    public RouteTable routeTable() {
+        return routeTable;
+    }
+}
@@ -0,0 +1,68 @@
+package reverseproxy.route;
+
+import reverseproxy.conf.ReverseProxyConfig.Location;
+import reverseproxy.upstream.RetryPolicy;
+import reverseproxy.upstream.lb.RoundRobin;
+
+/**
+ * A location resolved at load time, requests matching it go straight to its {@link RoundRobin}.
+ */
+public class Route {
+
+    private final Location location;
+
+    private final RoundRobin roundRobin;
+
+    private final RetryPolicy retryPolicy;
+
+    public Route(Location location, RoundRobin roundRobin, RetryPolicy retryPolicy) {
+        this.location = location;
+        this.roundRobin = roundRobin;
+        this.retryPolicy = retryPolicy;
+    }
+
+    public Location location() {
+        return location;
+    }
+
+    public String proxyPass() {
+        return location.proxypass();
+    }
+
+    /**
+     * @return null when the proxy_pass of the location does not name a configured upstream
+     */
+    public RoundRobin roundRobin() {
+        return roundRobin;
+    }
+
+    /**
+     * @return null when the proxy_pass of the location does not name a configured upstream
+     */
+    public RetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    public boolean streaming() {
+        return location.streaming();
+    }
+
+    public boolean cache() {
+        return location.cache();
+    }
+
+    /**
+     * @return milliseconds, 0 for no limit; the timeouts of the location or else of its upstream
+     */
+    public int connectTimeout() {
+        return location.connectTimeout();
+    }
+
+    public int readTimeout() {
+        return location.readTimeout();
+    }
+
+    public int requestTimeout() {
+        return location.requestTimeout();
+    }
+}
@@ -0,0 +1,212 @@
+package reverseproxy.route;
+
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.Location;
+import reverseproxy.upstream.lb.RoundRobinFactory;
+import reverseproxy.util.AntPathMatcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Immutable routing structure compiled from the servers block, one {@link HostRoutes} per virtual host.
+ * <p>
+ * Locations are matched like nginx does: an exact location (no wildcard) wins, then the first general ant
+ * pattern in declaration order, then the longest {@code /prefix/**} or {@code /prefix/*} location. Exact and
+ * prefix locations never run the {@link AntPathMatcher}, so their cost does not grow with the number of locations.
+ */
+public class RouteTable {
+
+    private static final char PATH_SEPARATOR = '/';
+
+    private final Map<String, HostRoutes> hosts;
+
+    private RouteTable(Map<String, HostRoutes> hosts) {
+        this.hosts = hosts;
+    }
+
+    public static RouteTable compile(ReverseProxyConfig config, RoundRobinFactory robinFactory) {
+        AntPathMatcher pathMatcher = new AntPathMatcher();
+        Map<String, HostRoutes> hosts = new HashMap<>();
+        for (Entry<String, List<Location>> entry : config.servers().entrySet()) {
+            HostRoutes routes = new HostRoutes(pathMatcher);
+            if (null != entry.getValue()) {
+                for (Location location : entry.getValue()) {
+                    routes.add(new Route(location, robinFactory.roundRobin(location.proxypass()),
+                            robinFactory.retryPolicy(location.proxypass())));
+                }
+            }
+            hosts.put(entry.getKey().toLowerCase(Locale.ROOT), routes);
+        }
+        return new RouteTable(hosts);
+    }
+
+    /**
+     * @param serverName the Host header
+     * @param uri        the request uri, the query string is ignored
+     * @return null when no location matches
+     */
+    public Route route(String serverName, String uri) {
+        if (null == serverName || null == uri) {
+            return null;
+        }
+        HostRoutes routes = hosts.get(serverName);
+        if (null == routes && null == (routes = hosts.get(serverName.toLowerCase(Locale.ROOT)))) {
+            return null;
+        }
+        return routes.match(path(uri));
+    }
+
+    private static String path(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#') {
+                return uri.substring(0, i);
+            }
+        }
+        return uri;
+    }
+
+    static final class HostRoutes {
+
+        private final AntPathMatcher pathMatcher;
+
+        private final Map<String, Route> exact = new HashMap<>();
+
+        private final Node root = new Node();
+
+        private final List<String> patterns = new ArrayList<>();
+
+        private final List<Route> patternRoutes = new ArrayList<>();
+
+        HostRoutes(AntPathMatcher pathMatcher) {
+            this.pathMatcher = pathMatcher;
+        }
+
+        void add(Route route) {
+            String pattern = route.location().path();
+            if (null == pattern) {
+                return;
+            }
+            if (!pathMatcher.isPattern(pattern)) {
+                // declaration order decides between duplicates, like the linear scan did
+                exact.putIfAbsent(pattern, route);
+                return;
+            }
+            if (pattern.endsWith("/**") && isLiteral(pattern, 3)) {
+                Node node = insert(pattern.substring(0, pattern.length() - 3));
+                if (null == node.anyDepth) {
+                    node.anyDepth = route;
+                }
+                return;
+            }
+            if (pattern.endsWith("/*") && isLiteral(pattern, 2)) {
+                Node node = insert(pattern.substring(0, pattern.length() - 2));
+                if (null == node.oneSegment) {
+                    node.oneSegment = route;
+                }
+                return;
+            }
+            patterns.add(pattern);
+            patternRoutes.add(route);
+        }
+
+        Route match(String path) {
+            Route route = exact.get(path);
+            if (null != route) {
+                return route;
+            }
+            for (int i = 0; i < patterns.size(); i++) {
+                if (pathMatcher.match(patterns.get(i), path)) {
+                    return patternRoutes.get(i);
+                }
+            }
+            return matchPrefix(path);
+        }
+
+        /**
+         * Walks the trie segment by segment and keeps the deepest matching location, a one segment wildcard
+         * beats a multi segment wildcard at the same depth.
+         */
+        private Route matchPrefix(String path) {
+            if (path.isEmpty() || path.charAt(0) != PATH_SEPARATOR) {
+                return null;
+            }
+            Node node = root;
+            Route best = node.anyDepth;
+            int length = path.length();
+            int start = skipSeparators(path, 0);
+            while (true) {
+                if (start >= length) {
+                    // "/prefix/*" also matches "/prefix/"
+                    if (null != node.oneSegment && path.charAt(length - 1) == PATH_SEPARATOR) {
+                        best = node.oneSegment;
+                    }
+                    return best;
+                }
+                int end = path.indexOf(PATH_SEPARATOR, start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (null != node.oneSegment && end == length) {
+                    // exactly one segment left
+                    best = node.oneSegment;
+                }
+                Node child = null == node.children ? null : node.children.get(path.substring(start, end));
+                if (null == child) {
+                    return best;
+                }
+                node = child;
+                if (null != node.anyDepth) {
+                    best = node.anyDepth;
+                }
+                start = skipSeparators(path, end);
+            }
+        }
+
+        private Node insert(String prefix) {
+            Node node = root;
+            int length = prefix.length();
+            int start = skipSeparators(prefix, 0);
+            while (start < length) {
+                int end = prefix.indexOf(PATH_SEPARATOR, start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (null == node.children) {
+                    node.children = new HashMap<>();
+                }
+                node = node.children.computeIfAbsent(prefix.substring(start, end), k -> new Node());
+                start = skipSeparators(prefix, end);
+            }
+            return node;
+        }
+
+        private boolean isLiteral(String pattern, int suffixLength) {
+            String prefix = pattern.substring(0, pattern.length() - suffixLength);
+            return (prefix.isEmpty() || prefix.charAt(0) == PATH_SEPARATOR) && !pathMatcher.isPattern(prefix);
+        }
+
+        private static int skipSeparators(String path, int from) {
+            while (from < path.length() && path.charAt(from) == PATH_SEPARATOR) {
+                from++;
+            }
+            return from;
+        }
+    }
+
+    static final class Node {
+
+        Map<String, Node> children;
+
+        // "/prefix/**", the prefix itself and everything below it
+        Route anyDepth;
+
+        // "/prefix/*", exactly one segment below the prefix
+        Route oneSegment;
+    }
+}
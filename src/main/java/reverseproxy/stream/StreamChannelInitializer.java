@@ -0,0 +1,59 @@
+package reverseproxy.stream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import reverseproxy.core.ConnectionLimit;
+import reverseproxy.core.Independent;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.upstream.lb.RoundRobinFactory;
+
+/**
+ * The pipeline of a connection accepted by a {@code stream} listener: no codec, only the {@link StreamProxyHandler}
+ * that connects it to an upstream server and then relays its bytes as they are. The upstream's balancer is the one
+ * of the snapshot current when the connection is accepted.
+ */
+public class StreamChannelInitializer extends ChannelInitializer<Channel> {
+
+    // the upstream key
+    private final String proxyPass;
+
+    // cloned for the event loop of every accepted connection
+    private final Bootstrap bootstrap;
+
+    public StreamChannelInitializer(String proxyPass, WriteBufferWaterMark waterMark) {
+        this.proxyPass = proxyPass;
+        this.bootstrap = new Bootstrap()
+                .channel(Independent.channelClass())
+                .resolver(Independent.resolver())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark)
+                // nothing is read before the other side is connected
+                .option(ChannelOption.AUTO_READ, false);
+        if (StreamProxyHandler.splice()) {
+            // as for the accepted channels, see ReverseProxy
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+            bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(64 * 1024));
+        }
+    }
+
+    @Override
+    protected void initChannel(Channel ch) throws Exception {
+        Snapshot snapshot = Snapshot.current();
+        if (!ConnectionLimit.admit(ch, snapshot.config().workerConnections())) {
+            return;
+        }
+        RoundRobinFactory robinFactory = snapshot.robinFactory();
+        ch.pipeline().addLast(new StreamProxyHandler(robinFactory.roundRobin(proxyPass),
+                robinFactory.retryPolicy(proxyPass), bootstrap,
+                snapshot.config().upstream(proxyPass).connectTimeout()));
+    }
+}
@@ -0,0 +1,269 @@
+package reverseproxy.stream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.core.Independent;
+import reverseproxy.core.TimerWheel;
+import reverseproxy.core.TimerWheel.Timeout;
+import reverseproxy.metrics.Metrics;
+import reverseproxy.upstream.RetryPolicy;
+import reverseproxy.upstream.health.ServerHealth;
+import reverseproxy.upstream.lb.InFlight;
+import reverseproxy.upstream.lb.RoundRobin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs an accepted connection with a connection to a server of the upstream, picked by its balancer, and then
+ * relays the bytes of both without decoding them.
+ * <p>
+ * On the epoll transport both directions are spliced: bytes move from socket to socket through a pipe in the
+ * kernel and never reach the JVM, a direction stops reading while its target can not take more. Elsewhere
+ * the {@link Relay} forwards the buffers read and stops reading a side while the other one is not writable.
+ * A connect failure, or a connect taking longer than the upstream's {@code connect_timeout}, is tried on another
+ * server while the upstream's retries and retry budget allow it. When
+ * one side closes the other is closed once what was sent to it is written, like nginx without half close.
+ */
+public class StreamProxyHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamProxyHandler.class);
+
+    // the peer sent FIN, see include/net/tcp_states.h
+    private static final int TCP_CLOSE_WAIT = 8;
+
+    private final RoundRobin roundRobin;
+
+    private final RetryPolicy retryPolicy;
+
+    private final Bootstrap bootstrap;
+
+    // 0 waits for the operating system to give up
+    private final int connectTimeoutMillis;
+
+    StreamProxyHandler(RoundRobin roundRobin, RetryPolicy retryPolicy, Bootstrap bootstrap, int connectTimeoutMillis) {
+        this.roundRobin = roundRobin;
+        this.retryPolicy = retryPolicy;
+        this.bootstrap = bootstrap;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * @return whether connections are spliced, which takes epoll channels in level triggered mode
+     */
+    static boolean splice() {
+        return Independent.Transport.EPOLL == Independent.transport();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        retryPolicy.deposit();
+        connect(ctx, roundRobin.next(), retryPolicy.maxRetries());
+        super.channelActive(ctx);
+    }
+
+    private void connect(ChannelHandlerContext ctx, Server server, int retries) {
+        Channel downstream = ctx.channel();
+        // on the loop of the accepted channel, splicing needs both channels on one loop
+        Bootstrap b = bootstrap.clone(downstream.eventLoop())
+                .handler(splice() ? new SpliceHandler(downstream) : new Relay(downstream));
+        ChannelFuture connectFuture = b.connect(server.getAddress());
+        // closing fails the connect, the timer wheel of the loop saves a scheduled task per connect
+        Timeout timeout = connectTimeoutMillis <= 0 ? null : TimerWheel.of(downstream.eventLoop())
+                .schedule(() -> connectFuture.channel().close(), connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        connectFuture.addListener((ChannelFuture future) -> {
+            boolean timedOut = null != timeout && !timeout.isPending();
+            if (null != timeout) {
+                timeout.cancel();
+            }
+            if (future.isSuccess()) {
+                connected(ctx, server, future.channel());
+                return;
+            }
+            Metrics.server(server).connectFailure();
+            ServerHealth.of(server).failure();
+            if (!downstream.isActive()) {
+                return;
+            }
+            // nothing was sent, the method does not matter
+            if (retries > 0 && retryPolicy.tryRetry(null, false)) {
+                Metrics.server(server).retry();
+                connect(ctx, roundRobin.next(server), retries - 1);
+            } else {
+                logger.error(String.format("stream channel[%s] can not connect to %s", downstream, server),
+                        timedOut ? new ConnectTimeoutException("connection timed out: " + server.getIp() + ':'
+                                + server.getPort())
+                                : future.cause());
+                downstream.close();
+            }
+        });
+    }
+
+    private void connected(ChannelHandlerContext ctx, Server server, Channel upstream) {
+        Channel downstream = ctx.channel();
+        ServerHealth.of(server).success();
+        // least_request balances streams by their open connections
+        InFlight.increment(server);
+        upstream.closeFuture().addListener(f -> InFlight.decrement(server));
+        if (!downstream.isActive()) {
+            upstream.close();
+            return;
+        }
+        if (splice()) {
+            ctx.pipeline().replace(this, null, new SpliceHandler(upstream));
+            ChannelFutureListener closeBoth = future -> {
+                if (!future.isSuccess()) {
+                    downstream.close();
+                    upstream.close();
+                }
+            };
+            EpollSocketChannel client = (EpollSocketChannel) downstream;
+            EpollSocketChannel backend = (EpollSocketChannel) upstream;
+            client.spliceTo(backend, Integer.MAX_VALUE).addListener(closeBoth);
+            backend.spliceTo(client, Integer.MAX_VALUE).addListener(closeBoth);
+        } else {
+            ctx.pipeline().replace(this, null, new Relay(upstream));
+        }
+        downstream.config().setAutoRead(true);
+        upstream.config().setAutoRead(true);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error(String.format("stream channel[%s] exceptionCaught", ctx.channel()), cause);
+        ctx.close();
+    }
+
+    static void closeOnFlush(Channel channel) {
+        if (channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Forwards what one side reads to the other, reading stops while the other side is not writable and resumes
+     * when the other side's {@link #channelWritabilityChanged} says it drained.
+     */
+    static final class Relay extends ChannelInboundHandlerAdapter {
+
+        private final Channel peer;
+
+        Relay(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            // a failed write closes the peer through its exceptionCaught
+            peer.write(msg, peer.voidPromise());
+            if (!peer.isWritable()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            peer.flush();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                peer.config().setAutoRead(true);
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            closeOnFlush(peer);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.debug(String.format("stream channel[%s] exceptionCaught", ctx.channel()), cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Watches a spliced channel. A splice never reports the end of the stream, the channel just stays readable,
+     * so the peer's FIN is found in the TCP state when a read completes. What arrived before it is read here
+     * and written behind the spliced bytes, then both sides are closed.
+     */
+    static final class SpliceHandler extends ChannelInboundHandlerAdapter {
+
+        private final Channel peer;
+
+        private final EpollTcpInfo tcpInfo = new EpollTcpInfo();
+
+        SpliceHandler(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            // nothing is read into buffers once the splice is set up
+            peer.writeAndFlush(msg, peer.voidPromise());
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            EpollSocketChannel channel = (EpollSocketChannel) ctx.channel();
+            if (channel.isActive() && TCP_CLOSE_WAIT == channel.tcpInfo(tcpInfo).state()) {
+                channel.config().setAutoRead(false);
+                drain(channel);
+                closeOnFlush(peer);
+                closeOnFlush(channel);
+            }
+        }
+
+        private void drain(EpollSocketChannel channel) {
+            ByteBuf buf = null;
+            try {
+                for (;;) {
+                    buf = channel.alloc().directBuffer(16 * 1024);
+                    ByteBuffer nio = buf.internalNioBuffer(0, buf.writableBytes());
+                    int read = channel.fd().read(nio, nio.position(), nio.limit());
+                    if (read <= 0) {
+                        // end of stream, or nothing left since the state says no more is coming
+                        buf.release();
+                        return;
+                    }
+                    buf.writerIndex(read);
+                    peer.write(buf, peer.voidPromise());
+                    buf = null;
+                }
+            } catch (IOException e) {
+                if (null != buf) {
+                    buf.release();
+                }
+                logger.debug(String.format("stream channel[%s] drain fail", channel), e);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            closeOnFlush(peer);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.debug(String.format("stream channel[%s] exceptionCaught", ctx.channel()), cause);
+            ctx.close();
+        }
+    }
+}
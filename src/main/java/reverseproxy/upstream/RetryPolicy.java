@@ -0,0 +1,88 @@
+package reverseproxy.upstream;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * When a failed request may be sent again, one policy per upstream.
+ * <p>
+ * A request is only retried if it never reached the server (connect failures) or if its method is idempotent,
+ * at most {@code maxRetries} times, and only while the retry budget allows it. The budget is a token bucket:
+ * every request adds {@code budgetPercent} hundredths of a token and every retry takes a whole one, so retries
+ * stay below that share of the traffic however degraded the upstream is. A few tokens are available from the
+ * start so a quiet upstream can still retry. Every event loop keeps its own bucket for the traffic it handles,
+ * nothing is shared.
+ */
+public class RetryPolicy {
+
+    // retries the bucket holds at most, in hundredths
+    private static final int BURST = 10 * 100;
+
+    // the buckets of every policy on the calling event loop. A reload makes new policies, a thread local of each
+    // would keep an index in every thread for good; a bucket here goes with its policy.
+    private static final FastThreadLocal<Map<RetryPolicy, int[]>> BUCKETS =
+            new FastThreadLocal<Map<RetryPolicy, int[]>>() {
+                @Override
+                protected Map<RetryPolicy, int[]> initialValue() throws Exception {
+                    return new WeakHashMap<>();
+                }
+            };
+
+    private final int maxRetries;
+
+    private final int budgetPercent;
+
+    public RetryPolicy(int maxRetries, int budgetPercent) {
+        this.maxRetries = maxRetries;
+        this.budgetPercent = budgetPercent;
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Called once for every request, not for its retries.
+     */
+    public void deposit() {
+        int[] bucket = bucket();
+        if (bucket[0] < BURST) {
+            bucket[0] = Math.min(BURST, bucket[0] + budgetPercent);
+        }
+    }
+
+    /**
+     * @param sent whether the request may have reached the server, a failed write or a lost connection
+     * @return whether the request may be retried, taking a token from the budget if so
+     */
+    public boolean tryRetry(HttpMethod method, boolean sent) {
+        if (sent && !isIdempotent(method)) {
+            return false;
+        }
+        int[] bucket = bucket();
+        if (bucket[0] < 100) {
+            return false;
+        }
+        bucket[0] -= 100;
+        return true;
+    }
+
+    private int[] bucket() {
+        Map<RetryPolicy, int[]> buckets = BUCKETS.get();
+        int[] bucket = buckets.get(this);
+        if (null == bucket) {
+            bucket = new int[]{BURST};
+            buckets.put(this, bucket);
+        }
+        return bucket;
+    }
+
+    public static boolean isIdempotent(HttpMethod method) {
+        return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method) || HttpMethod.PUT.equals(method)
+                || HttpMethod.DELETE.equals(method) || HttpMethod.OPTIONS.equals(method)
+                || HttpMethod.TRACE.equals(method);
+    }
+}
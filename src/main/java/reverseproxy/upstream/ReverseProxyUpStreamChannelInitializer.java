@@ -4,25 +4,26 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.codec.http.HttpObjectAggregator;
-import reverseproxy.conf.ReverseProxyConfig.Server;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 
+/**
+ * Shared by all upstream channels, the server a channel belongs to is found through its pooled connection. The
+ * streams of h2c connections get the same handlers, their frames are converted to HTTP/1.1 messages.
+ */
 public class ReverseProxyUpStreamChannelInitializer extends ChannelInitializer<Channel> {
 
-    private final Server server;
+    private final boolean http2Stream;
 
-    private final String proxyPass;
-
-    public ReverseProxyUpStreamChannelInitializer(Server server, String proxyPass) {
-        this.server = server;
-        this.proxyPass = proxyPass;
+    public ReverseProxyUpStreamChannelInitializer(boolean http2Stream) {
+        this.http2Stream = http2Stream;
     }
 
     @Override
     protected void initChannel(Channel ch) {
         ChannelPipeline pipeline = ch.pipeline();
-        pipeline.addLast(new HttpClientCodec());
-        pipeline.addLast(new HttpObjectAggregator(512 * 1024));
-        pipeline.addLast(new UpStreamHandler(server, proxyPass));
+        pipeline.addLast(new UpstreamTimeoutHandler());
+        pipeline.addLast(http2Stream ? new Http2StreamFrameToHttpObjectCodec(false) : new HttpClientCodec());
+        pipeline.addLast(new UpStreamHttpObjectAggregator(512 * 1024));
+        pipeline.addLast(new UpStreamHandler());
     }
 }
@@ -1,61 +1,209 @@
 package reverseproxy.upstream;
 
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.accesslog.AccessLog;
+import reverseproxy.cache.CacheFill;
 import reverseproxy.core.AttributeKeys;
-import reverseproxy.core.Connection;
+import reverseproxy.core.Exchange;
+import reverseproxy.core.ExchangeQueue;
 import reverseproxy.core.RequestContext;
+import reverseproxy.core.StreamingRequest;
+import reverseproxy.metrics.Metrics;
+import reverseproxy.upstream.health.ServerHealth;
+import reverseproxy.upstream.pool.Connection;
+import reverseproxy.upstream.pool.ConnectionPool;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-
-public class UpStreamHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+public class UpStreamHandler extends SimpleChannelInboundHandler<HttpObject> {
 
     private static final Logger logger = LoggerFactory.getLogger(UpStreamHandler.class);
 
-    private final Server server;
+    // the headers of a streamed response were forwarded and its body is still being relayed
+    private boolean responding;
 
-    private final String proxyPass;
+    // a 1xx response was forwarded, its empty last content does not end the exchange
+    private boolean informational;
 
-    public UpStreamHandler(Server server, String proxyPass) {
-        this.server = server;
-        this.proxyPass = proxyPass;
-    }
+    // the backend keeps the connection open after the streamed response
+    private boolean reusable;
+
+    // status and body size of the streamed response, recorded once its body is complete
+    private int status;
+
+    private long bytes;
+
+    // collects the streamed response for the cache, null if it is not stored
+    private CacheFill cacheFill;
 
     @Override
-    protected void channelRead0(ChannelHandlerContext channelHandlerContext, FullHttpResponse fullHttpResponse) throws Exception {
+    protected void channelRead0(ChannelHandlerContext channelHandlerContext, HttpObject httpObject) throws Exception {
+        if (httpObject instanceof FullHttpResponse) {
+            proxyResponse(channelHandlerContext, (FullHttpResponse) httpObject);
+        } else if (httpObject instanceof HttpResponse) {
+            streamResponse(channelHandlerContext, (HttpResponse) httpObject);
+        } else if (httpObject instanceof HttpContent) {
+            streamContent(channelHandlerContext, (HttpContent) httpObject);
+        }
+    }
+
+    private void proxyResponse(ChannelHandlerContext channelHandlerContext, FullHttpResponse fullHttpResponse) {
         Channel upstream = channelHandlerContext.channel();
+        if (isInformational(fullHttpResponse)) {
+            // unsolicited 100-continue, the final response follows
+            return;
+        }
 
         // get context and clear
-        Channel downstream = upstream.attr(AttributeKeys.DOWNSTREAM_CHANNEL_KEY).getAndSet(null);
-        boolean keepAlive = upstream.attr(AttributeKeys.KEEP_ALIVED_KEY).getAndSet(null);
-
-        LinkedList<Connection> conns = RequestContext.keepAlivedConntions(proxyPass);
-
-        if (conns.size() == server.getKeepalive()) {
-            // the least recently used connection are closed
-            logger.info(String.format(
-                    "[%s]cached connctions exceed the keepalive[%d], the least recently used connection are closed",
-                    proxyPass, server.getKeepalive()));
-            Channel tmp = conns.pollFirst().getChannel();
-            tmp.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
-            tmp.close();
-        }
-        conns.addLast(new Connection(server, upstream));
-        if (keepAlive) {
+        Exchange exchange = upstream.attr(AttributeKeys.EXCHANGE_KEY).getAndSet(null);
+        if (null == exchange) {
+            unsolicited(upstream);
+            return;
+        }
+
+        recordResponse(upstream, exchange.downstream(), fullHttpResponse.status().code(),
+                fullHttpResponse.content().readableBytes());
+        release(upstream, HttpUtil.isKeepAlive(fullHttpResponse));
+        CacheFill cacheFill = exchange.takeCacheFill();
+        if (null != cacheFill) {
+            cacheFill.complete(fullHttpResponse);
+        }
+        if (exchange.isKeepAlive()) {
             fullHttpResponse.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            downstream.writeAndFlush(fullHttpResponse.retain(), downstream.voidPromise());
-        } else {// close the downstream connection
-            downstream.writeAndFlush(fullHttpResponse.retain()).addListener(ChannelFutureListener.CLOSE);
         }
+        // the downstream connection is closed after it unless kept alive
+        exchange.end(fullHttpResponse.retain());
+    }
+
+    private void streamResponse(ChannelHandlerContext ctx, HttpResponse response) {
+        Exchange exchange = ctx.channel().attr(AttributeKeys.EXCHANGE_KEY).get();
+        if (null == exchange) {
+            unsolicited(ctx.channel());
+            return;
+        }
+        if (isInformational(response)) {
+            informational = true;
+            exchange.writeAndFlush(response);
+            return;
+        }
+        reusable = HttpUtil.isKeepAlive(response);
+        status = response.status().code();
+        bytes = 0;
+        cacheFill = exchange.takeCacheFill();
+        if (null != cacheFill && !cacheFill.begin(response)) {
+            cacheFill = null;
+        }
+        if (exchange.isKeepAlive()) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        responding = true;
+        // flush the headers right away, the body follows as it arrives
+        exchange.writeAndFlush(response);
+    }
+
+    private void streamContent(ChannelHandlerContext ctx, HttpContent content) {
+        Channel upstream = ctx.channel();
+        Exchange exchange = upstream.attr(AttributeKeys.EXCHANGE_KEY).get();
+        if (null == exchange) {
+            // the rest of a response the exchange was dropped for
+            unsolicited(upstream);
+            return;
+        }
+        if (informational) {
+            informational = false;
+            exchange.writeAndFlush(content.retain());
+            return;
+        }
+        bytes += content.content().readableBytes();
+        if (null != cacheFill && !cacheFill.append(content.content())) {
+            cacheFill = null;
+        }
+        if (!(content instanceof LastHttpContent)) {
+            exchange.write(content.retain());
+            return;
+        }
+
+        // clear the context
+        upstream.attr(AttributeKeys.EXCHANGE_KEY).set(null);
+        Channel downstream = exchange.downstream();
+        responding = false;
+        recordResponse(upstream, downstream, status, bytes);
+        if (null != cacheFill) {
+            cacheFill.finish();
+            cacheFill = null;
+        }
+
+        StreamingRequest streamingRequest = downstream.attr(AttributeKeys.STREAMING_REQUEST_KEY).get();
+        if (null != streamingRequest && streamingRequest.getUpstream() == upstream) {
+            // answered before the request body was fully sent, the connection can not be reused
+            streamingRequest.abort();
+            downstream.attr(AttributeKeys.STREAMING_REQUEST_KEY).set(null);
+            release(upstream, false);
+        } else {
+            release(upstream, reusable);
+        }
+        // the downstream connection is closed after it unless kept alive
+        exchange.end(content.retain());
+    }
+
+    private static boolean isInformational(HttpResponse response) {
+        return HttpStatusClass.INFORMATIONAL == response.status().codeClass()
+                && HttpResponseStatus.SWITCHING_PROTOCOLS.code() != response.status().code();
+    }
+
+    private static void recordResponse(Channel upstream, Channel downstream, int status, long bytes) {
+        Connection connection = ConnectionPool.connection(upstream);
+        long nanos = System.nanoTime() - connection.getExchangeStart();
+        Metrics.server(connection.getServer()).response(status, nanos);
+        if (status >= HttpResponseStatus.INTERNAL_SERVER_ERROR.code()) {
+            ServerHealth.of(connection.getServer()).failure();
+        } else {
+            ServerHealth.of(connection.getServer()).success();
+        }
+        AccessLog.log(downstream, connection.getRequest(), status, bytes, connection.getServer(), nanos);
+        connection.endExchange();
+    }
+
+    /**
+     * A response arrived with no exchange to take it, after the request timed out or the downstream went away.
+     * Nothing else can be read from the connection in order, it is closed.
+     */
+    private void unsolicited(Channel upstream) {
+        if (upstream.isActive()) {
+            logger.warn(String.format("upstream channel[%s] response without a request, closing", upstream));
+        }
+        release(upstream, false);
+    }
+
+    private void release(Channel upstream, boolean reusable) {
+        if (reusable) {
+            ConnectionPool.current().release(ConnectionPool.connection(upstream));
+        } else {
+            upstream.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+            upstream.close();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        Exchange exchange = ctx.channel().attr(AttributeKeys.EXCHANGE_KEY).get();
+        if (responding && null != exchange) {
+            exchange.flush();
+        }
+        super.channelReadComplete(ctx);
     }
 
     @Override
@@ -66,28 +214,46 @@ public class UpStreamHandler extends SimpleChannelInboundHandler<FullHttpRespons
             activeClose = true;
         }
 
-        logger.warn(String.format("upstream channel[%s] inactive, activeClose:%s", ctx.channel(), activeClose));
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            // an h2c stream closes after every exchange
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("upstream stream[%s] closed, activeClose:%s", ctx.channel(), activeClose));
+            }
+        } else {
+            logger.warn(String.format("upstream channel[%s] inactive, activeClose:%s", ctx.channel(), activeClose));
+        }
 
-        Channel downstream = null;
-        Boolean keepAlived = null;
-        if (null != (downstream = ctx.channel().attr(AttributeKeys.DOWNSTREAM_CHANNEL_KEY).get())
-                && null != (keepAlived = ctx.channel().attr(AttributeKeys.KEEP_ALIVED_KEY).get())) {
-            if (keepAlived) {
-                downstream.writeAndFlush(RequestContext.errorResponse(), downstream.voidPromise());
+        Exchange exchange = ctx.channel().attr(AttributeKeys.EXCHANGE_KEY).getAndSet(null);
+        if (null != exchange) {
+            Channel downstream = exchange.downstream();
+            Connection connection = ConnectionPool.connection(ctx.channel());
+            Metrics.server(connection.getServer()).failure();
+            ServerHealth.of(connection.getServer()).failure();
+            boolean timedOut = UpstreamTimeoutHandler.isExpired(ctx.channel());
+            // a streamed response is cut short, otherwise the client gets an error
+            AccessLog.log(downstream, connection.getRequest(), responding ? status : timedOut ? 504 : 500,
+                    responding ? bytes : 0, connection.getServer(), -1);
+            connection.endExchange();
+            if (null != cacheFill) {
+                cacheFill.abort();
+                cacheFill = null;
+            }
+            // a buffered response that never came
+            CacheFill pending = exchange.takeCacheFill();
+            if (null != pending) {
+                pending.abort();
+            }
+            if (responding) {
+                // the response headers are already sent, the only way to signal the failure is closing
+                responding = false;
+                exchange.abort();
             } else {
-                downstream.writeAndFlush(RequestContext.errorResponse()).addListener(ChannelFutureListener.CLOSE);
+                exchange.end(timedOut ? RequestContext.timeoutResponse() : RequestContext.errorResponse());
             }
         } else {// remove current inactive channel from cached conns
-            LinkedList<Connection> conns = RequestContext.keepAlivedConntions(proxyPass);
-            Connection tmp = null;
-
-            for (Iterator<Connection> it = conns.iterator(); it.hasNext(); ) {
-                tmp = it.next();
-                // find the inactive connection
-                if (server == tmp.getServer()) {
-                    it.remove();
-                    break;
-                }
+            Connection connection = ConnectionPool.connection(ctx.channel());
+            if (null != connection) {
+                ConnectionPool.current().remove(connection);
             }
         }
         super.channelInactive(ctx);
@@ -95,8 +261,11 @@ public class UpStreamHandler extends SimpleChannelInboundHandler<FullHttpRespons
 
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
-        logger.warn(String.format("upstream channel[%s] writability changed, isWritable: %s", ctx.channel(),
-                ctx.channel().isWritable()));
+        Exchange exchange = ctx.channel().attr(AttributeKeys.EXCHANGE_KEY).get();
+        if (null != exchange && ctx.channel().isWritable()) {
+            // the request body drained, read more of it from the client
+            ExchangeQueue.of(exchange.downstream()).resumeRead(ExchangeQueue.UPSTREAM_FULL);
+        }
         super.channelWritabilityChanged(ctx);
     }
 
@@ -0,0 +1,34 @@
+package reverseproxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import reverseproxy.core.AttributeKeys;
+
+/**
+ * Aggregates responses unless the in-flight request on the channel was proxied in streaming mode, in which
+ * case the response passes through as {@link HttpResponse} followed by its chunks.
+ */
+public class UpStreamHttpObjectAggregator extends HttpObjectAggregator {
+
+    private Channel channel;
+
+    public UpStreamHttpObjectAggregator(int maxContentLength) {
+        super(maxContentLength);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        if (msg instanceof HttpResponse && Boolean.TRUE.equals(channel.attr(AttributeKeys.STREAMING_KEY).get())) {
+            return false;
+        }
+        return super.acceptInboundMessage(msg);
+    }
+}
@@ -0,0 +1,165 @@
+package reverseproxy.upstream;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.core.TimerWheel;
+import reverseproxy.core.TimerWheel.Timeout;
+import reverseproxy.metrics.Metrics;
+import reverseproxy.upstream.pool.Connection;
+import reverseproxy.upstream.pool.ConnectionPool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces {@code read_timeout} and {@code request_timeout} on the request in flight on an upstream connection.
+ * The request is armed when it is sent and disarmed when its exchange ends. Reads and flushes only record the
+ * time. The connection's single timeout sits in the {@link TimerWheel} of its event loop. A timeout that fires
+ * early is moved to the soonest time either limit can be reached. A connection not read while the client catches
+ * up is not idle. An expired request is counted for its server and handed to the task it was armed with.
+ */
+public class UpstreamTimeoutHandler extends ChannelDuplexHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamTimeoutHandler.class);
+
+    private ChannelHandlerContext ctx;
+
+    private Timeout timeout;
+
+    // fails the request over, null while none is armed
+    private Runnable expiredTask;
+
+    private long readTimeoutNanos;
+
+    private long requestTimeoutNanos;
+
+    private long start;
+
+    private long lastActivity;
+
+    // the last request expired, read once the connection is closed
+    private boolean expired;
+
+    /**
+     * Starts timing the request just sent on the upstream.
+     *
+     * @param readTimeoutMillis 0 for no limit
+     * @param requestTimeoutMillis 0 for no limit
+     * @param expiredTask run on the event loop if the request times out, the connection is left open
+     */
+    public static void arm(Channel upstream, int readTimeoutMillis, int requestTimeoutMillis, Runnable expiredTask) {
+        UpstreamTimeoutHandler handler = upstream.pipeline().get(UpstreamTimeoutHandler.class);
+        if (null != handler) {
+            handler.arm(readTimeoutMillis, requestTimeoutMillis, expiredTask);
+        }
+    }
+
+    /**
+     * Stops timing the request of the upstream, its exchange ended.
+     */
+    public static void disarm(Channel upstream) {
+        UpstreamTimeoutHandler handler = upstream.pipeline().get(UpstreamTimeoutHandler.class);
+        if (null != handler) {
+            handler.disarm();
+        }
+    }
+
+    /**
+     * @return whether the last request of the upstream timed out
+     */
+    public static boolean isExpired(Channel upstream) {
+        UpstreamTimeoutHandler handler = upstream.pipeline().get(UpstreamTimeoutHandler.class);
+        return null != handler && handler.expired;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        disarm();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        disarm();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        lastActivity = System.nanoTime();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        lastActivity = System.nanoTime();
+        super.flush(ctx);
+    }
+
+    private void arm(int readTimeoutMillis, int requestTimeoutMillis, Runnable expiredTask) {
+        disarm();
+        expired = false;
+        if (readTimeoutMillis <= 0 && requestTimeoutMillis <= 0) {
+            return;
+        }
+        this.expiredTask = expiredTask;
+        readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis);
+        start = System.nanoTime();
+        lastActivity = start;
+        schedule(readTimeoutNanos <= 0 ? requestTimeoutNanos
+                : requestTimeoutNanos <= 0 ? readTimeoutNanos : Math.min(readTimeoutNanos, requestTimeoutNanos));
+    }
+
+    private void disarm() {
+        expiredTask = null;
+        if (null != timeout) {
+            timeout.cancel();
+        }
+    }
+
+    private void schedule(long delayNanos) {
+        TimerWheel wheel = TimerWheel.of(ctx.executor());
+        if (null == timeout) {
+            timeout = wheel.schedule(this::expired, delayNanos, TimeUnit.NANOSECONDS);
+        } else {
+            wheel.schedule(timeout, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void expired() {
+        if (null == expiredTask || !ctx.channel().isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!ctx.channel().config().isAutoRead()) {
+            // held back for a slow client, see Exchange
+            lastActivity = now;
+        }
+        long wait = Long.MAX_VALUE;
+        if (readTimeoutNanos > 0) {
+            wait = lastActivity + readTimeoutNanos - now;
+        }
+        if (requestTimeoutNanos > 0) {
+            wait = Math.min(wait, start + requestTimeoutNanos - now);
+        }
+        if (wait > 0) {
+            schedule(wait);
+            return;
+        }
+        Runnable task = expiredTask;
+        expiredTask = null;
+        expired = true;
+        Connection connection = ConnectionPool.connection(ctx.channel());
+        Metrics.server(connection.getServer()).timeout();
+        logger.warn(String.format("upstream channel[%s] request timed out after %dms", ctx.channel(),
+                TimeUnit.NANOSECONDS.toMillis(now - start)));
+        task.run();
+    }
+}
@@ -0,0 +1,300 @@
+package reverseproxy.upstream.health;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.HealthCheck;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.conf.ReverseProxyConfig.Upstream;
+import reverseproxy.core.Independent;
+import reverseproxy.core.TimerWheel;
+import reverseproxy.core.TimerWheel.Timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Active health checks of the upstreams that configure {@code health_check}. Every server is checked by one
+ * worker event loop, spread over the group, on a fresh connection each time: {@code GET path} must answer the
+ * expected status within the timeout. An h2c server is checked over HTTP/2 with prior knowledge, on a stream of
+ * the fresh connection. {@code fall} failed checks in a row take the server down for the
+ * balancers, {@code rise} passed checks bring it back.
+ */
+public final class HealthChecker {
+
+    private static final Logger logger = LoggerFactory.getLogger(HealthChecker.class);
+
+    private final List<Check> checks = new ArrayList<>();
+
+    private HealthChecker() {
+    }
+
+    public static HealthChecker start(ReverseProxyConfig config, EventLoopGroup group) {
+        HealthChecker checker = new HealthChecker();
+        for (Entry<String, List<Server>> entry : config.upstreams().entrySet()) {
+            Upstream upstream = config.upstream(entry.getKey());
+            if (null == upstream || null == upstream.healthCheck()) {
+                continue;
+            }
+            for (Server server : entry.getValue()) {
+                Check check = new Check(server, upstream.healthCheck(), group.next());
+                check.start();
+                checker.checks.add(check);
+            }
+        }
+        if (!checker.checks.isEmpty()) {
+            logger.info(String.format("health checking %d servers", checker.checks.size()));
+        }
+        return checker;
+    }
+
+    /**
+     * Stops the checks. A server the checker took down stays down only if {@code next} keeps checking it, any
+     * other is given back to the balancers.
+     *
+     * @param next the checker of the reloaded config, null on shutdown
+     */
+    public void stop(HealthChecker next) {
+        Set<Server> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (null != next) {
+            for (Check check : next.checks) {
+                checked.add(check.server);
+            }
+        }
+        for (Check check : checks) {
+            check.stop(!checked.contains(check.server));
+        }
+    }
+
+    /**
+     * The checks of one server, all state is confined to its event loop.
+     */
+    private static final class Check {
+
+        private final Server server;
+
+        private final HealthCheck config;
+
+        private final EventLoop eventLoop;
+
+        private final ServerHealth health;
+
+        private final Bootstrap bootstrap;
+
+        private ScheduledFuture<?> schedule;
+
+        private boolean stopped;
+
+        // the check in progress, null between checks
+        private Channel channel;
+
+        private Timeout timeout;
+
+        private int passed;
+
+        private int failed;
+
+        Check(Server server, HealthCheck config, EventLoop eventLoop) {
+            this.server = server;
+            this.config = config;
+            this.eventLoop = eventLoop;
+            this.health = ServerHealth.of(server);
+            this.bootstrap = newBootstrap();
+        }
+
+        private Bootstrap newBootstrap() {
+            Bootstrap b = new Bootstrap();
+            b.group(eventLoop);
+            b.channel(Independent.channelClass());
+            b.resolver(Independent.resolver());
+            b.option(ChannelOption.TCP_NODELAY, true);
+            b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+            // timed out by check, from the timer wheel
+            b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 0);
+            b.handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) throws Exception {
+                    if (server.isHttp2()) {
+                        // the check is sent on a stream of its own, like the requests to the server
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient()
+                                .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                                .build());
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    } else {
+                        ch.pipeline().addLast(new HttpClientCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024));
+                    }
+                    ch.pipeline().addLast(new CheckHandler());
+                }
+            });
+            return b;
+        }
+
+        void start() {
+            // spread the first checks so all servers are not checked in the same instant
+            long interval = TimeUnit.SECONDS.toMillis(config.interval());
+            long delay = ThreadLocalRandom.current().nextLong(interval);
+            schedule = eventLoop.scheduleWithFixedDelay(this::check, delay, interval, TimeUnit.MILLISECONDS);
+        }
+
+        void stop(boolean release) {
+            eventLoop.execute(() -> {
+                stopped = true;
+                schedule.cancel(false);
+                if (null != channel) {
+                    timeout.cancel();
+                    channel.close();
+                    channel = null;
+                }
+                if (release && health.isDown()) {
+                    health.setDown(false);
+                    logger.warn(String.format("[%s:%d] is no longer health checked, back to the balancers",
+                            server.getIp(), server.getPort()));
+                }
+            });
+        }
+
+        private void check() {
+            if (null != channel) {
+                // the previous check is still running, its timeout settles it
+                return;
+            }
+            ChannelFuture connectFuture = bootstrap.connect(server.getAddress());
+            channel = connectFuture.channel();
+            timeout = TimerWheel.of(eventLoop).schedule(() -> done(connectFuture.channel(), false, "timeout"),
+                    config.timeout(), TimeUnit.SECONDS);
+            // the request is sent once the connection is active, after the h2c preface
+            connectFuture.addListener((ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    done(future.channel(), false, "connect failed");
+                }
+            });
+        }
+
+        private void send(Channel ch) {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, config.path());
+            request.headers().set(HttpHeaderNames.HOST, server.getIp() + ':' + server.getPort());
+            if (!server.isHttp2()) {
+                request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            ch.writeAndFlush(request, ch.voidPromise());
+        }
+
+        private void sendOnStream(Channel connection) {
+            new Http2StreamChannelBootstrap(connection).handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) throws Exception {
+                    ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                    ch.pipeline().addLast(new HttpObjectAggregator(64 * 1024));
+                    ch.pipeline().addLast(new CheckHandler());
+                }
+            }).open().addListener((Future<Http2StreamChannel> future) -> {
+                // on success the request is sent once the stream is active
+                if (!future.isSuccess()) {
+                    done(connection, false, "stream could not be opened: " + future.cause());
+                }
+            });
+        }
+
+        // settles the check on the given channel once, later calls for it and calls after stop are ignored
+        private void done(Channel ch, boolean ok, String reason) {
+            if (stopped || ch != channel) {
+                return;
+            }
+            channel = null;
+            timeout.cancel();
+            ch.close();
+
+            if (ok) {
+                failed = 0;
+                if (++passed >= config.rise() && health.isDown()) {
+                    health.setDown(false);
+                    logger.warn(String.format("[%s:%d] is up, %d health checks passed", server.getIp(),
+                            server.getPort(), passed));
+                }
+            } else {
+                passed = 0;
+                if (++failed >= config.fall() && !health.isDown()) {
+                    health.setDown(true);
+                    logger.warn(String.format("[%s:%d] is down, %d health checks failed, last: %s", server.getIp(),
+                            server.getPort(), failed, reason));
+                }
+            }
+        }
+
+        /**
+         * Settles the check from the connection, or from the stream of an h2c check.
+         */
+        private final class CheckHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) throws Exception {
+                int status = response.status().code();
+                done(connection(ctx), status == config.status(), "status " + status);
+            }
+
+            @Override
+            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                if (ctx.channel() instanceof Http2StreamChannel) {
+                    send(ctx.channel());
+                } else if (server.isHttp2()) {
+                    sendOnStream(ctx.channel());
+                } else {
+                    send(ctx.channel());
+                }
+                super.channelActive(ctx);
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                done(connection(ctx), false, "connection closed");
+                super.channelInactive(ctx);
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                done(connection(ctx), false, String.valueOf(cause));
+            }
+
+            private Channel connection(ChannelHandlerContext ctx) {
+                Channel ch = ctx.channel();
+                return ch instanceof Http2StreamChannel ? ch.parent() : ch;
+            }
+        }
+    }
+}
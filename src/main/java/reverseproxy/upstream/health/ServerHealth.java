@@ -0,0 +1,177 @@
+package reverseproxy.upstream.health;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Health of an upstream server, shared by all event loops. A server is unavailable while the active
+ * {@link HealthChecker} has it down, or while it is passively ejected.
+ * <p>
+ * After {@code maxFails} consecutive failures (connect, write, 5xx or a connection lost mid exchange) the server
+ * is passively ejected for {@code failTimeout}, doubled for every ejection in a row. When the time is up a single
+ * request is let through as a probe: success brings the server back, failure ejects it again for longer.
+ * <p>
+ * The common path, a healthy server answering, only reads volatile fields; the shared state is written on
+ * failures and recoveries only.
+ */
+public final class ServerHealth {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerHealth.class);
+
+    public static final int DEFAULT_MAX_FAILS = 3;
+
+    public static final int DEFAULT_FAIL_TIMEOUT_MILLIS = 10_000;
+
+    // the ejection time stops doubling at failTimeout * 2^MAX_BACKOFF_SHIFT
+    private static final int MAX_BACKOFF_SHIFT = 5;
+
+    // indexed by Server#getId(), replaced when it grows
+    private static volatile ServerHealth[] byId = new ServerHealth[16];
+
+    // host:port for the logs, the server itself is not kept so a server dropped by a reload can be collected
+    private final String name;
+
+    // of the server, a reused id gets a new health
+    private final int generation;
+
+    // 0 disables ejection
+    private final int maxFails;
+
+    private final long failTimeoutNanos;
+
+    // System::nanoTime, the tests move it by hand
+    private final LongSupplier clock;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    // clock time until which the server gets no requests, 0 while it is healthy
+    private final AtomicLong ejectedUntil = new AtomicLong();
+
+    // ejections in a row, for the back-off
+    private final AtomicInteger ejections = new AtomicInteger();
+
+    // a probe was let through and has not failed yet
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    // set by the active health checker
+    private volatile boolean down;
+
+    ServerHealth(Server server, int maxFails, long failTimeoutMillis, LongSupplier clock) {
+        this.name = server.getIp() + ':' + server.getPort();
+        this.generation = server.getGeneration();
+        this.maxFails = maxFails;
+        this.failTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(failTimeoutMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the thresholds of a server, keeping the state it has if it is already registered with them.
+     */
+    public static synchronized ServerHealth register(Server server, int maxFails, long failTimeoutMillis) {
+        ServerHealth health = lookup(server);
+        if (null != health && health.maxFails == maxFails
+                && health.failTimeoutNanos == TimeUnit.MILLISECONDS.toNanos(failTimeoutMillis)) {
+            return health;
+        }
+        health = new ServerHealth(server, maxFails, failTimeoutMillis, System::nanoTime);
+        ServerHealth[] table = byId;
+        if (server.getId() >= table.length) {
+            table = Arrays.copyOf(table, Integer.highestOneBit(server.getId()) << 1);
+        } else {
+            table = table.clone();
+        }
+        table[server.getId()] = health;
+        byId = table;
+        return health;
+    }
+
+    /**
+     * @return the health of the server, registered with the default thresholds if it was not yet
+     */
+    public static ServerHealth of(Server server) {
+        ServerHealth health = lookup(server);
+        return null != health ? health : register(server, DEFAULT_MAX_FAILS, DEFAULT_FAIL_TIMEOUT_MILLIS);
+    }
+
+    private static ServerHealth lookup(Server server) {
+        ServerHealth[] table = byId;
+        ServerHealth health = server.getId() < table.length ? table[server.getId()] : null;
+        return null != health && health.generation == server.getGeneration() ? health : null;
+    }
+
+    /**
+     * @return whether a request may be sent to the server; once the ejection time is over this lets exactly one
+     * caller through as the probe until the probe answers or another ejection time passes
+     */
+    public boolean isAvailable() {
+        if (down) {
+            return false;
+        }
+        long until = ejectedUntil.get();
+        if (0 == until) {
+            return true;
+        }
+        long now = clock.getAsLong();
+        if (now - until >= 0 && ejectedUntil.compareAndSet(until, (now + failTimeoutNanos) | 1)) {
+            probing.set(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the server is currently ejected, without claiming a probe
+     */
+    public boolean isEjected() {
+        return 0 != ejectedUntil.get();
+    }
+
+    public boolean isDown() {
+        return down;
+    }
+
+    void setDown(boolean down) {
+        this.down = down;
+    }
+
+    public void success() {
+        if (0 != failures.get()) {
+            failures.set(0);
+        }
+        if (0 != ejectedUntil.get()) {
+            ejectedUntil.set(0);
+            ejections.set(0);
+            probing.set(false);
+            logger.warn(String.format("[%s] is back after its probe succeeded", name));
+        }
+    }
+
+    public void failure() {
+        if (0 == maxFails) {
+            return;
+        }
+        if (0 != ejectedUntil.get()) {
+            // requests sent before the ejection may still fail, only a failed probe ejects again
+            if (!probing.compareAndSet(true, false)) {
+                return;
+            }
+        } else if (failures.incrementAndGet() < maxFails) {
+            return;
+        }
+        failures.set(0);
+        int shift = Math.min(ejections.getAndIncrement(), MAX_BACKOFF_SHIFT);
+        long timeout = failTimeoutNanos << shift;
+        // never 0, which means healthy
+        ejectedUntil.set((clock.getAsLong() + timeout) | 1);
+        logger.warn(String.format("[%s] ejected for %dms after consecutive failures", name,
+                TimeUnit.NANOSECONDS.toMillis(timeout)));
+    }
+}
@@ -0,0 +1,60 @@
+package reverseproxy.upstream.lb;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.util.Arrays;
+
+/**
+ * Requests in flight per server, counted separately by every event loop. A loop only balances the requests it
+ * dispatched itself, so the counters are plain ints that are never shared and never contended.
+ */
+public final class InFlight {
+
+    private static final FastThreadLocal<InFlight> IN_FLIGHT = new FastThreadLocal<InFlight>() {
+        @Override
+        protected InFlight initialValue() throws Exception {
+            return new InFlight();
+        }
+    };
+
+    // indexed by Server#getId()
+    private int[] counts = new int[16];
+
+    // the generation of the server each count belongs to, a reused id starts again from 0
+    private int[] generations = new int[16];
+
+    private InFlight() {
+    }
+
+    public static void increment(Server server) {
+        IN_FLIGHT.get().add(server, 1);
+    }
+
+    public static void decrement(Server server) {
+        IN_FLIGHT.get().add(server, -1);
+    }
+
+    /**
+     * @return the requests the calling event loop has in flight on the server
+     */
+    public static int get(Server server) {
+        InFlight inFlight = IN_FLIGHT.get();
+        int id = server.getId();
+        return id < inFlight.counts.length && inFlight.generations[id] == server.getGeneration()
+                ? inFlight.counts[id] : 0;
+    }
+
+    private void add(Server server, int delta) {
+        int id = server.getId();
+        if (id >= counts.length) {
+            counts = Arrays.copyOf(counts, Integer.highestOneBit(id) << 1);
+            generations = Arrays.copyOf(generations, counts.length);
+        }
+        if (generations[id] != server.getGeneration()) {
+            generations[id] = server.getGeneration();
+            counts[id] = 0;
+        }
+        counts[id] += delta;
+    }
+}
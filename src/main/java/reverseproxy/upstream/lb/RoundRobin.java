@@ -1,7 +1,13 @@
 package reverseproxy.upstream.lb;
 
+import io.netty.util.concurrent.FastThreadLocal;
+import reverseproxy.conf.ReverseProxyConfig;
 import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.upstream.health.ServerHealth;
 
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 
 interface ServerSelection {
@@ -12,15 +18,68 @@ public class RoundRobin implements ServerSelection {
 
     private final ServerSelection inner;
 
+    // picks after which every server came up at least once
+    private final int cycle;
+
     public RoundRobin(Server[] servers) {
-        inner = ServerSelectionFactory.INSTANCE.newSelection(servers);
+        this(servers, ReverseProxyConfig.ROUND_ROBIN);
+    }
+
+    /**
+     * @param balance {@link ReverseProxyConfig#ROUND_ROBIN} or {@link ReverseProxyConfig#LEAST_REQUEST}
+     */
+    public RoundRobin(Server[] servers, String balance) {
+        inner = ServerSelectionFactory.INSTANCE.newSelection(servers, balance);
+        this.cycle = ReverseProxyConfig.LEAST_REQUEST.equals(balance) ? servers.length : cycle(servers);
+    }
+
+    // a heavy server comes up several times in a row before the others, the cycle spans all its picks
+    private static int cycle(Server[] servers) {
+        int gcd = 0;
+        for (Server server : servers) {
+            gcd = gcd(server.getWeight(), gcd);
+        }
+        int cycle = 0;
+        for (Server server : servers) {
+            cycle += server.getWeight() / gcd;
+        }
+        return cycle;
     }
 
+    private static int gcd(int a, int b) {
+        return 0 == b ? a : gcd(b, a % b);
+    }
+
+    /**
+     * @return the next server of the strategy that is not ejected, see {@link ServerHealth}
+     */
     @Override
     public Server next() {
-        Server server = inner.next();
-        System.out.println(server.toString());
-        return server;
+        Server first = inner.next();
+        if (ServerHealth.of(first).isAvailable()) {
+            return first;
+        }
+        Server server;
+        for (int i = 1; i < cycle; i++) {
+            if (ServerHealth.of(server = inner.next()).isAvailable()) {
+                return server;
+            }
+        }
+        // every server is ejected, trying one beats failing the request outright
+        return first;
+    }
+
+    /**
+     * @return like {@link #next()}, but a server other than {@code tried} whenever another one is available
+     */
+    public Server next(Server tried) {
+        Server server;
+        for (int i = 0; i < cycle; i++) {
+            if ((server = inner.next()) != tried && ServerHealth.of(server).isAvailable()) {
+                return server;
+            }
+        }
+        return next();
     }
 
     static class ServerSelectionFactory {
@@ -34,7 +93,22 @@ public class RoundRobin implements ServerSelection {
             return (val & -val) == val;
         }
 
-        public ServerSelection newSelection(Server[] servers) {
+        private static boolean sameWeight(Server[] servers) {
+            for (Server server : servers) {
+                if (server.getWeight() != servers[0].getWeight()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public ServerSelection newSelection(Server[] servers, String balance) {
+            if (ReverseProxyConfig.LEAST_REQUEST.equals(balance) && servers.length > 1) {
+                return new LeastRequestSelection(servers);
+            }
+            if (!sameWeight(servers)) {
+                return new SmoothWeightedSelection(servers);
+            }
             if (isPowerOfTwo(servers.length)) {
                 return new PowerOfTwoEventExecutor(servers);
             } else {
@@ -69,5 +143,78 @@ public class RoundRobin implements ServerSelection {
                 return servers[Math.abs(idx.getAndIncrement() % servers.length)];
             }
         }
+
+        /**
+         * Power of two choices: picks two distinct servers at random and takes the one with fewer requests in
+         * flight on the calling event loop relative to its weight, which avoids both herding on a single least
+         * loaded server and the cost of scanning all of them.
+         */
+        private static final class LeastRequestSelection implements ServerSelection {
+            private final Server[] servers;
+
+            LeastRequestSelection(Server[] servers) {
+                this.servers = servers;
+            }
+
+            public Server next() {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int a = random.nextInt(servers.length);
+                // a second index different from the first
+                int b = random.nextInt(servers.length - 1);
+                if (b >= a) {
+                    b++;
+                }
+                Server sa = servers[a];
+                Server sb = servers[b];
+                // inFlight(b) / weight(b) < inFlight(a) / weight(a)
+                return (long) InFlight.get(sb) * sa.getWeight() < (long) InFlight.get(sa) * sb.getWeight() ? sb : sa;
+            }
+        }
+
+        /**
+         * nginx's smooth weighted round robin: every pick adds each weight to the server's current weight, takes
+         * the largest and subtracts the total from it. Weights 5, 1, 1 give a, a, b, a, c, a, a instead of five a
+         * in a row. The current weights are kept per event loop, so each loop interleaves on its own without
+         * sharing state. They are held in one thread local for all selections, weakly: a reload makes new
+         * selections and the weights of the old ones go with them.
+         */
+        private static final class SmoothWeightedSelection implements ServerSelection {
+            private static final FastThreadLocal<Map<SmoothWeightedSelection, int[]>> CURRENT_WEIGHTS =
+                    new FastThreadLocal<Map<SmoothWeightedSelection, int[]>>() {
+                        @Override
+                        protected Map<SmoothWeightedSelection, int[]> initialValue() throws Exception {
+                            return new WeakHashMap<>();
+                        }
+                    };
+            private final Server[] servers;
+            private final int totalWeight;
+
+            SmoothWeightedSelection(Server[] servers) {
+                this.servers = servers;
+                int total = 0;
+                for (Server server : servers) {
+                    total += server.getWeight();
+                }
+                this.totalWeight = total;
+            }
+
+            public Server next() {
+                Map<SmoothWeightedSelection, int[]> currentWeights = CURRENT_WEIGHTS.get();
+                int[] current = currentWeights.get(this);
+                if (null == current) {
+                    current = new int[servers.length];
+                    currentWeights.put(this, current);
+                }
+                int best = 0;
+                for (int i = 0; i < servers.length; i++) {
+                    current[i] += servers[i].getWeight();
+                    if (current[i] > current[best]) {
+                        best = i;
+                    }
+                }
+                current[best] -= totalWeight;
+                return servers[best];
+            }
+        }
     }
-}
\ No newline at end of file
+}
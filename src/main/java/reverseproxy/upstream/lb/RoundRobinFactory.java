@@ -2,6 +2,9 @@ package reverseproxy.upstream.lb;
 
 import reverseproxy.conf.ReverseProxyConfig;
 import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.conf.ReverseProxyConfig.Upstream;
+import reverseproxy.upstream.RetryPolicy;
+import reverseproxy.upstream.health.ServerHealth;
 
 import java.util.HashMap;
 import java.util.List;
@@ -12,19 +15,30 @@ public class RoundRobinFactory {
 
     private final Map<String, RoundRobin> robinMap = new HashMap<>();
 
+    private final Map<String, RetryPolicy> retryPolicies = new HashMap<>();
+
     public void init(ReverseProxyConfig config) {
-        System.out.println("===========RoundRobinFactory========");
         Map<String, List<Server>> upstreams = config.upstreams();
         if (null == upstreams || upstreams.isEmpty()) {
             return;
         }
 
         for (Entry<String, List<Server>> upstreamEntry : upstreams.entrySet()) {
-            robinMap.put(upstreamEntry.getKey(), new RoundRobin(upstreamEntry.getValue().toArray(new Server[]{})));
+            Upstream upstream = config.upstream(upstreamEntry.getKey());
+            for (Server server : upstreamEntry.getValue()) {
+                ServerHealth.register(server, upstream.maxFails(), upstream.failTimeout() * 1000L);
+            }
+            robinMap.put(upstreamEntry.getKey(), new RoundRobin(upstreamEntry.getValue().toArray(new Server[]{}),
+                    upstream.balance()));
+            retryPolicies.put(upstreamEntry.getKey(), new RetryPolicy(upstream.maxRetries(), upstream.retryBudget()));
         }
     }
 
     public RoundRobin roundRobin(String proxypass) {
         return robinMap.get(proxypass);
     }
+
+    public RetryPolicy retryPolicy(String proxypass) {
+        return retryPolicies.get(proxypass);
+    }
 }
@@ -0,0 +1,78 @@
+package reverseproxy.upstream.pool;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.ReferenceCountUtil;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.upstream.UpstreamTimeoutHandler;
+import reverseproxy.upstream.lb.InFlight;
+
+public class Connection {
+
+    private final Server server;
+
+    private final Channel channel;
+
+    // the request in flight and System.nanoTime() when it was written, for the balancer, the metrics and the
+    // access log; a buffered request is retained so it can be sent again if it times out
+    private HttpRequest request;
+
+    private long exchangeStart;
+
+    // idle list links, only touched by the event loop of the channel
+    Connection prev;
+
+    Connection next;
+
+    ServerConnections idleIn;
+
+    public Connection(Server server, Channel channel) {
+        this.server = server;
+        this.channel = channel;
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * A request was written, it counts as in flight on the server until {@link #endExchange()}.
+     */
+    public void startExchange(HttpRequest request) {
+        if (null != this.request) {
+            InFlight.decrement(server);
+            ReferenceCountUtil.release(this.request);
+        }
+        InFlight.increment(server);
+        this.request = ReferenceCountUtil.retain(request);
+        this.exchangeStart = System.nanoTime();
+    }
+
+    /**
+     * The response completed or the exchange failed, safe to call more than once. Stops the request's timeouts.
+     */
+    public void endExchange() {
+        if (null != request) {
+            InFlight.decrement(server);
+            ReferenceCountUtil.release(request);
+            request = null;
+            UpstreamTimeoutHandler.disarm(channel);
+        }
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public long getExchangeStart() {
+        return exchangeStart;
+    }
+
+    public boolean isIdle() {
+        return null != idleIn;
+    }
+}
@@ -0,0 +1,246 @@
+package reverseproxy.upstream.pool;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.core.Independent;
+import reverseproxy.core.TimerWheel;
+import reverseproxy.core.TimerWheel.Timeout;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.upstream.ReverseProxyUpStreamChannelInitializer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keepalive connections to upstream servers. There is one pool per event loop, so it is never shared between
+ * threads and needs no locking; every method must be called on the event loop that owns the pool.
+ * <p>
+ * Idle connections are kept per {@link Server}, at most {@link Server#getKeepalive()} of them, the least recently
+ * used connection is closed when the limit is exceeded. New connections are opened from one {@link Bootstrap}
+ * configured once per event loop. Connects are timed out by the {@link TimerWheel} of the loop rather than by
+ * {@code CONNECT_TIMEOUT_MILLIS}, which would schedule a task of its own for every connect.
+ * <p>
+ * Servers of an h2c upstream are reached through {@link Http2Connections} instead: an acquired connection is a
+ * stream on a multiplexed connection, there is no idle list.
+ * <p>
+ * A server dropped by a reload is {@linkplain Server#isRetired() retired}: {@link #drain()} closes its idle
+ * connections and the ones still busy are closed when they are released, so exchanges in flight finish.
+ */
+public class ConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final FastThreadLocal<ConnectionPool> POOL = new FastThreadLocal<ConnectionPool>() {
+        @Override
+        protected ConnectionPool initialValue() throws Exception {
+            return new ConnectionPool();
+        }
+    };
+
+    private static final ReverseProxyUpStreamChannelInitializer INITIALIZER =
+            new ReverseProxyUpStreamChannelInitializer(false);
+
+    private final Map<Server, ServerConnections> idleConns = new HashMap<>();
+
+    private final Map<Server, Http2Connections> http2Conns = new HashMap<>();
+
+    private Bootstrap bootstrap;
+
+    private Bootstrap http2Bootstrap;
+
+    private ConnectionPool() {
+    }
+
+    /**
+     * @return the pool of the calling event loop
+     */
+    public static ConnectionPool current() {
+        return POOL.get();
+    }
+
+    /**
+     * @return the pooled connection wrapping an upstream channel opened by {@link #connect(EventLoop, Server)}
+     */
+    public static Connection connection(Channel upstream) {
+        return upstream.attr(AttributeKeys.CONNECTION_KEY).get();
+    }
+
+    /**
+     * @return the most recently used idle connection to the server, or a new stream if it speaks h2c; null if
+     * there is none
+     */
+    public Connection acquire(Server server) {
+        if (server.isHttp2()) {
+            Http2Connections conns = http2Conns.get(server);
+            return null == conns ? null : conns.acquire();
+        }
+        ServerConnections conns = idleConns.get(server);
+        return null == conns ? null : conns.pop();
+    }
+
+    /**
+     * Returns a connection whose exchange is complete to the idle list.
+     */
+    public void release(Connection connection) {
+        Server server = connection.getServer();
+        if (server.isHttp2()) {
+            // a stream carries a single exchange, its connection stays open for the next ones
+            connection.getChannel().attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+            connection.getChannel().close();
+            return;
+        }
+        if (server.isRetired()) {
+            connection.getChannel().attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+            connection.getChannel().close();
+            return;
+        }
+        ServerConnections conns = idleConns.get(server);
+        if (null == conns) {
+            conns = new ServerConnections(server);
+            idleConns.put(server, conns);
+        }
+        conns.push(connection);
+        Connection lru;
+        while (conns.size() > server.getKeepalive() && null != (lru = conns.pollLeastRecentlyUsed())) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("[%s:%d]cached connections exceed the keepalive[%d], closing %s",
+                        server.getIp(), server.getPort(), server.getKeepalive(), lru.getChannel()));
+            }
+            lru.getChannel().attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+            lru.getChannel().close();
+        }
+    }
+
+    /**
+     * Forgets a connection that was closed while idle.
+     */
+    public void remove(Connection connection) {
+        if (null != connection.idleIn) {
+            connection.idleIn.unlink(connection);
+        }
+    }
+
+    /**
+     * Closes the idle connections to retired servers and lets their h2c connections close once their streams end.
+     */
+    public void drain() {
+        for (Iterator<ServerConnections> it = idleConns.values().iterator(); it.hasNext(); ) {
+            ServerConnections conns = it.next();
+            if (!conns.server().isRetired()) {
+                continue;
+            }
+            it.remove();
+            Connection connection;
+            while (null != (connection = conns.pop())) {
+                connection.getChannel().attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).set(true);
+                connection.getChannel().close();
+            }
+        }
+        for (Iterator<Map.Entry<Server, Http2Connections>> it = http2Conns.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Server, Http2Connections> entry = it.next();
+            if (entry.getKey().isRetired()) {
+                it.remove();
+                entry.getValue().drain();
+            }
+        }
+    }
+
+    /**
+     * @return the number of idle connections to the server
+     */
+    public int idle(Server server) {
+        ServerConnections conns = idleConns.get(server);
+        return null == conns ? 0 : conns.size();
+    }
+
+    /**
+     * Opens a new connection to the server on the given event loop, which must be the one owning this pool. For
+     * an h2c server this is a stream, on a new multiplexed connection unless one opening can still take it.
+     *
+     * @param connectTimeoutMillis 0 waits for the operating system to give up
+     * @return the upstream channel once it can take a request, failed with a {@link ConnectTimeoutException} if
+     * it took longer than the timeout
+     */
+    public Future<Channel> connect(EventLoop eventLoop, Server server, int connectTimeoutMillis) {
+        if (server.isHttp2()) {
+            if (null == http2Bootstrap) {
+                http2Bootstrap = newBootstrap(eventLoop).handler(Http2Connections.initializer());
+            }
+            Http2Connections conns = http2Conns.get(server);
+            if (null == conns) {
+                conns = new Http2Connections(server);
+                http2Conns.put(server, conns);
+            }
+            return conns.connect(http2Bootstrap, eventLoop, connectTimeoutMillis);
+        }
+        if (null == bootstrap) {
+            bootstrap = newBootstrap(eventLoop);
+        }
+        ChannelFuture connectFuture = bootstrap.connect(server.getAddress());
+        Channel upstream = connectFuture.channel();
+        upstream.attr(AttributeKeys.CONNECTION_KEY).set(new Connection(server, upstream));
+        Promise<Channel> promise = eventLoop.newPromise();
+        connectFuture.addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                promise.trySuccess(future.channel());
+            } else {
+                promise.tryFailure(future.cause());
+            }
+        });
+        if (connectTimeoutMillis > 0) {
+            Timeout timeout = TimerWheel.of(eventLoop).schedule(() -> {
+                if (promise.tryFailure(new ConnectTimeoutException("connection timed out: " + server.getIp() + ':'
+                        + server.getPort()))) {
+                    upstream.close();
+                }
+            }, connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            promise.addListener(f -> timeout.cancel());
+        }
+        return promise;
+    }
+
+    private static Bootstrap newBootstrap(EventLoop eventLoop) {
+        Bootstrap b = new Bootstrap();
+        b.group(eventLoop);
+        b.channel(Independent.channelClass());
+        b.resolver(Independent.resolver());
+
+        b.option(ChannelOption.TCP_NODELAY, true);
+        b.option(ChannelOption.SO_KEEPALIVE, true);
+        // timed out by connect, from the timer wheel
+        b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 0);
+        // default is pooled direct
+        // ByteBuf(io.netty.util.internal.PlatformDependent.DIRECT_BUFFER_PREFERRED)
+        b.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+        // 32kb(for massive long connections, See
+        // http://www.infoq.com/cn/articles/netty-million-level-push-service-design-points)
+        // 64kb(RocketMq remoting default value)
+        b.option(ChannelOption.SO_SNDBUF, 32 * 1024);
+        b.option(ChannelOption.SO_RCVBUF, 32 * 1024);
+        // a streamed request body stops being read from the client while this much waits for the backend
+        ReverseProxyConfig config = Snapshot.current().config();
+        b.option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(config.writeBufferLow(),
+                config.writeBufferHigh()));
+        // default is true, reduce thread context switching
+        b.option(ChannelOption.SINGLE_EVENTEXECUTOR_PER_GROUP, true);
+
+        b.handler(INITIALIZER);
+        return b;
+    }
+}
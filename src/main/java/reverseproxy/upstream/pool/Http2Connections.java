@@ -0,0 +1,273 @@
+package reverseproxy.upstream.pool;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ConnectTimeoutException;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2GoAwayFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.core.TimerWheel;
+import reverseproxy.core.TimerWheel.Timeout;
+import reverseproxy.upstream.ReverseProxyUpStreamChannelInitializer;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The h2c connections of one event loop to one {@link Server}. Every exchange gets a stream of its own, opened on
+ * the first connection with a stream to spare, so connections are only added once the ones open are full. A
+ * stream is a child channel with the same handlers as an HTTP/1.1 connection and is wrapped in its own
+ * {@link Connection}; it is closed when its exchange ends.
+ * <p>
+ * At most {@link Server#getKeepalive()} connections without streams are kept open.
+ */
+final class Http2Connections {
+
+    private static final Logger logger = LoggerFactory.getLogger(Http2Connections.class);
+
+    private static final AttributeKey<Multiplexed> MULTIPLEXED_KEY = AttributeKey.valueOf("multiplexed");
+
+    private static final ReverseProxyUpStreamChannelInitializer STREAM_INITIALIZER =
+            new ReverseProxyUpStreamChannelInitializer(true);
+
+    private final Server server;
+
+    private final List<Multiplexed> connections = new ArrayList<>(2);
+
+    Http2Connections(Server server) {
+        this.server = server;
+    }
+
+    static ChannelInitializer<Channel> initializer() {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                Http2FrameCodec codec = Http2FrameCodecBuilder.forClient()
+                        .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                        .build();
+                ch.pipeline().addLast(codec);
+                // push is disabled, the backend opens no streams
+                ch.pipeline().addLast(new Http2MultiplexHandler(STREAM_INITIALIZER));
+                ch.pipeline().addLast(new ConnectionHandler());
+            }
+        };
+    }
+
+    /**
+     * @return a stream on a connection that is open and not full, null if there is none
+     */
+    Connection acquire() {
+        for (Multiplexed connection : connections) {
+            if (connection.isActive() && connection.hasCapacity()) {
+                return connection.open();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a stream once a connection can take it, connecting a new one if they are all full. A new connection
+     * that is not connected within the timeout fails every exchange waiting for it.
+     */
+    Future<Channel> connect(Bootstrap bootstrap, EventLoop eventLoop, int connectTimeoutMillis) {
+        Promise<Channel> promise = eventLoop.newPromise();
+        for (Multiplexed connection : connections) {
+            if (connection.hasCapacity()) {
+                if (connection.isActive()) {
+                    connection.complete(promise);
+                } else {
+                    connection.waiting.add(promise);
+                }
+                return promise;
+            }
+        }
+        ChannelFuture connectFuture = bootstrap.connect(server.getAddress());
+        Multiplexed connection = new Multiplexed(connectFuture.channel());
+        connectFuture.channel().attr(MULTIPLEXED_KEY).set(connection);
+        connections.add(connection);
+        connection.waiting.add(promise);
+        connectFuture.addListener((ChannelFuture future) -> {
+            // on success the streams are opened once the preface is written, when the channel becomes active
+            if (!future.isSuccess()) {
+                connection.failed(future.cause());
+            }
+        });
+        if (connectTimeoutMillis > 0) {
+            Timeout timeout = TimerWheel.of(eventLoop).schedule(() -> {
+                if (!connectFuture.isDone()) {
+                    connection.failed(new ConnectTimeoutException("connection timed out: " + server.getIp() + ':'
+                            + server.getPort()));
+                    connectFuture.channel().close();
+                }
+            }, connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            connectFuture.addListener(f -> timeout.cancel());
+        }
+        return promise;
+    }
+
+    /**
+     * Opens no more streams on the connections, each closes once its last stream ended.
+     */
+    void drain() {
+        for (Multiplexed connection : new ArrayList<>(connections)) {
+            connection.goAway();
+        }
+    }
+
+    private int idle() {
+        int idle = 0;
+        for (Multiplexed connection : connections) {
+            if (0 == connection.streams && connection.isActive()) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * One multiplexed connection, touched by its event loop only.
+     */
+    final class Multiplexed {
+
+        private final Channel channel;
+
+        // exchanges waiting for the connection to open
+        private final ArrayDeque<Promise<Channel>> waiting = new ArrayDeque<>(4);
+
+        // open streams and waiting exchanges
+        private int streams;
+
+        // the backend sent GOAWAY, no new streams are opened
+        private boolean draining;
+
+        Multiplexed(Channel channel) {
+            this.channel = channel;
+        }
+
+        boolean isActive() {
+            return channel.isActive() && !draining;
+        }
+
+        boolean hasCapacity() {
+            if (draining) {
+                return false;
+            }
+            int max = server.getMaxConcurrentStreams();
+            Http2FrameCodec codec = channel.pipeline().get(Http2FrameCodec.class);
+            if (null != codec) {
+                // the backend's SETTINGS_MAX_CONCURRENT_STREAMS
+                max = Math.min(max, codec.connection().local().maxActiveStreams());
+            }
+            return streams + waiting.size() < max;
+        }
+
+        Connection open() {
+            Future<Http2StreamChannel> future = new Http2StreamChannelBootstrap(channel).handler(STREAM_INITIALIZER).open();
+            // opened at once on the event loop of the connection
+            Http2StreamChannel stream = future.getNow();
+            if (null == stream) {
+                channel.close();
+                return null;
+            }
+            streams++;
+            Connection connection = new Connection(server, stream);
+            stream.attr(AttributeKeys.CONNECTION_KEY).set(connection);
+            stream.closeFuture().addListener(f -> streamClosed());
+            return connection;
+        }
+
+        private void streamClosed() {
+            streams--;
+            if (0 == streams && (draining || server.isRetired() || idle() > server.getKeepalive())) {
+                channel.close();
+            }
+        }
+
+        void opened() {
+            Promise<Channel> promise;
+            while (null != (promise = waiting.poll())) {
+                complete(promise);
+            }
+        }
+
+        void complete(Promise<Channel> promise) {
+            Connection connection = open();
+            if (null == connection) {
+                promise.tryFailure(new IllegalStateException("stream could not be opened"));
+            } else if (!promise.trySuccess(connection.getChannel())) {
+                connection.getChannel().close();
+            }
+        }
+
+        void failed(Throwable cause) {
+            connections.remove(this);
+            Promise<Channel> promise;
+            while (null != (promise = waiting.poll())) {
+                promise.tryFailure(cause);
+            }
+        }
+
+        void goAway() {
+            draining = true;
+            if (0 == streams) {
+                channel.close();
+            }
+        }
+
+        void closed() {
+            failed(new ClosedChannelException());
+        }
+    }
+
+    private static final class ConnectionHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            // frames that are not about a stream, only GOAWAY matters here
+            if (msg instanceof Http2GoAwayFrame) {
+                logger.warn(String.format("upstream channel[%s] received GOAWAY", ctx.channel()));
+                ctx.channel().attr(MULTIPLEXED_KEY).get().goAway();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.channel().attr(MULTIPLEXED_KEY).get().opened();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            logger.warn(String.format("upstream channel[%s] inactive", ctx.channel()));
+            ctx.channel().attr(MULTIPLEXED_KEY).get().closed();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            logger.error(String.format("upstream channel[%s] exceptionCaught", ctx.channel()), cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package reverseproxy.upstream.pool;
+
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+/**
+ * Idle connections of one event loop to one {@link Server}, most recently used first. Push, pop, eviction of the
+ * least recently used connection and removal of a closed connection are all O(1).
+ */
+final class ServerConnections {
+
+    private final Server server;
+
+    private Connection head;
+
+    private Connection tail;
+
+    private int size;
+
+    ServerConnections(Server server) {
+        this.server = server;
+    }
+
+    Server server() {
+        return server;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Connection pop() {
+        Connection connection = head;
+        if (null != connection) {
+            unlink(connection);
+        }
+        return connection;
+    }
+
+    void push(Connection connection) {
+        connection.idleIn = this;
+        connection.next = head;
+        if (null != head) {
+            head.prev = connection;
+        } else {
+            tail = connection;
+        }
+        head = connection;
+        size++;
+    }
+
+    Connection pollLeastRecentlyUsed() {
+        Connection connection = tail;
+        if (null != connection) {
+            unlink(connection);
+        }
+        return connection;
+    }
+
+    void unlink(Connection connection) {
+        if (null != connection.prev) {
+            connection.prev.next = connection.next;
+        } else {
+            head = connection.next;
+        }
+        if (null != connection.next) {
+            connection.next.prev = connection.prev;
+        } else {
+            tail = connection.prev;
+        }
+        connection.prev = null;
+        connection.next = null;
+        connection.idleIn = null;
+        size--;
+    }
+}
@@ -0,0 +1,54 @@
+package reverseproxy.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CacheEntryTest {
+
+    private static ByteBuf body(String text) {
+        return PooledByteBufAllocator.DEFAULT.directBuffer(text.length(), text.length())
+                .writeBytes(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static CacheEntry entry(ByteBuf body) {
+        return new CacheEntry("GET example.com/", "GET example.com/", new String[0], HttpResponseStatus.OK,
+                new DefaultHttpHeaders(), body, 0, 0, Long.MAX_VALUE);
+    }
+
+    @Test
+    void releasedEntryIsNotRead() {
+        ByteBuf body = body("stale");
+        CacheEntry entry = entry(body);
+        entry.release();
+        assertEquals(0, body.refCnt());
+
+        // the pool may hand the buffer out again, the entry must not look at it
+        ByteBuf reused = PooledByteBufAllocator.DEFAULT.directBuffer(5, 5);
+        try {
+            assertNull(entry.response(0));
+        } finally {
+            reused.release();
+        }
+    }
+
+    @Test
+    void responseOutlivesEntry() {
+        ByteBuf body = body("fresh");
+        CacheEntry entry = entry(body);
+        FullHttpResponse response = entry.response(0);
+        entry.release();
+        assertEquals(1, body.refCnt(), "the response still holds the body");
+        assertEquals("fresh", response.content().toString(StandardCharsets.US_ASCII));
+        response.release();
+        assertEquals(0, body.refCnt());
+    }
+}
@@ -0,0 +1,41 @@
+package reverseproxy.cache;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachePolicyTest {
+
+    @Test
+    void storedHeadersDropHopByHop() {
+        HttpHeaders headers = new DefaultHttpHeaders()
+                .add(HttpHeaderNames.CONNECTION, "keep-alive, X-Hop")
+                .add(HttpHeaderNames.CONNECTION, "x-other")
+                .add("Keep-Alive", "timeout=5")
+                .add("Proxy-Connection", "keep-alive")
+                .add(HttpHeaderNames.TRANSFER_ENCODING, "chunked")
+                .add(HttpHeaderNames.TRAILER, "x-checksum")
+                .add(HttpHeaderNames.UPGRADE, "h2c")
+                .add("x-hop", "1")
+                .add("X-Other", "2")
+                .add(HttpHeaderNames.CONTENT_TYPE, "text/plain")
+                .add(HttpHeaderNames.CACHE_CONTROL, "max-age=60")
+                .add(HttpHeaderNames.AGE, "3");
+
+        HttpHeaders stored = CachePolicy.storedHeaders(headers, 42);
+        for (String name : new String[]{"connection", "keep-alive", "proxy-connection", "transfer-encoding",
+                "trailer", "upgrade", "x-hop", "x-other"}) {
+            assertFalse(stored.contains(name), name);
+        }
+        assertEquals("text/plain", stored.get(HttpHeaderNames.CONTENT_TYPE));
+        assertEquals("max-age=60", stored.get(HttpHeaderNames.CACHE_CONTROL));
+        assertEquals("3", stored.get(HttpHeaderNames.AGE));
+        assertEquals("42", stored.get(HttpHeaderNames.CONTENT_LENGTH));
+        assertTrue(headers.contains(HttpHeaderNames.CONNECTION), "the response keeps its headers");
+    }
+}
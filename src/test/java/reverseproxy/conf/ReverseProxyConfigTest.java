@@ -0,0 +1,71 @@
+package reverseproxy.conf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ReverseProxyConfigTest {
+
+    @TempDir
+    Path dir;
+
+    private ReverseProxyConfig parse(String... servers) throws Exception {
+        StringBuilder yaml = new StringBuilder(String.join("\n",
+                "listen: 8000",
+                "worker_threads: 1",
+                "servers:",
+                "  example.com:",
+                "    - path: /**",
+                "      proxy_pass: http://pool",
+                "upstreams:",
+                "  pool:",
+                "    servers:",
+                ""));
+        for (String server : servers) {
+            yaml.append("      - ").append(server).append('\n');
+        }
+        File file = dir.resolve("reverseproxy.yml").toFile();
+        Files.write(file.toPath(), yaml.toString().getBytes(StandardCharsets.UTF_8));
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(file.getPath());
+        return config;
+    }
+
+    private static List<Server> pool(ReverseProxyConfig config) {
+        return config.upstreams().get("http://pool");
+    }
+
+    @Test
+    void reloadKeepsRunningServers() throws Exception {
+        ReverseProxyConfig running = parse("127.0.0.1:9001", "127.0.0.1:9002 weight=2");
+        ReverseProxyConfig reloaded = parse("127.0.0.1:9002 weight=2", "127.0.0.1:9001", "127.0.0.1:9003");
+        reloaded.retainServers(running);
+        assertSame(pool(running).get(1), pool(reloaded).get(0));
+        assertSame(pool(running).get(0), pool(reloaded).get(1));
+        assertFalse(pool(running).contains(pool(reloaded).get(2)));
+    }
+
+    @Test
+    void changedWeightReplacesServer() throws Exception {
+        ReverseProxyConfig running = parse("127.0.0.1:9001", "127.0.0.1:9002");
+        ReverseProxyConfig reloaded = parse("127.0.0.1:9001 weight=3", "127.0.0.1:9002");
+        reloaded.retainServers(running);
+        Server reweighted = pool(reloaded).get(0);
+        assertNotSame(pool(running).get(0), reweighted);
+        assertEquals(3, reweighted.getWeight());
+        // not equal, so the reload retires and drains the running one
+        assertFalse(pool(reloaded).contains(pool(running).get(0)));
+        assertSame(pool(running).get(1), pool(reloaded).get(1));
+    }
+}
@@ -0,0 +1,48 @@
+package reverseproxy.conf;
+
+import org.junit.jupiter.api.Test;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.upstream.health.ServerHealth;
+import reverseproxy.upstream.lb.InFlight;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerIdTest {
+
+    // a server that got the id of a collected one, null if collection did not happen in time
+    private static Server reusing(int id) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            System.gc();
+            Thread.sleep(20);
+            Server server = new Server("ids", "127.0.0.1:8002", 0, 0);
+            if (server.getId() == id) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private static int dropped() {
+        Server server = new Server("ids", "127.0.0.1:8001", 0, 0);
+        InFlight.increment(server);
+        ServerHealth.register(server, 1, 60_000).failure();
+        return server.getId();
+    }
+
+    @Test
+    void idOfCollectedServerIsReused() throws InterruptedException {
+        Server live = new Server("ids", "127.0.0.1:8000", 0, 0);
+        int id = dropped();
+        assertNotEquals(live.getId(), id);
+
+        Server server = reusing(id);
+        assertNotNull(server, "the id of the collected server is given out again");
+        assertTrue(server.getGeneration() > 1, "a new generation of the id");
+        assertEquals(0, InFlight.get(server), "the count of the collected server is not inherited");
+        assertFalse(ServerHealth.of(server).isEjected(), "nor its health");
+    }
+}
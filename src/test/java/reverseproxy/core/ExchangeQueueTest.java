@@ -0,0 +1,234 @@
+package reverseproxy.core;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExchangeQueueTest {
+
+    private EmbeddedChannel downstream;
+
+    @BeforeEach
+    void setUp() {
+        downstream = new EmbeddedChannel();
+    }
+
+    @AfterEach
+    void tearDown() {
+        downstream.finishAndReleaseAll();
+    }
+
+    private static ByteBuf buf(String s) {
+        return Unpooled.copiedBuffer(s, StandardCharsets.US_ASCII);
+    }
+
+    // the next non empty message written to the downstream, null if there is none
+    private String written() {
+        ByteBuf buf;
+        while (null != (buf = downstream.readOutbound())) {
+            try {
+                if (buf.isReadable()) {
+                    return buf.toString(StandardCharsets.US_ASCII);
+                }
+            } finally {
+                buf.release();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    void outOfOrderResponsesAreWrittenInRequestOrder() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange first = queue.start(true);
+        Exchange second = queue.start(true);
+        Exchange third = queue.start(true);
+
+        third.end(buf("c"));
+        second.write(buf("b1"));
+        second.end(buf("b2"));
+        assertNull(written(), "held until the first response ends");
+
+        first.writeAndFlush(buf("a1"));
+        assertEquals("a1", written());
+        first.end(buf("a2"));
+        assertEquals("a2", written());
+        assertEquals("b1", written());
+        assertEquals("b2", written());
+        assertEquals("c", written());
+        assertNull(written());
+        assertTrue(queue.isIdle());
+        assertTrue(downstream.isOpen());
+    }
+
+    @Test
+    void abortClosesAfterEarlierResponses() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange first = queue.start(true);
+        Exchange second = queue.start(true);
+        Exchange third = queue.start(true);
+
+        ByteBuf partial = buf("b");
+        second.write(partial);
+        second.abort();
+        assertEquals(0, partial.refCnt(), "the partial response is dropped");
+        assertTrue(downstream.isOpen(), "the first response is still pending");
+        ByteBuf after = buf("c");
+        third.end(after);
+
+        first.end(buf("a"));
+        assertEquals("a", written());
+        assertNull(written());
+        assertFalse(downstream.isOpen());
+        assertEquals(0, after.refCnt(), "nothing is written after the aborted response");
+        assertTrue(queue.isClosed());
+    }
+
+    @Test
+    void abortOfOldestFlushesWhatWasWritten() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange exchange = queue.start(true);
+        exchange.write(buf("partial"));
+        exchange.abort();
+        assertEquals("partial", written());
+        assertFalse(downstream.isOpen());
+    }
+
+    @Test
+    void requestPipelinedPastCloseIsAborted() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange first = queue.start(false);
+        Exchange second = queue.start(true);
+        first.end(buf("a"));
+        assertEquals("a", written());
+        assertFalse(downstream.isOpen());
+        assertTrue(queue.isClosed());
+
+        ByteBuf late = buf("b");
+        second.end(late);
+        assertEquals(0, late.refCnt());
+        Exchange third = queue.start(true);
+        assertTrue(third.isAborted());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    void pipelineDepthSuspendsReading() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 1);
+        Exchange first = queue.start(true);
+        assertTrue(downstream.config().isAutoRead());
+        Exchange second = queue.start(true);
+        assertFalse(downstream.config().isAutoRead());
+
+        first.end(buf("a"));
+        assertTrue(downstream.config().isAutoRead());
+        second.end(buf("b"));
+        assertTrue(downstream.config().isAutoRead());
+    }
+
+    @Test
+    void suspendReasonsDoNotUndoEachOther() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 1);
+        Exchange first = queue.start(true);
+        queue.start(true);
+        queue.suspendRead(ExchangeQueue.CONNECTING);
+
+        first.end(buf("a"));
+        assertFalse(downstream.config().isAutoRead(), "still connecting");
+        queue.suspendRead(ExchangeQueue.UPSTREAM_FULL);
+        queue.resumeRead(ExchangeQueue.CONNECTING);
+        assertFalse(downstream.config().isAutoRead(), "upstream full remains");
+        queue.resumeRead(ExchangeQueue.CONNECTING);
+        assertFalse(downstream.config().isAutoRead(), "resuming twice changes nothing");
+        queue.resumeRead(ExchangeQueue.UPSTREAM_FULL);
+        assertTrue(downstream.config().isAutoRead());
+    }
+
+    @Test
+    void endResumesReadingSuspendedForUpstream() {
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange exchange = queue.start(true);
+        queue.suspendRead(ExchangeQueue.UPSTREAM_FULL);
+        exchange.end(buf("a"));
+        assertTrue(downstream.config().isAutoRead());
+    }
+
+    @Test
+    void heldResponseSuspendsItsUpstream() {
+        downstream.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange first = queue.start(true);
+        Exchange second = queue.start(true);
+        second.bindUpstream(upstream);
+
+        second.write(buf("0123456789"));
+        assertTrue(upstream.config().isAutoRead());
+        second.write(buf("0123456789"));
+        assertFalse(upstream.config().isAutoRead(), "held bytes reached the high watermark");
+
+        // the downstream drains, the held bytes still hold the upstream back
+        queue.writabilityChanged(false);
+        queue.writabilityChanged(true);
+        assertFalse(upstream.config().isAutoRead());
+
+        first.end(buf("a"));
+        assertTrue(upstream.config().isAutoRead(), "the held messages were written");
+        assertEquals("a", written());
+        assertEquals("0123456789", written());
+        assertEquals("0123456789", written());
+
+        second.end(buf("b"));
+        assertTrue(upstream.config().isAutoRead());
+        upstream.finishAndReleaseAll();
+    }
+
+    @Test
+    void unwritableDownstreamSuspendsUpstreams() {
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        Exchange exchange = queue.start(true);
+        exchange.bindUpstream(upstream);
+
+        queue.writabilityChanged(false);
+        assertFalse(upstream.config().isAutoRead());
+        queue.writabilityChanged(true);
+        assertTrue(upstream.config().isAutoRead());
+
+        queue.writabilityChanged(false);
+        exchange.unbindUpstream();
+        assertTrue(upstream.config().isAutoRead(), "an unbound upstream is read again to be pooled");
+        queue.writabilityChanged(true);
+        upstream.finishAndReleaseAll();
+    }
+
+    @Test
+    void closeReleasesHeldAndResumesUpstreams() {
+        downstream.config().setWriteBufferWaterMark(new WriteBufferWaterMark(1, 2));
+        EmbeddedChannel upstream = new EmbeddedChannel();
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        queue.start(true);
+        Exchange second = queue.start(true);
+        second.bindUpstream(upstream);
+        ByteBuf held = buf("held");
+        second.write(held);
+        assertFalse(upstream.config().isAutoRead());
+
+        queue.close();
+        assertEquals(0, held.refCnt());
+        assertTrue(upstream.config().isAutoRead());
+        assertTrue(queue.isIdle());
+        upstream.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,204 @@
+package reverseproxy.core;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reverseproxy.core.TimerWheel.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    // ticks in one turn of the wheel
+    private static final int TURN = 512;
+
+    private EmbeddedChannel channel;
+
+    private long nanos;
+
+    private TimerWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        channel = new EmbeddedChannel();
+        nanos = 1000;
+        wheel = new TimerWheel(channel.eventLoop(), () -> nanos);
+    }
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    // moves the clock and runs the ticker
+    private void tick(int ticks) {
+        nanos += TimeUnit.MILLISECONDS.toNanos(ticks * TimerWheel.TICK_MILLIS);
+        wheel.advance();
+    }
+
+    @Test
+    void shortDelayWaitsOneTick() {
+        AtomicInteger runs = new AtomicInteger();
+        Timeout zero = wheel.schedule(runs::incrementAndGet, 0, TimeUnit.MILLISECONDS);
+        Timeout nano = wheel.schedule(runs::incrementAndGet, 1, TimeUnit.NANOSECONDS);
+        assertEquals(2, wheel.pending());
+
+        wheel.advance();
+        assertEquals(0, runs.get(), "nothing runs before a tick passed");
+        nanos += TimeUnit.MILLISECONDS.toNanos(TimerWheel.TICK_MILLIS) - 1;
+        wheel.advance();
+        assertEquals(0, runs.get());
+        nanos += 1;
+        wheel.advance();
+        assertEquals(2, runs.get());
+        assertFalse(zero.isPending());
+        assertFalse(nano.isPending());
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    void deadlineIsRoundedUp() {
+        AtomicInteger runs = new AtomicInteger();
+        wheel.schedule(runs::incrementAndGet, TimerWheel.TICK_MILLIS + 1, TimeUnit.MILLISECONDS);
+        tick(1);
+        assertEquals(0, runs.get());
+        tick(1);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void longDelaySpansSeveralTurns() {
+        List<String> runs = new ArrayList<>();
+        long ticks = 2 * TURN + 10;
+        Timeout later = wheel.schedule(() -> runs.add("later"), ticks * TimerWheel.TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+        // shares the bucket of the later one, a turn sooner
+        wheel.schedule(() -> runs.add("sooner"), (ticks - TURN) * TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        for (int i = 1; i < ticks - TURN; i++) {
+            tick(1);
+        }
+        assertTrue(runs.isEmpty());
+        tick(1);
+        assertEquals(1, runs.size());
+        assertEquals("sooner", runs.get(0));
+        assertTrue(later.isPending(), "left in its bucket for the next turn");
+
+        for (int i = 1; i < TURN; i++) {
+            tick(1);
+        }
+        assertEquals(1, runs.size());
+        tick(1);
+        assertEquals(2, runs.size());
+        assertEquals("later", runs.get(1));
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    void lateTickerCatchesUp() {
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 1; i <= 10; i++) {
+            wheel.schedule(runs::incrementAndGet, i * TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        wheel.schedule(runs::incrementAndGet, TURN * TimerWheel.TICK_MILLIS * 3, TimeUnit.MILLISECONDS);
+        tick(TURN);
+        assertEquals(10, runs.get());
+        assertEquals(1, wheel.pending());
+        tick(TURN);
+        assertEquals(10, runs.get());
+        tick(TURN);
+        assertEquals(11, runs.get());
+    }
+
+    @Test
+    void cancelBeforeExpiry() {
+        AtomicInteger runs = new AtomicInteger();
+        Timeout timeout = wheel.schedule(runs::incrementAndGet, 3 * TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        tick(1);
+        timeout.cancel();
+        assertFalse(timeout.isPending());
+        assertEquals(0, wheel.pending());
+        timeout.cancel();
+        assertEquals(0, wheel.pending(), "cancelling twice is harmless");
+        tick(5);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    void cancelAfterExpiry() {
+        AtomicInteger runs = new AtomicInteger();
+        Timeout timeout = wheel.schedule(runs::incrementAndGet, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        Timeout other = wheel.schedule(runs::incrementAndGet, 10 * TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        tick(1);
+        assertEquals(1, runs.get());
+        timeout.cancel();
+        assertEquals(1, wheel.pending(), "the other timeout is still counted");
+        assertTrue(other.isPending());
+    }
+
+    @Test
+    void taskCancelsTimeoutOfSameTick() {
+        AtomicInteger runs = new AtomicInteger();
+        Timeout[] timeouts = new Timeout[2];
+        timeouts[0] = wheel.schedule(() -> {
+            runs.incrementAndGet();
+            timeouts[1].cancel();
+        }, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        timeouts[1] = wheel.schedule(() -> {
+            runs.incrementAndGet();
+            timeouts[0].cancel();
+        }, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        tick(1);
+        assertEquals(1, runs.get());
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    void rescheduleMovesDeadline() {
+        AtomicInteger runs = new AtomicInteger();
+        Timeout timeout = wheel.schedule(runs::incrementAndGet, 2 * TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        tick(1);
+        wheel.schedule(timeout, 2 * TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.pending());
+        tick(1);
+        assertEquals(0, runs.get());
+        tick(1);
+        assertEquals(1, runs.get());
+
+        // and again once expired
+        wheel.schedule(timeout, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.isPending());
+        tick(1);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    void failingTaskDoesNotStopOthers() {
+        AtomicInteger runs = new AtomicInteger();
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected");
+        }, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        wheel.schedule(runs::incrementAndGet, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        tick(1);
+        assertEquals(1, runs.get());
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    void timeoutOfAnotherWheelIsRejected() {
+        TimerWheel other = new TimerWheel(channel.eventLoop(), () -> nanos);
+        Timeout timeout = other.schedule(() -> {
+        }, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        assertThrows(IllegalArgumentException.class,
+                () -> wheel.schedule(timeout, TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,113 @@
+package reverseproxy.downstream;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.core.AttributeKeys;
+import reverseproxy.core.ExchangeQueue;
+import reverseproxy.reload.Snapshot;
+import reverseproxy.upstream.lb.RoundRobin;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DownStreamHandlerTest {
+
+    private static final String HOST = "example.com:8000";
+
+    // nothing listens on the servers, the tests only look at whether one was picked
+    private static final String YAML = String.join("\n",
+            "listen: 8000",
+            "worker_threads: 1",
+            "servers:",
+            "  example.com:",
+            "    - path: /**",
+            "      proxy_pass: http://pool",
+            "upstreams:",
+            "  pool:",
+            "    servers:",
+            "      - 127.0.0.1:1",
+            "      - 127.0.0.1:2",
+            "      - 127.0.0.1:3",
+            "");
+
+    private EmbeddedChannel downstream;
+
+    private RoundRobin roundRobin;
+
+    @BeforeEach
+    void setUp(@TempDir Path dir) throws Exception {
+        File file = dir.resolve("reverseproxy.yml").toFile();
+        Files.write(file.toPath(), YAML.getBytes(StandardCharsets.UTF_8));
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(file.getPath());
+        Snapshot snapshot = Snapshot.compile(config);
+        Snapshot.publish(snapshot);
+        roundRobin = snapshot.routeTable().route(HOST, "/orders").roundRobin();
+
+        downstream = new EmbeddedChannel(new DownStreamHandler());
+        ExchangeQueue queue = new ExchangeQueue(downstream, 16);
+        downstream.attr(AttributeKeys.EXCHANGE_QUEUE_KEY).set(queue);
+        // a response closed the connection, the requests below were pipelined after it
+        queue.close();
+    }
+
+    @AfterEach
+    void tearDown() {
+        downstream.finishAndReleaseAll();
+        Snapshot.publish(null);
+    }
+
+    // the first server of the pool is still the next one, the request was not sent anywhere
+    private void assertNotBalanced() {
+        assertEquals(1, roundRobin.next().getPort());
+    }
+
+    @Test
+    void requestAfterClosingResponseIsDropped() {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/orders",
+                Unpooled.copiedBuffer("{}", StandardCharsets.US_ASCII));
+        request.headers().set(HttpHeaderNames.HOST, HOST);
+        downstream.writeInbound(request);
+        downstream.checkException();
+        assertEquals(0, request.refCnt());
+        assertNull(downstream.readOutbound());
+        assertNotBalanced();
+    }
+
+    @Test
+    void streamedRequestAfterClosingResponseIsDiscarded() {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/orders");
+        request.headers().set(HttpHeaderNames.HOST, HOST);
+        request.headers().set(HttpHeaderNames.CONTENT_LENGTH, 4);
+        HttpContent content = new DefaultHttpContent(Unpooled.copiedBuffer("ab", StandardCharsets.US_ASCII));
+        LastHttpContent last = new DefaultLastHttpContent(Unpooled.copiedBuffer("cd", StandardCharsets.US_ASCII));
+        downstream.writeInbound(request, content, last);
+        downstream.checkException();
+        assertEquals(0, content.refCnt());
+        assertEquals(0, last.refCnt());
+        assertNull(downstream.attr(AttributeKeys.STREAMING_REQUEST_KEY).get());
+        assertNull(downstream.readOutbound());
+        assertNotBalanced();
+    }
+}
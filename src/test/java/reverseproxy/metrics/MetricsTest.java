@@ -0,0 +1,35 @@
+package reverseproxy.metrics;
+
+import org.junit.jupiter.api.Test;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+
+    private static String scrape() {
+        StringBuilder out = new StringBuilder();
+        Metrics.writeTo(out);
+        return out.toString();
+    }
+
+    private static String requests(String server, int count) {
+        return "reverseproxy_server_requests_total{upstream=\"metrics\",server=\"" + server + "\"} " + count;
+    }
+
+    @Test
+    void retiredServerIsNotExported() {
+        Server kept = new Server("metrics", "127.0.0.1:7001", 0, 0);
+        Server removed = new Server("metrics", "127.0.0.1:7002", 0, 0);
+        Metrics.server(kept).request();
+        Metrics.server(removed).request();
+        assertTrue(scrape().contains(requests("127.0.0.1:7002", 1)));
+
+        removed.retire();
+        String metrics = scrape();
+        assertTrue(metrics.contains(requests("127.0.0.1:7001", 1)));
+        assertFalse(metrics.contains("127.0.0.1:7002"));
+        assertTrue(metrics.contains("reverseproxy_upstream_requests_total{upstream=\"metrics\"} 1"));
+    }
+}
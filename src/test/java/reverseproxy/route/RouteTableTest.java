@@ -0,0 +1,155 @@
+package reverseproxy.route;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.upstream.lb.RoundRobinFactory;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RouteTableTest {
+
+    private static final String HOST = "example.com:8000";
+
+    private static final String YAML = String.join("\n",
+            "listen: 8000",
+            "worker_threads: 1",
+            "servers:",
+            "  example.com:",
+            "    - path: /**",
+            "      proxy_pass: http://pool",
+            "    - path: /api/**",
+            "      proxy_pass: http://pool",
+            "    - path: /api/v1/**",
+            "      proxy_pass: http://pool",
+            "    - path: /api/v1/users",
+            "      proxy_pass: http://pool",
+            "    - path: /api/*/detail",
+            "      proxy_pass: http://pool",
+            "    - path: /api/v1/u?ers/*",
+            "      proxy_pass: http://pool",
+            "    - path: /static/*",
+            "      proxy_pass: http://pool",
+            "    - path: /static/**",
+            "      proxy_pass: http://pool",
+            "    - path: /first",
+            "      proxy_pass: http://pool",
+            "      streaming: true",
+            "    - path: /first",
+            "      proxy_pass: http://pool",
+            "  other.com:",
+            "    - path: /api/**",
+            "      proxy_pass: http://pool",
+            "upstreams:",
+            "  pool:",
+            "    servers:",
+            "      - 127.0.0.1:9001",
+            "");
+
+    private static RouteTable routeTable;
+
+    @BeforeAll
+    static void compile(@TempDir Path dir) throws Exception {
+        File file = dir.resolve("reverseproxy.yml").toFile();
+        Files.write(file.toPath(), YAML.getBytes(StandardCharsets.UTF_8));
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(file.getPath());
+        RoundRobinFactory robinFactory = new RoundRobinFactory();
+        robinFactory.init(config);
+        routeTable = RouteTable.compile(config, robinFactory);
+    }
+
+    private static String path(String uri) {
+        Route route = routeTable.route(HOST, uri);
+        return null == route ? null : route.location().path();
+    }
+
+    @Test
+    void exactBeatsPatternsAndPrefixes() {
+        assertEquals("/api/v1/users", path("/api/v1/users"));
+    }
+
+    @Test
+    void patternBeatsLongestPrefix() {
+        assertEquals("/api/*/detail", path("/api/v1/detail"));
+        assertEquals("/api/*/detail", path("/api/v2/detail"));
+        assertEquals("/api/v1/u?ers/*", path("/api/v1/users/42"));
+    }
+
+    @Test
+    void longestPrefixWins() {
+        assertEquals("/api/v1/**", path("/api/v1/orders/42"));
+        assertEquals("/api/**", path("/api/v2/orders/42"));
+        assertEquals("/**", path("/apiv1/orders"), "/apiv1 is not below /api");
+        assertEquals("/**", path("/apiv1"));
+        assertEquals("/**", path("/"));
+    }
+
+    @Test
+    void prefixMatchesItself() {
+        assertEquals("/api/v1/**", path("/api/v1"));
+        assertEquals("/api/v1/**", path("/api/v1/"));
+        assertEquals("/api/**", path("/api"));
+    }
+
+    @Test
+    void oneSegmentBeatsAnyDepthAtSameDepth() {
+        assertEquals("/static/*", path("/static/app.js"));
+        assertEquals("/static/*", path("/static/"));
+        assertEquals("/static/**", path("/static/js/app.js"));
+        assertEquals("/static/**", path("/static"));
+    }
+
+    @Test
+    void trailingSlashIsNotExact() {
+        assertEquals("/api/v1/**", path("/api/v1/orders/"));
+        assertEquals("/api/v1/**", path("/api/v1/user/"));
+        // like "/static/*", a pattern's trailing wildcard matches an empty last segment
+        assertEquals("/api/v1/u?ers/*", path("/api/v1/users/"));
+    }
+
+    @Test
+    void repeatedSeparatorsAreSkipped() {
+        assertEquals("/api/v1/**", path("/api//v1/orders"));
+    }
+
+    @Test
+    void queryStringAndFragmentAreIgnored() {
+        assertEquals("/api/v1/users", path("/api/v1/users?id=42"));
+        assertEquals("/api/v1/users", path("/api/v1/users#top"));
+        assertEquals("/api/v1/users", path("/api/v1/users?"));
+        assertEquals("/static/*", path("/static/app.js?v=/js/x"));
+        assertEquals("/**", path("/?api/v1/users"));
+    }
+
+    @Test
+    void firstDeclaredDuplicateWins() {
+        Route route = routeTable.route(HOST, "/first");
+        assertNotNull(route);
+        assertTrue(route.streaming());
+    }
+
+    @Test
+    void hostIsMatchedIgnoringCase() {
+        assertEquals("/api/**", routeTable.route("OTHER.com:8000", "/api/x").location().path());
+        assertNull(routeTable.route("other.com:8000", "/x"));
+        assertNull(routeTable.route("unknown.com:8000", "/api/x"));
+        assertNull(routeTable.route(null, "/api/x"));
+        assertNull(routeTable.route(HOST, null));
+    }
+
+    @Test
+    void relativePathMatchesNoPrefix() {
+        assertNull(path("api/v1/orders"));
+        assertNull(path(""));
+    }
+}
@@ -0,0 +1,129 @@
+package reverseproxy.upstream;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.internal.InternalThreadLocalMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryPolicyTest {
+
+    // retries available before any request was counted
+    private static final int BURST = 10;
+
+    private static int drain(RetryPolicy policy) {
+        int retries = 0;
+        while (policy.tryRetry(HttpMethod.GET, true)) {
+            retries++;
+        }
+        return retries;
+    }
+
+    @Test
+    void burstIsAvailableFromStart() {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        assertEquals(BURST, drain(policy));
+        assertFalse(policy.tryRetry(HttpMethod.GET, false), "not sent, but still bound by the budget");
+    }
+
+    @Test
+    void requestsRefillBudget() {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        drain(policy);
+        for (int i = 0; i < 4; i++) {
+            policy.deposit();
+        }
+        assertFalse(policy.tryRetry(HttpMethod.GET, true), "0.8 of a token");
+        policy.deposit();
+        assertTrue(policy.tryRetry(HttpMethod.GET, true));
+        assertFalse(policy.tryRetry(HttpMethod.GET, true));
+    }
+
+    @Test
+    void retriesStayWithinBudgetShare() {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        drain(policy);
+        int retries = 0;
+        for (int i = 0; i < 1000; i++) {
+            policy.deposit();
+            if (policy.tryRetry(HttpMethod.GET, true)) {
+                retries++;
+            }
+        }
+        assertEquals(200, retries);
+    }
+
+    @Test
+    void refillIsCappedAtBurst() {
+        RetryPolicy policy = new RetryPolicy(3, 100);
+        for (int i = 0; i < 1000; i++) {
+            policy.deposit();
+        }
+        assertEquals(BURST, drain(policy));
+    }
+
+    @Test
+    void zeroBudgetOnlyHasBurst() {
+        RetryPolicy policy = new RetryPolicy(3, 0);
+        assertEquals(BURST, drain(policy));
+        for (int i = 0; i < 1000; i++) {
+            policy.deposit();
+        }
+        assertFalse(policy.tryRetry(HttpMethod.GET, false));
+    }
+
+    @Test
+    void sentNonIdempotentIsNeverRetried() {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        for (HttpMethod method : new HttpMethod[]{HttpMethod.POST, HttpMethod.PATCH, HttpMethod.CONNECT}) {
+            assertFalse(policy.tryRetry(method, true), method.name());
+        }
+        assertEquals(BURST, drain(policy), "refusing takes no token");
+    }
+
+    @Test
+    void unsentNonIdempotentIsRetried() {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        assertTrue(policy.tryRetry(HttpMethod.POST, false));
+        assertEquals(BURST - 1, drain(policy));
+    }
+
+    @Test
+    void sentIdempotentIsRetried() {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        for (HttpMethod method : new HttpMethod[]{HttpMethod.GET, HttpMethod.HEAD, HttpMethod.PUT,
+                HttpMethod.DELETE, HttpMethod.OPTIONS, HttpMethod.TRACE}) {
+            assertTrue(RetryPolicy.isIdempotent(method), method.name());
+            assertTrue(policy.tryRetry(method, true), method.name());
+        }
+    }
+
+    @Test
+    void everyThreadHasItsOwnBucket() throws InterruptedException {
+        RetryPolicy policy = new RetryPolicy(3, 20);
+        drain(policy);
+        AtomicInteger other = new AtomicInteger();
+        Thread thread = new Thread(() -> other.set(drain(policy)));
+        thread.start();
+        thread.join();
+        assertEquals(BURST, other.get());
+        assertFalse(policy.tryRetry(HttpMethod.GET, true));
+    }
+
+    @Test
+    void policiesTakeNoThreadLocalIndex() {
+        drain(new RetryPolicy(3, 20));
+        int indices = InternalThreadLocalMap.lastVariableIndex();
+        // a reload makes new policies
+        for (int i = 0; i < 100; i++) {
+            RetryPolicy policy = new RetryPolicy(3, 20);
+            policy.deposit();
+            assertEquals(BURST, drain(policy));
+        }
+        assertEquals(indices, InternalThreadLocalMap.lastVariableIndex());
+    }
+}
@@ -0,0 +1,48 @@
+package reverseproxy.upstream;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.junit.jupiter.api.Test;
+import reverseproxy.core.AttributeKeys;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpStreamHandlerTest {
+
+    @Test
+    void responseWithoutExchangeClosesUpstream() {
+        EmbeddedChannel upstream = new EmbeddedChannel(new UpStreamHandler());
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(new byte[16]));
+
+        upstream.writeInbound(response);
+        assertEquals(0, response.refCnt());
+        assertFalse(upstream.isOpen());
+        assertTrue(upstream.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).get());
+    }
+
+    @Test
+    void streamedResponseWithoutExchangeClosesUpstream() {
+        EmbeddedChannel upstream = new EmbeddedChannel(new UpStreamHandler());
+        LastHttpContent content = new DefaultLastHttpContent(Unpooled.copiedBuffer(new byte[16]));
+
+        upstream.writeInbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        assertFalse(upstream.isOpen());
+        assertTrue(upstream.attr(AttributeKeys.UPSTREAM_ACTIVE_CLOSE_KEY).get());
+
+        // the rest of the response is dropped too
+        EmbeddedChannel other = new EmbeddedChannel(new UpStreamHandler());
+        other.writeInbound(content);
+        assertEquals(0, content.refCnt());
+        assertFalse(other.isOpen());
+    }
+}
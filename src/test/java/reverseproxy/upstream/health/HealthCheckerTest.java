@@ -0,0 +1,169 @@
+package reverseproxy.upstream.health;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.core.Independent;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HealthCheckerTest {
+
+    // nothing listens on port 1, every check fails
+    private static final String YAML = String.join("\n",
+            "listen: 8000",
+            "worker_threads: 1",
+            "servers:",
+            "  example.com:",
+            "    - path: /**",
+            "      proxy_pass: http://pool",
+            "upstreams:",
+            "  pool:",
+            "    servers:",
+            "      - 127.0.0.1:1",
+            "    health_check:",
+            "      interval: 1",
+            "      timeout: 1",
+            "      fall: 1",
+            "");
+
+    @TempDir
+    Path dir;
+
+    private EventLoopGroup group;
+
+    @BeforeEach
+    void setUp() {
+        group = Independent.newEventLoopGroup(1, new DefaultThreadFactory("HealthCheckerTest", true));
+    }
+
+    @AfterEach
+    void tearDown() {
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    private ReverseProxyConfig config() throws Exception {
+        return config(YAML);
+    }
+
+    private ReverseProxyConfig config(String yaml) throws Exception {
+        File file = dir.resolve("reverseproxy.yml").toFile();
+        Files.write(file.toPath(), yaml.getBytes(StandardCharsets.UTF_8));
+        ReverseProxyConfig config = new ReverseProxyConfig();
+        config.parse(file.getPath());
+        return config;
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Test
+    void stoppedCheckReleasesServer() throws Exception {
+        ReverseProxyConfig config = config();
+        Server server = config.upstreams().get("http://pool").get(0);
+        ServerHealth health = ServerHealth.of(server);
+        HealthChecker checker = HealthChecker.start(config, group);
+        assertTrue(await(health::isDown), "the failed check takes the server down");
+
+        checker.stop(null);
+        assertTrue(await(() -> !health.isDown()), "no check left to bring it back");
+    }
+
+    @Test
+    void serverCheckedByNextCheckerStaysDown() throws Exception {
+        ReverseProxyConfig config = config();
+        Server server = config.upstreams().get("http://pool").get(0);
+        ServerHealth health = ServerHealth.of(server);
+        HealthChecker checker = HealthChecker.start(config, group);
+        assertTrue(await(health::isDown));
+
+        HealthChecker next = HealthChecker.start(config, group);
+        checker.stop(next);
+        // the stop runs on the event loop, anything queued after it sees its effect
+        group.next().submit(() -> { }).sync();
+        assertTrue(health.isDown());
+        next.stop(null);
+    }
+
+    @Test
+    void h2cServerIsCheckedOverHttp2() throws Exception {
+        // answers HTTP/2 with prior knowledge only, an HTTP/1.1 check fails
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group);
+        b.channel(Independent.serverChannelClass());
+        b.childHandler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().build());
+                ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel stream) {
+                        stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                        stream.pipeline().addLast(new SimpleChannelInboundHandler<HttpObject>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+                                if (msg instanceof LastHttpContent) {
+                                    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                                            HttpResponseStatus.OK);
+                                    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+                                    ctx.writeAndFlush(response);
+                                }
+                            }
+                        });
+                    }
+                }));
+            }
+        });
+        Channel listener = b.bind("127.0.0.1", 0).sync().channel();
+        try {
+            int port = ((InetSocketAddress) listener.localAddress()).getPort();
+            ReverseProxyConfig config = config(YAML.replace("127.0.0.1:1", "127.0.0.1:" + port)
+                    .replace("    health_check:", "    protocol: h2c\n    health_check:")
+                    .replace("      fall: 1", "      rise: 1"));
+            Server server = config.upstreams().get("http://pool").get(0);
+            ServerHealth health = ServerHealth.of(server);
+            health.setDown(true);
+            HealthChecker checker = HealthChecker.start(config, group);
+            assertTrue(await(() -> !health.isDown()), "the check passes over h2c");
+            checker.stop(null);
+        } finally {
+            listener.close().sync();
+        }
+    }
+}
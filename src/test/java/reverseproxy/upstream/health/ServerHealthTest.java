@@ -0,0 +1,173 @@
+package reverseproxy.upstream.health;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerHealthTest {
+
+    private static final long FAIL_TIMEOUT_MILLIS = 1000;
+
+    private long nanos;
+
+    private ServerHealth health;
+
+    @BeforeEach
+    void setUp() {
+        // odd, so the deadlines are not moved by the bit that keeps them off 0
+        nanos = 1001;
+        health = new ServerHealth(new Server("127.0.0.1:1", 0), 3, FAIL_TIMEOUT_MILLIS, () -> nanos);
+    }
+
+    private void sleep(long millis) {
+        nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    void ejectedAfterMaxFails() {
+        health.failure();
+        health.failure();
+        assertTrue(health.isAvailable());
+        assertFalse(health.isEjected());
+        health.failure();
+        assertTrue(health.isEjected());
+        assertFalse(health.isAvailable());
+    }
+
+    @Test
+    void successResetsFailureCount() {
+        health.failure();
+        health.failure();
+        health.success();
+        health.failure();
+        health.failure();
+        assertFalse(health.isEjected(), "the failures were not consecutive");
+        health.failure();
+        assertTrue(health.isEjected());
+    }
+
+    @Test
+    void probeReadmitsServer() {
+        eject();
+        sleep(FAIL_TIMEOUT_MILLIS - 1);
+        assertFalse(health.isAvailable());
+        sleep(1);
+        assertTrue(health.isAvailable(), "the probe");
+        assertFalse(health.isAvailable(), "a single probe at a time");
+        assertTrue(health.isEjected());
+
+        health.success();
+        assertFalse(health.isEjected());
+        assertTrue(health.isAvailable());
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    void failedProbesBackOff() {
+        eject();
+        long timeout = FAIL_TIMEOUT_MILLIS;
+        for (int i = 0; i < 3; i++) {
+            sleep(timeout);
+            assertTrue(health.isAvailable(), "the probe");
+            health.failure();
+            timeout *= 2;
+            sleep(timeout - 1);
+            assertFalse(health.isAvailable(), "ejected for twice as long");
+            sleep(1);
+            assertTrue(health.isAvailable());
+            health.failure();
+            timeout *= 2;
+        }
+    }
+
+    @Test
+    void backOffIsCapped() {
+        eject();
+        long timeout = FAIL_TIMEOUT_MILLIS;
+        for (int i = 0; i < 10; i++) {
+            sleep(timeout);
+            assertTrue(health.isAvailable());
+            health.failure();
+            timeout = Math.min(timeout * 2, FAIL_TIMEOUT_MILLIS * 32);
+        }
+        sleep(FAIL_TIMEOUT_MILLIS * 32 - 1);
+        assertFalse(health.isAvailable());
+        sleep(1);
+        assertTrue(health.isAvailable(), "not doubled past 32 times the fail timeout");
+    }
+
+    @Test
+    void readmissionResetsBackOff() {
+        eject();
+        sleep(FAIL_TIMEOUT_MILLIS);
+        assertTrue(health.isAvailable());
+        health.failure();
+        sleep(2 * FAIL_TIMEOUT_MILLIS);
+        assertTrue(health.isAvailable());
+        health.success();
+
+        eject();
+        sleep(FAIL_TIMEOUT_MILLIS);
+        assertTrue(health.isAvailable(), "back to the first ejection time");
+    }
+
+    @Test
+    void failuresOfRequestsSentBeforeEjectionAreIgnored() {
+        eject();
+        health.failure();
+        health.failure();
+        sleep(FAIL_TIMEOUT_MILLIS);
+        assertTrue(health.isAvailable(), "not ejected for longer");
+    }
+
+    @Test
+    void probeNotAnsweredInTimeLetsAnotherThrough() {
+        eject();
+        sleep(FAIL_TIMEOUT_MILLIS);
+        assertTrue(health.isAvailable());
+        sleep(FAIL_TIMEOUT_MILLIS);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    void zeroMaxFailsNeverEjects() {
+        ServerHealth never = new ServerHealth(new Server("127.0.0.1:1", 0), 0, FAIL_TIMEOUT_MILLIS, () -> nanos);
+        for (int i = 0; i < 100; i++) {
+            never.failure();
+        }
+        assertFalse(never.isEjected());
+        assertTrue(never.isAvailable());
+    }
+
+    @Test
+    void downServerIsUnavailable() {
+        health.setDown(true);
+        assertFalse(health.isAvailable());
+        assertFalse(health.isEjected());
+        health.setDown(false);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    void registerKeepsStateOfSameThresholds() {
+        Server server = new Server("127.0.0.1:1", 0);
+        ServerHealth registered = ServerHealth.register(server, 1, FAIL_TIMEOUT_MILLIS);
+        registered.failure();
+        assertSame(registered, ServerHealth.register(server, 1, FAIL_TIMEOUT_MILLIS));
+        assertTrue(ServerHealth.of(server).isEjected());
+        assertFalse(ServerHealth.register(server, 2, FAIL_TIMEOUT_MILLIS).isEjected());
+    }
+
+    private void eject() {
+        for (int i = 0; i < 3; i++) {
+            health.failure();
+        }
+        assertTrue(health.isEjected());
+    }
+}
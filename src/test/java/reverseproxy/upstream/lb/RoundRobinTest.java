@@ -0,0 +1,135 @@
+package reverseproxy.upstream.lb;
+
+import io.netty.util.internal.InternalThreadLocalMap;
+import org.junit.jupiter.api.Test;
+import reverseproxy.conf.ReverseProxyConfig;
+import reverseproxy.conf.ReverseProxyConfig.Server;
+import reverseproxy.upstream.health.ServerHealth;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RoundRobinTest {
+
+    private static Server server(String host) {
+        return new Server(host, 0);
+    }
+
+    // the ports of the picked servers, concatenated
+    private static String picks(RoundRobin roundRobin, int count) {
+        StringBuilder picks = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                picks.append(' ');
+            }
+            picks.append(roundRobin.next().getPort());
+        }
+        return picks.toString();
+    }
+
+    @Test
+    void smoothWeightedSequence() {
+        Server[] servers = {server("127.0.0.1:1 weight=5"), server("127.0.0.1:2"), server("127.0.0.1:3")};
+        RoundRobin roundRobin = new RoundRobin(servers);
+        // a a b a c a a, then again
+        assertEquals("1 1 2 1 3 1 1", picks(roundRobin, 7));
+        assertEquals("1 1 2 1 3 1 1", picks(roundRobin, 7));
+    }
+
+    @Test
+    void smoothWeightedShares() {
+        Server[] servers = {server("127.0.0.1:1 weight=3"), server("127.0.0.1:2 weight=2"),
+                server("127.0.0.1:3 weight=1")};
+        RoundRobin roundRobin = new RoundRobin(servers);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 600; i++) {
+            counts.merge(roundRobin.next().getPort(), 1, Integer::sum);
+        }
+        assertEquals(300, counts.get(1));
+        assertEquals(200, counts.get(2));
+        assertEquals(100, counts.get(3));
+    }
+
+    @Test
+    void equalWeightsTakeTurns() {
+        RoundRobin two = new RoundRobin(new Server[]{server("127.0.0.1:1"), server("127.0.0.1:2")});
+        assertEquals("1 2 1 2", picks(two, 4));
+        RoundRobin three = new RoundRobin(new Server[]{server("127.0.0.1:1"), server("127.0.0.1:2"),
+                server("127.0.0.1:3")});
+        assertEquals("1 2 3 1 2 3", picks(three, 6));
+    }
+
+    @Test
+    void ejectedServerIsSkipped() {
+        Server[] servers = {server("127.0.0.1:1"), server("127.0.0.1:2"), server("127.0.0.1:3")};
+        ServerHealth.register(servers[1], 1, 60_000).failure();
+        RoundRobin roundRobin = new RoundRobin(servers);
+        assertEquals("1 3 1 3", picks(roundRobin, 4));
+    }
+
+    @Test
+    void ejectedHeavyServerIsSkipped() {
+        Server[] servers = {server("127.0.0.1:1 weight=5"), server("127.0.0.1:2"), server("127.0.0.1:3")};
+        ServerHealth.register(servers[0], 1, 60_000).failure();
+        RoundRobin roundRobin = new RoundRobin(servers);
+        for (int i = 0; i < 14; i++) {
+            assertNotSame(servers[0], roundRobin.next());
+        }
+        for (int i = 0; i < 14; i++) {
+            assertNotSame(servers[0], roundRobin.next(servers[1]));
+        }
+    }
+
+    @Test
+    void allEjectedStillPicksOne() {
+        Server[] servers = {server("127.0.0.1:1"), server("127.0.0.1:2")};
+        for (Server server : servers) {
+            ServerHealth.register(server, 1, 60_000).failure();
+        }
+        RoundRobin roundRobin = new RoundRobin(servers);
+        assertNotNull(roundRobin.next());
+        assertNotNull(roundRobin.next(servers[0]));
+    }
+
+    @Test
+    void retryAvoidsTriedServer() {
+        Server[] servers = {server("127.0.0.1:1"), server("127.0.0.1:2"), server("127.0.0.1:3")};
+        RoundRobin roundRobin = new RoundRobin(servers);
+        for (int i = 0; i < 6; i++) {
+            assertNotSame(servers[1], roundRobin.next(servers[1]));
+        }
+        RoundRobin single = new RoundRobin(new Server[]{servers[0]});
+        assertSame(servers[0], single.next(servers[0]), "the only server is tried again");
+    }
+
+    @Test
+    void leastRequestPrefersFewerInFlight() {
+        Server[] servers = {server("127.0.0.1:1"), server("127.0.0.1:2")};
+        RoundRobin roundRobin = new RoundRobin(servers, ReverseProxyConfig.LEAST_REQUEST);
+        InFlight.increment(servers[0]);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertSame(servers[1], roundRobin.next());
+            }
+        } finally {
+            InFlight.decrement(servers[0]);
+        }
+    }
+
+    @Test
+    void smoothWeightedTakesNoThreadLocalIndex() {
+        Server[] servers = {server("127.0.0.1:1 weight=5"), server("127.0.0.1:2"), server("127.0.0.1:3")};
+        picks(new RoundRobin(servers), 7);
+        int indices = InternalThreadLocalMap.lastVariableIndex();
+        // a reload makes new balancers, each starts its own sequence
+        for (int i = 0; i < 100; i++) {
+            assertEquals("1 1 2 1 3 1 1", picks(new RoundRobin(servers), 7));
+        }
+        assertEquals(indices, InternalThreadLocalMap.lastVariableIndex());
+    }
+}